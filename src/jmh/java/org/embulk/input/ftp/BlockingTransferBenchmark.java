@@ -0,0 +1,127 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handoff of received bytes from a transfer thread to the reader through {@link BlockingTransfer}.
+ *
+ * {@link #transferFile()} moves {@value #FILE_SIZE} bytes per operation, so bytes per second is
+ * the score times {@value #FILE_SIZE}. {@link #firstByteLatency()} is the time from submitting
+ * a transfer until the reader gets its first byte.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingTransferBenchmark
+{
+    static final int FILE_SIZE = 16 * 1024 * 1024;
+    // the size of a typical socket read by ftp4j
+    private static final int WRITE_SIZE = 16 * 1024;
+
+    @Param({"8192", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"2", "4", "16"})
+    public int bufferCount;
+
+    @Param({"false", "true"})
+    public boolean directBuffers;
+
+    private ExecutorService executor;
+    private byte[] chunk;
+    private byte[] readBuffer;
+
+    @Setup
+    public void setUp()
+    {
+        executor = Executors.newCachedThreadPool();
+        chunk = new byte[WRITE_SIZE];
+        readBuffer = new byte[64 * 1024];
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long transferFile() throws IOException
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, bufferCount, bufferSize, directBuffers,
+                writer(FILE_SIZE));
+        return drain(Channels.newInputStream(transfer.getReaderChannel()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int firstByteLatency() throws IOException
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, bufferCount, bufferSize, directBuffers,
+                writer(1));
+        try (final InputStream in = Channels.newInputStream(transfer.getReaderChannel())) {
+            return in.read();
+        }
+    }
+
+    private long drain(final InputStream in) throws IOException
+    {
+        long total = 0;
+        int n;
+        while ((n = in.read(readBuffer)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    private Function<BlockingTransfer, Runnable> writer(final int size)
+    {
+        return new Function<BlockingTransfer, Runnable>() {
+            @Override
+            public Runnable apply(final BlockingTransfer transfer)
+            {
+                return new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            final OutputStream out = Channels.newOutputStream(transfer.getWriterChannel());
+                            for (int written = 0; written < size; written += WRITE_SIZE) {
+                                out.write(chunk, 0, Math.min(WRITE_SIZE, size - written));
+                            }
+                            transfer.getWriterChannel().close();
+                        }
+                        catch (final IOException ex) {
+                            transfer.transferFailed(new UncheckedIOException(ex));
+                        }
+                    }
+                };
+            }
+        };
+    }
+}
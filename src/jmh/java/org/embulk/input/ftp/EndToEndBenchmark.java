@@ -0,0 +1,245 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Runs {@link FtpFileInputPlugin} end-to-end against {@link InProcessFtpServer} behind a
+ * {@link FaultInjectingProxy}, under a few network conditions.
+ *
+ * For each scenario it reports the throughput of the whole transaction including login and
+ * listing, the time from the start of the transaction to the first buffer given to the parser,
+ * which carries the first record, and the time from an injected reset to the next byte received.
+ *
+ * Arguments: [number of files] [file size in MiB] [result JSON file]
+ */
+public final class EndToEndBenchmark
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+    private static final String DIRECTORY = "/bench/";
+
+    private final int files;
+    private final int fileSize;
+
+    private EndToEndBenchmark(final int files, final int fileSize)
+    {
+        this.files = files;
+        this.fileSize = fileSize;
+    }
+
+    public static void main(final String[] args) throws Throwable
+    {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+        final EndToEndBenchmark benchmark = new EndToEndBenchmark(files, fileSize);
+
+        final List<Result> results = new ArrayList<>();
+        try (final InProcessFtpServer server = new InProcessFtpServer()) {
+            final byte[] content = InProcessFtpServer.content(fileSize);
+            for (int i = 0; i < files; i++) {
+                server.addFile(String.format(Locale.ROOT, "%sfile-%03d.csv", DIRECTORY, i), content);
+            }
+            for (final Scenario scenario : benchmark.scenarios()) {
+                results.add(benchmark.run(server, scenario));
+            }
+        }
+
+        print(System.out, results);
+        if (args.length > 2) {
+            writeJson(args[2], results);
+        }
+        // don't wait for idle pooled connections to time out
+        System.exit(0);
+    }
+
+    private List<Scenario> scenarios()
+    {
+        final List<Scenario> scenarios = new ArrayList<>();
+        scenarios.add(new Scenario("loopback"));
+        scenarios.add(new Scenario("rtt 20ms") {
+                @Override
+                void configure(final FaultInjectingProxy proxy)
+                {
+                    proxy.setRttMillis(20);
+                }
+            });
+        scenarios.add(new Scenario("rtt 100ms") {
+                @Override
+                void configure(final FaultInjectingProxy proxy)
+                {
+                    proxy.setRttMillis(100);
+                }
+            });
+        scenarios.add(new Scenario("100MiB/s") {
+                @Override
+                void configure(final FaultInjectingProxy proxy)
+                {
+                    proxy.setBytesPerSecond(100L * 1024 * 1024);
+                }
+            });
+        scenarios.add(new Scenario("reset mid-file") {
+                @Override
+                void configure(final FaultInjectingProxy proxy)
+                {
+                    proxy.resetDataConnectionAfter(fileSize / 2);
+                }
+            });
+        scenarios.add(new Scenario("stall 2s mid-file") {
+                @Override
+                void configure(final FaultInjectingProxy proxy)
+                {
+                    proxy.stallDataConnectionAfter(fileSize / 2, 2000);
+                }
+            });
+        return scenarios;
+    }
+
+    private Result run(final InProcessFtpServer server, final Scenario scenario) throws Throwable
+    {
+        final Result result = new Result(scenario.name);
+        try (final FaultInjectingProxy proxy = new FaultInjectingProxy("127.0.0.1", server.getPort())) {
+            scenario.configure(proxy);
+            final EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+            // the rule runs the statement in an Embulk session, which the plugin needs for buffers
+            runtime.apply(new Statement() {
+                    @Override
+                    public void evaluate()
+                    {
+                        runTransaction(proxy.getPort(), result);
+                    }
+                }, Description.EMPTY).evaluate();
+            result.resets = proxy.getResetCount();
+            result.recoveryNanos = proxy.getRecoveryNanos();
+        }
+        return result;
+    }
+
+    private void runTransaction(final int port, final Result result)
+    {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", port)
+                .set("user", InProcessFtpServer.USER)
+                .set("password", InProcessFtpServer.PASSWORD)
+                .set("path_prefix", DIRECTORY)
+                .set("maximum_retries", 3);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        final long start = System.nanoTime();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    final List<TaskReport> reports = new ArrayList<>();
+                    for (int i = 0; i < taskCount; i++) {
+                        reports.add(readTask(plugin, taskSource, i, start, result));
+                    }
+                    return reports;
+                }
+            });
+        result.elapsedNanos = System.nanoTime() - start;
+    }
+
+    private static TaskReport readTask(final FtpFileInputPlugin plugin, final TaskSource taskSource, final int taskIndex,
+            final long start, final Result result)
+    {
+        try (final TransactionalFileInput input = plugin.open(taskSource, taskIndex)) {
+            while (input.nextFile()) {
+                Buffer buffer;
+                while ((buffer = input.poll()) != null) {
+                    if (result.firstRecordNanos < 0) {
+                        result.firstRecordNanos = System.nanoTime() - start;
+                    }
+                    result.bytes += buffer.limit();
+                    buffer.release();
+                }
+            }
+            return input.commit();
+        }
+    }
+
+    private static void print(final PrintStream out, final List<Result> results)
+    {
+        out.println(String.format(Locale.ROOT, "%-20s %12s %12s %10s %8s %14s",
+                "scenario", "MiB", "MiB/s", "ttfr ms", "resets", "recovery ms"));
+        for (final Result result : results) {
+            out.println(String.format(Locale.ROOT, "%-20s %12.1f %12.1f %10.1f %8d %14s",
+                    result.name, result.bytes / 1048576.0, result.getMiBPerSecond(), millis(result.firstRecordNanos),
+                    result.resets, result.recoveryNanos < 0 ? "-" : String.format(Locale.ROOT, "%.1f", millis(result.recoveryNanos))));
+        }
+    }
+
+    private static void writeJson(final String path, final List<Result> results) throws IOException
+    {
+        try (final Writer writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                final Result result = results.get(i);
+                writer.write(String.format(Locale.ROOT,
+                        "  {\"scenario\": \"%s\", \"bytes\": %d, \"mib_per_sec\": %.3f, \"time_to_first_record_millis\": %.3f, "
+                        + "\"resets\": %d, \"recovery_millis\": %s}%s\n",
+                        result.name, result.bytes, result.getMiBPerSecond(), millis(result.firstRecordNanos), result.resets,
+                        result.recoveryNanos < 0 ? "null" : String.format(Locale.ROOT, "%.3f", millis(result.recoveryNanos)),
+                        i + 1 < results.size() ? "," : ""));
+            }
+            writer.write("]\n");
+        }
+    }
+
+    private static double millis(final long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Scenario
+    {
+        final String name;
+
+        Scenario(final String name)
+        {
+            this.name = name;
+        }
+
+        void configure(final FaultInjectingProxy proxy)
+        {
+        }
+    }
+
+    private static class Result
+    {
+        final String name;
+        long bytes;
+        long elapsedNanos;
+        long firstRecordNanos = -1;
+        int resets;
+        long recoveryNanos = -1;
+
+        Result(final String name)
+        {
+            this.name = name;
+        }
+
+        double getMiBPerSecond()
+        {
+            return elapsedNanos > 0 ? bytes / 1048576.0 / (elapsedNanos / 1e9) : 0;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+/**
+ * Recursive listing and filtering through {@code listFilesRecursive} against a synthetic tree of
+ * {@code /data/<year>/<month>/} directories served from memory, so only the client side is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark
+{
+    @Param({"10", "1000"})
+    public int filesPerDirectory;
+
+    @Param({"\\.csv$", "^/data/2024/0[1-3]/.*\\.csv$"})
+    public String pathMatchPattern;
+
+    // "none" for a full load
+    @Param({"none", "/data/2024/06/file-000000.csv"})
+    public String lastPath;
+
+    private Map<String, List<FTPFile>> tree;
+    private Pattern pattern;
+    private Optional<String> last;
+    private final AtomicInteger listCount = new AtomicInteger();
+
+    @Setup
+    public void setUp()
+    {
+        final List<String> paths = new ArrayList<>();
+        for (int year = 2020; year <= 2024; year++) {
+            for (int month = 1; month <= 12; month++) {
+                for (int i = 0; i < filesPerDirectory; i++) {
+                    // every other file is filtered out by the pattern
+                    final String extension = i % 2 == 0 ? "csv" : "tmp";
+                    paths.add(String.format(Locale.ROOT, "/data/%04d/%02d/file-%06d.%s", year, month, i, extension));
+                }
+            }
+        }
+        tree = FakeFTPClient.tree(paths.toArray(new String[0]));
+        pattern = Pattern.compile(pathMatchPattern);
+        last = "none".equals(lastPath) ? Optional.<String>empty() : Optional.of(lastPath);
+    }
+
+    @Benchmark
+    public List<String> listFiles()
+    {
+        return FtpFileInputPlugin.listFilesByPrefix(NOPLogger.NOP_LOGGER, new FakeFTPClient(tree, listCount),
+                "/data/", last, pattern);
+    }
+}
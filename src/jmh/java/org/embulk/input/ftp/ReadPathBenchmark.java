@@ -0,0 +1,183 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.util.file.InputStreamFileInput;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.embulk.util.file.ResumableInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the files of a task into Embulk buffers, as the parser gets them.
+ *
+ * {@link #streamInput()} is the default path: {@link BlockingTransfer}, {@link ResumableInputStream}
+ * and {@link InputStreamFileInput}, which copies bytes again into its buffers. {@link #copyFreeInput()}
+ * is the {@code copy_free_input} path through {@link BufferTransfer}. Each operation reads
+ * {@value #FILES} files of {@value #FILE_SIZE} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadPathBenchmark
+{
+    static final int FILES = 4;
+    static final int FILE_SIZE = 16 * 1024 * 1024;
+    private static final int WRITE_SIZE = 16 * 1024;
+
+    @Param({"65536", "1048576"})
+    public int transferBufferSize;
+
+    @Param({"4"})
+    public int transferBufferCount;
+
+    private ExecutorService executor;
+    private BufferAllocator allocator;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp()
+    {
+        executor = Executors.newCachedThreadPool();
+        allocator = new EmbulkTestRuntime().getBufferAllocator();
+        chunk = new byte[WRITE_SIZE];
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long streamInput()
+    {
+        final InputStreamFileInput input = new InputStreamFileInput(allocator, new InputStreamFileInput.Provider() {
+                private int opened;
+
+                @Override
+                public InputStreamWithHints openNextWithHints()
+                {
+                    if (opened >= FILES) {
+                        return null;
+                    }
+                    opened++;
+                    return new InputStreamWithHints(new ResumableInputStream(startTransfer(0L), new ResumableInputStream.Reopener() {
+                            @Override
+                            public InputStream reopen(final long offset, final Exception closedCause)
+                            {
+                                return startTransfer(offset);
+                            }
+                        }), "file-" + opened);
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            });
+        try {
+            return drain(input);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public long copyFreeInput() throws IOException
+    {
+        long total = 0;
+        for (int i = 0; i < FILES; i++) {
+            final BufferTransfer transfer = new BufferTransfer(allocator, transferBufferCount, transferBufferSize);
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            write(transfer.getOutputStream(), FILE_SIZE);
+                            transfer.finish();
+                        }
+                        catch (final IOException ex) {
+                            transfer.fail(ex);
+                        }
+                    }
+                });
+            Buffer buffer;
+            while ((buffer = transfer.poll()) != null) {
+                total += buffer.limit();
+                buffer.release();
+            }
+        }
+        return total;
+    }
+
+    private InputStream startTransfer(final long offset)
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, transferBufferCount, transferBufferSize, false,
+                new Function<BlockingTransfer, Runnable>() {
+                    @Override
+                    public Runnable apply(final BlockingTransfer transfer)
+                    {
+                        return new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                try {
+                                    write(Channels.newOutputStream(transfer.getWriterChannel()), FILE_SIZE - offset);
+                                    transfer.getWriterChannel().close();
+                                }
+                                catch (final IOException ex) {
+                                    transfer.transferFailed(new UncheckedIOException(ex));
+                                }
+                            }
+                        };
+                    }
+                });
+        return Channels.newInputStream(transfer.getReaderChannel());
+    }
+
+    private void write(final OutputStream out, final long size) throws IOException
+    {
+        for (long written = 0; written < size; written += WRITE_SIZE) {
+            out.write(chunk, 0, (int) Math.min(WRITE_SIZE, size - written));
+        }
+    }
+
+    private static long drain(final InputStreamFileInput input)
+    {
+        long total = 0;
+        while (input.nextFile()) {
+            Buffer buffer;
+            while ((buffer = input.poll()) != null) {
+                total += buffer.limit();
+                buffer.release();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,141 @@
+package org.embulk.input.ftp;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bytes per second of all transfers in the JVM with token buckets, used if
+ * {@code max_bytes_per_second} or {@code max_bytes_per_second_per_host} is set.
+ *
+ * A transfer takes tokens for each chunk it receives, and waits if the bucket runs out, which
+ * stops reading the data connection until TCP slows the server down. A bucket holds up to
+ * {@code bandwidth_burst_bytes} tokens, so a transfer after an idle period starts at full speed.
+ * Tokens can go negative: a chunk taken when the bucket is empty waits until the debt before it
+ * is paid, so concurrent transfers are served in the order they ask and share the bandwidth
+ * evenly, instead of the one which wakes up first taking everything.
+ *
+ * The limit is on the bytes on the network, which {@link MeteredConnector} counts before MODE Z
+ * inflates them. In active mode, the server connects the data connections, and the limit is on
+ * the bytes after MODE Z inflates them instead.
+ */
+class BandwidthGovernor
+{
+    private static final String ALL_HOSTS = "*";
+
+    // a bucket holds at least this many tokens, so that a chunk larger than the rate fits
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private static final ConcurrentMap<String, TokenBucket> BUCKETS = new ConcurrentHashMap<>();
+
+    private final TokenBucket global;
+    private final TokenBucket host;
+
+    BandwidthGovernor(final TokenBucket global, final TokenBucket host)
+    {
+        this.global = global;
+        this.host = host;
+    }
+
+    /**
+     * Returns the governor of transfers from {@code host}, or null if bandwidth is not limited.
+     * The buckets are shared by all tasks in the JVM, and take the limits of the latest call.
+     */
+    static BandwidthGovernor of(final Optional<Long> maxBytesPerSecond, final Optional<Long> maxBytesPerSecondPerHost,
+            final Optional<Long> burstBytes, final String host)
+    {
+        if (!maxBytesPerSecond.isPresent() && !maxBytesPerSecondPerHost.isPresent()) {
+            return null;
+        }
+        final TokenBucket global = maxBytesPerSecond.isPresent()
+                ? bucket(ALL_HOSTS, maxBytesPerSecond.get(), burstBytes) : null;
+        final TokenBucket perHost = maxBytesPerSecondPerHost.isPresent()
+                ? bucket(host, maxBytesPerSecondPerHost.get(), burstBytes) : null;
+        return new BandwidthGovernor(global, perHost);
+    }
+
+    private static TokenBucket bucket(final String key, final long bytesPerSecond, final Optional<Long> burstBytes)
+    {
+        TokenBucket bucket = BUCKETS.get(key);
+        if (bucket == null) {
+            final TokenBucket created = new TokenBucket(System.nanoTime());
+            bucket = BUCKETS.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        bucket.configure(bytesPerSecond, burstBytes.orElse(Math.max(bytesPerSecond, MIN_BURST_BYTES)));
+        return bucket;
+    }
+
+    /**
+     * Takes tokens for {@code bytes}, waiting if there are not enough. Returns the nanoseconds
+     * spent waiting.
+     */
+    long acquire(final int bytes)
+    {
+        final long now = System.nanoTime();
+        long wait = 0L;
+        if (global != null) {
+            wait = Math.max(wait, global.reserve(bytes, now));
+        }
+        if (host != null) {
+            wait = Math.max(wait, host.reserve(bytes, now));
+        }
+        if (wait <= 0) {
+            return 0L;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch (final InterruptedException ex) {
+            // the transfer is being cancelled
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - now;
+    }
+
+    static class TokenBucket
+    {
+        // guarded by this
+        private long bytesPerSecond = 1L;
+        private long burstBytes;
+        private double tokens;
+        private long lastNanos;
+        private boolean configured;
+
+        TokenBucket(final long nowNanos)
+        {
+            this.lastNanos = nowNanos;
+        }
+
+        synchronized void configure(final long bytesPerSecond, final long burstBytes)
+        {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstBytes = burstBytes;
+            if (!configured) {
+                tokens = burstBytes;
+                configured = true;
+            }
+            tokens = Math.min(tokens, burstBytes);
+        }
+
+        /**
+         * Takes tokens for {@code bytes}, and returns the nanoseconds to wait until they are
+         * paid. The tokens are taken even if they are not there yet.
+         */
+        synchronized long reserve(final long bytes, final long nowNanos)
+        {
+            if (nowNanos > lastNanos) {
+                tokens = Math.min(burstBytes, tokens + (nowNanos - lastNanos) * (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+                lastNanos = nowNanos;
+            }
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0L;
+            }
+            return (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+    }
+}
@@ -6,28 +6,65 @@ import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
+/**
+ * Pipes bytes written by a transfer thread to a reader through a bounded ring of buffers.
+ *
+ * The writer copies data into a free buffer and hands it to the reader when it's full, or
+ * right away if the reader is waiting. So the transfer thread keeps receiving while the
+ * reader processes the previous buffers. Threads synchronize once per buffer, not per write.
+ */
 public class BlockingTransfer
 {
+    static final int DEFAULT_BUFFER_COUNT = 4;
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // put to the queues to wake up the other side at the end
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
     private final WriterChannel writerChannel;
     private final ReaderChannel readerChannel;
+    private final int bufferCount;
+    private final int bufferSize;
+    private final boolean directBuffers;
+
+    // buffers written by the writer, to be read by the reader
+    private final BlockingQueue<ByteBuffer> filledBuffers;
+    // buffers read by the reader, to be written again
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final AtomicBoolean endOfData = new AtomicBoolean(false);
+    private volatile boolean readerClosed;
+    private volatile Throwable exception;
+
     private Future<?> transferCompletionFuture;
+    private volatile Thread transferThread;
+
+    public static BlockingTransfer submit(ExecutorService executor,
+            Function<BlockingTransfer, Runnable> starterFactory)
+    {
+        return submit(executor, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE, false, starterFactory);
+    }
 
     public static BlockingTransfer submit(ExecutorService executor,
+            int bufferCount, int bufferSize, boolean directBuffers,
             Function<BlockingTransfer, Runnable> starterFactory)
     {
-        BlockingTransfer transfer = new BlockingTransfer();
+        BlockingTransfer transfer = new BlockingTransfer(bufferCount, bufferSize, directBuffers);
         final Runnable starter = starterFactory.apply(transfer);
         transfer.setTransferCompletionFuture(
                 executor.submit(new Callable<Void>() {
                     public Void call() throws Exception
                     {
+                        transfer.transferThread = Thread.currentThread();
                         starter.run();
                         return null;
                     }
@@ -36,8 +73,13 @@ public class BlockingTransfer
         return transfer;
     }
 
-    private BlockingTransfer()
+    private BlockingTransfer(int bufferCount, int bufferSize, boolean directBuffers)
     {
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        this.directBuffers = directBuffers;
+        this.filledBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
         this.writerChannel = new WriterChannel();
         this.readerChannel = new ReaderChannel();
     }
@@ -57,9 +99,22 @@ public class BlockingTransfer
         return writerChannel;
     }
 
+    /**
+     * Called by the transfer thread when the transfer failed. The reader gets the data
+     * written so far, including the buffer the writer was filling, then {@code exception}.
+     */
     public void transferFailed(Throwable exception)
     {
-        readerChannel.overwriteException(exception);
+        writerChannel.flushPending();
+        this.exception = exception;
+        signalEndOfData();
+    }
+
+    private void signalEndOfData()
+    {
+        if (endOfData.compareAndSet(false, true)) {
+            filledBuffers.offer(END);
+        }
     }
 
     void waitForTransferCompletion() throws IOException
@@ -73,6 +128,7 @@ public class BlockingTransfer
                 throw new InterruptedIOException();
             }
             catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
                 throw new InterruptedIOException();
             }
             catch (ExecutionException ex) {
@@ -94,42 +150,6 @@ public class BlockingTransfer
         }
     }
 
-    public class WriterChannel implements WritableByteChannel
-    {
-        public int write(ByteBuffer src) throws IOException
-        {
-            int sz = src.remaining();
-            if (sz <= 0) {
-                return sz;
-            }
-
-            synchronized (readerChannel) {
-                if (!readerChannel.waitForWritable()) {
-                    return -1;
-                }
-
-                readerChannel.setBuffer(src);
-
-                if (!readerChannel.waitForWritable()) {  // wait for complete processing src
-                    return -1;
-                }
-            }
-
-            return sz - src.remaining();
-        }
-
-        public boolean isOpen()
-        {
-            return readerChannel.isOpen();
-        }
-
-        public void close() throws IOException
-        {
-            readerChannel.closePeer();
-            waitForTransferCompletion();
-        }
-    }
-
     private static int transferByteBuffer(ByteBuffer src, ByteBuffer dst)
     {
         int pos = dst.position();
@@ -153,105 +173,195 @@ public class BlockingTransfer
         return dst.position() - pos;
     }
 
-    public class ReaderChannel implements ReadableByteChannel
+    private static IOException interrupted()
+    {
+        // keep the interrupt status so that the caller can see it
+        Thread.currentThread().interrupt();
+        return new InterruptedIOException("interrupted while waiting for a transfer buffer");
+    }
+
+    public class WriterChannel implements WritableByteChannel
     {
         private ByteBuffer buffer;
-        private Throwable exception;
+        private int allocated;
+        private boolean closed;
 
-        public synchronized int read(ByteBuffer dst) throws IOException
+        public int write(ByteBuffer src) throws IOException
         {
-            if (!waitForReadable()) {
-                return -1;
+            int sz = src.remaining();
+            if (sz <= 0) {
+                return sz;
             }
 
-            int len = transferByteBuffer(buffer, dst);
-            if (!buffer.hasRemaining()) {
-                setBuffer(null);
-                notifyAll();
+            while (src.hasRemaining()) {
+                if (buffer == null) {
+                    buffer = takeFreeBuffer();
+                }
+                transferByteBuffer(src, buffer);
+                if (!buffer.hasRemaining()) {
+                    publish();
+                }
+            }
+            if (buffer != null && filledBuffers.isEmpty()) {
+                // the reader is waiting. pass it what we have instead of filling the buffer.
+                publish();
             }
 
-            return len;
+            return sz;
         }
 
-        public synchronized boolean isOpen()
+        private ByteBuffer takeFreeBuffer() throws IOException
         {
-            return exception == null;
+            checkReaderOpen();
+            ByteBuffer free = freeBuffers.poll();
+            if (free == null && allocated < bufferCount) {
+                allocated++;
+                return BufferPool.acquire(bufferSize, directBuffers);
+            }
+            if (free == null) {
+                try {
+                    free = freeBuffers.take();
+                }
+                catch (InterruptedException ex) {
+                    IOException ioe = interrupted();
+                    transferFailed(ioe);
+                    throw ioe;
+                }
+            }
+            if (free == END) {
+                freeBuffers.offer(END);
+                checkReaderOpen();
+            }
+            free.clear();
+            return free;
         }
 
-        public void close() throws IOException
+        private void checkReaderOpen() throws IOException
         {
-            setException(new EOFException("reader closed channel"));
+            if (readerClosed) {
+                throw new EOFException("reader closed channel");
+            }
         }
 
-        private void setBuffer(ByteBuffer buffer)
+        // hands the buffer being filled to the reader, or returns it if nobody reads it
+        private void flushPending()
         {
-            this.buffer = buffer;
-            notifyAll();
+            if (buffer != null) {
+                if (readerClosed) {
+                    BufferPool.release(buffer);
+                    buffer = null;
+                }
+                else {
+                    publish();
+                }
+            }
         }
 
-        private synchronized boolean waitForWritable() throws IOException
+        private void publish()
         {
-            while (buffer != null) {
-                if (exception != null) {
-                    if (exception instanceof EOFException) {
-                        return false;
-                    }
-                    throwException();
-                }
+            buffer.flip();
+            filledBuffers.offer(buffer);  // never full; at most bufferCount buffers and END
+            buffer = null;
+        }
 
-                try {
-                    wait();
-                }
-                catch (InterruptedException ex) {
-                    // TODO throws ClosedByInterruptException or InterruptedIOException?
-                }
-            }
+        public boolean isOpen()
+        {
+            return !closed && !readerClosed;
+        }
 
-            return true;
+        public void close() throws IOException
+        {
+            if (!closed) {
+                closed = true;
+                flushPending();
+                signalEndOfData();
+            }
+            // the transfer thread itself closes the writer when it finishes. waiting for
+            // its own completion there would block the thread forever.
+            if (Thread.currentThread() != transferThread) {
+                waitForTransferCompletion();
+            }
         }
+    }
 
-        private boolean waitForReadable() throws IOException
+    public class ReaderChannel implements ReadableByteChannel
+    {
+        private ByteBuffer buffer;
+        private boolean endOfStream;
+
+        public int read(ByteBuffer dst) throws IOException
         {
-            while (buffer == null) {
-                if (exception != null) {
-                    if (exception instanceof EOFException) {
-                        return false;
-                    }
+            if (readerClosed) {
+                throw new EOFException("reader closed channel");
+            }
+            if (buffer == null) {
+                if (endOfStream) {
                     throwException();
+                    return -1;
                 }
-
+                ByteBuffer filled;
                 try {
-                    wait();
+                    filled = filledBuffers.take();
                 }
                 catch (InterruptedException ex) {
-                    // TODO throws ClosedByInterruptException or InterruptedIOException?
+                    throw interrupted();
                 }
+                if (filled == END) {
+                    endOfStream = true;
+                    releaseFreeBuffers();
+                    throwException();
+                    return -1;
+                }
+                buffer = filled;
             }
 
-            return true;
+            int len = transferByteBuffer(buffer, dst);
+            if (!buffer.hasRemaining()) {
+                freeBuffers.offer(buffer);
+                buffer = null;
+            }
+
+            return len;
         }
 
-        public synchronized void closePeer() throws IOException
+        public boolean isOpen()
         {
-            waitForWritable();
-            if (exception != null && !(exception instanceof EOFException)) {
-                throwException();
-            }
-            setException(new EOFException("writer closed channel"));
+            return !readerClosed;
         }
 
-        public synchronized void setException(Throwable exception)
+        public void close() throws IOException
         {
-            if (this.exception == null) {
-                this.exception = exception;
+            if (readerClosed) {
+                return;
+            }
+            readerClosed = true;
+            // wake up the writer if it's waiting for a free buffer
+            freeBuffers.offer(END);
+            if (buffer != null) {
+                BufferPool.release(buffer);
+                buffer = null;
             }
-            notifyAll();
+            ByteBuffer filled;
+            while ((filled = filledBuffers.poll()) != null) {
+                if (filled != END) {
+                    BufferPool.release(filled);
+                }
+            }
+            releaseFreeBuffers();
         }
 
-        public synchronized void overwriteException(Throwable exception)
+        // returns the buffers which the writer no longer takes
+        private void releaseFreeBuffers()
         {
-            this.exception = exception;
-            notifyAll();
+            ByteBuffer free;
+            while ((free = freeBuffers.poll()) != null) {
+                if (free != END) {
+                    BufferPool.release(free);
+                }
+            }
+            if (readerClosed) {
+                freeBuffers.offer(END);
+            }
         }
 
         public boolean hasException()
@@ -262,6 +372,9 @@ public class BlockingTransfer
         public void throwException() throws IOException
         {
             Throwable ex = exception;
+            if (ex == null) {
+                return;
+            }
             if (ex instanceof IOException) {
                 throw (IOException) ex;
             }
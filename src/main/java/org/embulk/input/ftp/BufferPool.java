@@ -0,0 +1,80 @@
+package org.embulk.input.ftp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM-wide pool of transfer buffers so that every file doesn't allocate new buffers.
+ * Buffers are pooled separately by capacity and by heap or direct.
+ */
+class BufferPool
+{
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private static final ConcurrentMap<Long, Pool> POOLS = new ConcurrentHashMap<>();
+
+    private BufferPool()
+    {
+        // No instantiation.
+    }
+
+    static ByteBuffer acquire(final int capacity, final boolean direct)
+    {
+        final ByteBuffer buffer = poolOf(capacity, direct).poll();
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it any more.
+     */
+    static void release(final ByteBuffer buffer)
+    {
+        poolOf(buffer.capacity(), buffer.isDirect()).offer(buffer);
+    }
+
+    private static Pool poolOf(final int capacity, final boolean direct)
+    {
+        final Long key = direct ? -(long) capacity : (long) capacity;
+        Pool pool = POOLS.get(key);
+        if (pool == null) {
+            final Pool created = new Pool();
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private static class Pool
+    {
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        ByteBuffer poll()
+        {
+            final ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                size.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        void offer(final ByteBuffer buffer)
+        {
+            if (size.incrementAndGet() > MAX_POOLED_BUFFERS) {
+                size.decrementAndGet();
+                return;  // let GC collect it
+            }
+            buffers.offer(buffer);
+        }
+    }
+}
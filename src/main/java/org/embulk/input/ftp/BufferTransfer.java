@@ -0,0 +1,237 @@
+package org.embulk.input.ftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+
+/**
+ * Passes Embulk buffers filled by a transfer thread to the reader.
+ *
+ * The transfer thread writes received bytes to {@link #getOutputStream()}, which copies them
+ * into a buffer allocated from the {@link BufferAllocator}. {@link #poll()} returns the buffer
+ * as it is, and the caller owns it. At most {@code bufferCount} buffers wait to be polled.
+ */
+class BufferTransfer
+{
+    private static final Optional<Buffer> END = Optional.empty();
+
+    private final BufferAllocator allocator;
+    private final int bufferSize;
+    private final BlockingQueue<Optional<Buffer>> queue = new LinkedBlockingQueue<>();
+    // number of buffers which can be queued more
+    private final Semaphore slots;
+    private final BufferOutputStream outputStream = new BufferOutputStream();
+    private final AtomicBoolean ended = new AtomicBoolean(false);
+    private volatile boolean closed;
+    private volatile Throwable exception;
+
+    // accessed only by the reader
+    private boolean endOfFile;
+
+    BufferTransfer(final BufferAllocator allocator, final int bufferCount, final int bufferSize)
+    {
+        this.allocator = allocator;
+        this.bufferSize = bufferSize;
+        this.slots = new Semaphore(bufferCount);
+    }
+
+    /**
+     * Returns the stream written by the transfer thread.
+     */
+    OutputStream getOutputStream()
+    {
+        return outputStream;
+    }
+
+    /**
+     * Returns the number of bytes written so far. A failed transfer restarts from this offset.
+     */
+    long getReceivedBytes()
+    {
+        return outputStream.received;
+    }
+
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Called by the transfer thread when the file is written completely.
+     */
+    void finish() throws IOException
+    {
+        outputStream.publish();
+        end();
+    }
+
+    /**
+     * Called by the transfer thread when the transfer failed. The reader gets the data
+     * written so far, then the exception.
+     */
+    void fail(final Throwable exception)
+    {
+        try {
+            outputStream.publish();
+        }
+        catch (final IOException ex) {
+            exception.addSuppressed(ex);
+        }
+        this.exception = exception;
+        end();
+    }
+
+    private void end()
+    {
+        if (ended.compareAndSet(false, true)) {
+            queue.offer(END);
+        }
+        if (closed) {
+            releaseQueuedBuffers();
+        }
+    }
+
+    /**
+     * Returns the next buffer, or null at the end of the file.
+     */
+    Buffer poll() throws IOException
+    {
+        if (endOfFile) {
+            throwException();
+            return null;
+        }
+        final Optional<Buffer> buffer;
+        try {
+            buffer = queue.take();
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a transfer buffer");
+        }
+        if (!buffer.isPresent()) {
+            endOfFile = true;
+            throwException();
+            return null;
+        }
+        slots.release();
+        return buffer.get();
+    }
+
+    /**
+     * Stops the transfer and releases the buffers which are not polled.
+     */
+    void close()
+    {
+        closed = true;
+        releaseQueuedBuffers();
+        // wake up the writer if it's waiting for a slot
+        slots.release(Integer.MAX_VALUE / 2);
+    }
+
+    private void releaseQueuedBuffers()
+    {
+        Optional<Buffer> buffer;
+        while ((buffer = queue.poll()) != null) {
+            if (buffer.isPresent()) {
+                buffer.get().release();
+            }
+        }
+    }
+
+    private void throwException() throws IOException
+    {
+        final Throwable ex = exception;
+        if (ex == null) {
+            return;
+        }
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        }
+        else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        else {
+            throw new IOException(ex);
+        }
+    }
+
+    private class BufferOutputStream
+            extends OutputStream
+    {
+        private Buffer buffer;
+        private int position;
+        private volatile long received;
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0) {
+                if (closed) {
+                    throw new EOFException("reader closed channel");
+                }
+                if (buffer == null) {
+                    buffer = allocator.allocate(bufferSize);
+                    position = 0;
+                }
+                final int n = Math.min(len, buffer.capacity() - position);
+                buffer.setBytes(position, b, off, n);
+                position += n;
+                off += n;
+                len -= n;
+                received += n;
+                if (position >= buffer.capacity()) {
+                    publish();
+                }
+            }
+            if (queue.isEmpty()) {
+                // the reader is waiting. pass it what we have instead of filling the buffer.
+                publish();
+            }
+        }
+
+        void publish() throws IOException
+        {
+            if (buffer == null || position == 0) {
+                return;
+            }
+            buffer.limit(position);
+            final Buffer filled = buffer;
+            buffer = null;
+            if (closed) {
+                filled.release();
+                return;
+            }
+            try {
+                slots.acquire();
+            }
+            catch (final InterruptedException ex) {
+                filled.release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a transfer buffer");
+            }
+            queue.offer(Optional.of(filled));
+            if (closed) {
+                // close() may have drained the queue before the offer
+                releaseQueuedBuffers();
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.embulk.input.ftp;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+/**
+ * Decides whether each transfer uses MODE Z compression.
+ *
+ * <ul>
+ * <li>{@code off}: never.</li>
+ * <li>{@code on}: always, if the server supports it.</li>
+ * <li>{@code pattern}: for files whose path matches {@code compression_path_pattern}.</li>
+ * <li>{@code adaptive}: not for compressed files. For other files, it's decided for each server
+ *   by measuring the first {@code compression_probe_bytes} of transfers. A transfer with MODE Z
+ *   measures the compression ratio and the throughput, and a transfer without it measures the
+ *   throughput. MODE Z is not used if the ratio is above {@value #INCOMPRESSIBLE_RATIO}, or if it
+ *   is slower than transfers without it.</li>
+ * </ul>
+ *
+ * Measurements are shared by all tasks in the JVM connecting to the same server, which is named by
+ * {@link FtpConnectionPool.Key#getName()} with the user, the port and the TLS settings. They are taken
+ * again after {@value #REPROBE_TRANSFERS} transfers or {@value #REPROBE_MINUTES} minutes, as
+ * the link and the files may change.
+ */
+class CompressionPolicy
+{
+    enum Mode
+    {
+        OFF, ON, PATTERN, ADAPTIVE;
+
+        static Mode of(final String name)
+        {
+            for (final Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "\"compression\" must be one of off, on, pattern or adaptive, but got \"%s\".", name));
+        }
+    }
+
+    // compressed bytes / uncompressed bytes above which MODE Z saves too little
+    static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    // a file smaller than the probe bytes is measured as a whole if it has at least this many bytes
+    private static final long MIN_PROBE_BYTES = 256 * 1024;
+
+    // transfers or minutes after which the decision of "adaptive" is measured again
+    static final int REPROBE_TRANSFERS = 100;
+    static final long REPROBE_MINUTES = 10;
+
+    private static final ConcurrentMap<String, Link> LINKS = new ConcurrentHashMap<>();
+
+    private final Mode mode;
+    private final Pattern pattern;
+    private final long probeBytes;
+    private final Link link;
+
+    CompressionPolicy(final Mode mode, final Pattern pattern, final long probeBytes, final Link link)
+    {
+        this.mode = mode;
+        this.pattern = pattern;
+        this.probeBytes = probeBytes;
+        this.link = link;
+    }
+
+    static CompressionPolicy of(final Logger log, final String mode, final String pattern, final long probeBytes, final String server)
+    {
+        Link link = LINKS.get(server);
+        if (link == null) {
+            final Link created = new Link(log, server, REPROBE_TRANSFERS, TimeUnit.MINUTES.toNanos(REPROBE_MINUTES));
+            link = LINKS.putIfAbsent(server, created);
+            if (link == null) {
+                link = created;
+            }
+        }
+        return new CompressionPolicy(Mode.of(mode), pattern == null ? null : Pattern.compile(pattern), probeBytes, link);
+    }
+
+    boolean useModeZ(final FTPClient client, final String path)
+    {
+        if (!client.isCompressionSupported()) {
+            return false;
+        }
+        switch (mode) {
+        case ON:
+            return true;
+        case PATTERN:
+            return pattern.matcher(path).find();
+        case ADAPTIVE:
+            return !FtpFileInputPlugin.isCompressed(path) && link.useModeZ();
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Starts measuring a transfer. {@link Transfer#transferred} must be called with the bytes
+     * received, and {@link Transfer#finish} at the end.
+     */
+    Transfer startTransfer(final FTPClient client, final boolean modeZ, final FileTransferMetrics metrics)
+    {
+        final MeteredConnector connector = client.getConnector() instanceof MeteredConnector
+                ? (MeteredConnector) client.getConnector() : null;
+        return new Transfer(connector, modeZ, mode == Mode.ADAPTIVE && link.needsProbe(modeZ), metrics);
+    }
+
+    class Transfer
+    {
+        private final MeteredConnector connector;
+        private final boolean modeZ;
+        private final FileTransferMetrics metrics;
+        private final long startDataBytes;
+        private boolean probing;
+        private long bytes;
+        private long firstByteNanos = -1L;
+        private long firstLength;
+
+        private Transfer(final MeteredConnector connector, final boolean modeZ, final boolean probing, final FileTransferMetrics metrics)
+        {
+            this.connector = connector;
+            this.modeZ = modeZ;
+            this.probing = probing;
+            this.metrics = metrics;
+            this.startDataBytes = dataBytes();
+        }
+
+        void transferred(final int length, final long nowNanos)
+        {
+            bytes += length;
+            if (firstByteNanos < 0) {
+                // the time to the first byte is not a part of the throughput
+                firstByteNanos = nowNanos;
+                firstLength = length;
+            }
+            if (probing && bytes >= probeBytes) {
+                probe(nowNanos);
+            }
+        }
+
+        /**
+         * Reports the mode to the metrics of the file. If the transfer completed before
+         * {@code compression_probe_bytes}, the whole transfer is measured instead.
+         */
+        void finish(final boolean completed)
+        {
+            if (completed && probing && bytes >= MIN_PROBE_BYTES) {
+                probe(System.nanoTime());
+            }
+            metrics.compressionUsed(modeZ, modeZ ? ratio() : -1.0);
+        }
+
+        private void probe(final long nowNanos)
+        {
+            probing = false;
+            link.measured(modeZ, RateMeter.rate(bytes - firstLength, nowNanos - firstByteNanos), ratio());
+        }
+
+        // compressed bytes / uncompressed bytes, or -1 if bytes on the data connection are not counted
+        private double ratio()
+        {
+            final long received = dataBytes() - startDataBytes;
+            return received > 0 && bytes > 0 ? received / (double) bytes : -1.0;
+        }
+
+        private long dataBytes()
+        {
+            return connector != null ? connector.getDataBytes() : 0L;
+        }
+    }
+
+    /**
+     * Measurements of the transfers from a server.
+     */
+    static class Link
+    {
+        private final Logger log;
+        private final String server;
+        private final int reprobeTransfers;
+        private final long reprobeNanos;
+
+        // throughputs of uncompressed bytes in bytes per second. 0 if not measured yet.
+        private long modeZRate;
+        private long plainRate;
+        // -1 if not measured yet
+        private double ratio = -1.0;
+        private boolean decided;
+        private long decidedNanos;
+        // transfers decided since then
+        private int decidedTransfers;
+
+        Link(final Logger log, final String server, final int reprobeTransfers, final long reprobeNanos)
+        {
+            this.log = log;
+            this.server = server;
+            this.reprobeTransfers = reprobeTransfers;
+            this.reprobeNanos = reprobeNanos;
+        }
+
+        synchronized boolean useModeZ()
+        {
+            if (decided) {
+                if (decidedTransfers >= reprobeTransfers || System.nanoTime() - decidedNanos >= reprobeNanos) {
+                    log.info("Measuring MODE Z for transfers from {} again", server);
+                    modeZRate = 0;
+                    plainRate = 0;
+                    ratio = -1.0;
+                    decided = false;
+                }
+                else {
+                    decidedTransfers++;
+                }
+            }
+            return decide();
+        }
+
+        private boolean decide()
+        {
+            if (modeZRate == 0) {
+                return true;  // measure the ratio first
+            }
+            if (ratio > INCOMPRESSIBLE_RATIO) {
+                return false;
+            }
+            if (plainRate == 0) {
+                return false;  // measure the throughput without MODE Z
+            }
+            return modeZRate > plainRate;
+        }
+
+        synchronized boolean needsProbe(final boolean modeZ)
+        {
+            return modeZ ? modeZRate == 0 : plainRate == 0;
+        }
+
+        synchronized void measured(final boolean modeZ, final long rate, final double measuredRatio)
+        {
+            if (modeZ) {
+                if (modeZRate != 0) {
+                    return;
+                }
+                modeZRate = Math.max(1L, rate);
+                ratio = measuredRatio;
+                log.info(String.format(Locale.ENGLISH, "MODE Z from %s: %,d bytes/sec, compression ratio %s",
+                        server, modeZRate, measuredRatio < 0 ? "unknown" : String.format(Locale.ENGLISH, "%.3f", measuredRatio)));
+            }
+            else {
+                if (plainRate != 0) {
+                    return;
+                }
+                plainRate = Math.max(1L, rate);
+                log.info(String.format(Locale.ENGLISH, "Without MODE Z from %s: %,d bytes/sec", server, plainRate));
+            }
+            if (!decided && (ratio > INCOMPRESSIBLE_RATIO || (modeZRate != 0 && plainRate != 0))) {
+                decided = true;
+                decidedNanos = System.nanoTime();
+                decidedTransfers = 0;
+                log.info("{} MODE Z for transfers from {}", decide() ? "Using" : "Not using", server);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPListParseException;
+
+/**
+ * Lists a directory by its absolute path.
+ *
+ * It uses "MLSD &lt;path&gt;" which returns type, size and modify facts in a machine-readable
+ * format without changing the working directory. If the server rejects MLSD as an unknown or
+ * unimplemented command (500, 501, 502 or 504), it changes the working directory and uses LIST
+ * from then on. Some servers reply 550 instead, which also means a missing directory, so LIST is
+ * tried for the directory, and used from then on if it succeeds. This doesn't send FEAT, whose
+ * features ftp4j already reads at login without exposing MLSD support.
+ *
+ * If a {@link ListingCache} is given, directories answered by the cache are not listed,
+ * and the other directories are stored to it.
+ */
+class DirectoryLister
+{
+    private final Logger log;
+    private final Optional<ListingCache> cache;
+    private volatile boolean useMlsd;
+
+    private DirectoryLister(final Logger log, final Optional<ListingCache> cache, final boolean useMlsd)
+    {
+        this.log = log;
+        this.cache = cache;
+        this.useMlsd = useMlsd;
+    }
+
+    static DirectoryLister create(final Logger log)
+    {
+        return create(log, Optional.<ListingCache>empty());
+    }
+
+    static DirectoryLister create(final Logger log, final Optional<ListingCache> cache)
+    {
+        return new DirectoryLister(log, cache, true);
+    }
+
+    /**
+     * Resolves {@code path} against the home directory if it's relative.
+     */
+    static String resolve(final String homeDirectory, final String path)
+    {
+        if (path.startsWith("/")) {
+            return path;
+        }
+        return homeDirectory.endsWith("/") ? homeDirectory + path : homeDirectory + "/" + path;
+    }
+
+    /**
+     * Returns the modify time of a listed entry in epoch milliseconds, or -1 if unknown.
+     */
+    static long modifiedTimeOf(final FTPFile file)
+    {
+        final Date modified = file.getModifiedDate();
+        return modified == null ? -1L : modified.getTime();
+    }
+
+    /**
+     * Returns true if the modify time of a listed entry is exact. A time parsed from LIST has
+     * minute precision, or day precision with an inferred year for an old file.
+     */
+    static boolean hasExactModifiedTime(final FTPFile file)
+    {
+        return !(file instanceof ListedFile);
+    }
+
+    /**
+     * Lists the directory at {@code absolutePath}. The working directory may be changed.
+     */
+    FTPFile[] list(final FTPClient client, final String absolutePath)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        return list(client, absolutePath, -1L);
+    }
+
+    /**
+     * Lists the directory at {@code absolutePath} whose modify time reported by its parent is
+     * {@code modifiedTime} (-1 if unknown). The cached listing is returned if it's still valid.
+     */
+    FTPFile[] list(final FTPClient client, final String absolutePath, final long modifiedTime)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        if (!cache.isPresent()) {
+            return listRemote(client, absolutePath);
+        }
+        final FTPFile[] cached = cache.get().lookup(absolutePath, modifiedTime);
+        if (cached != null) {
+            return cached;
+        }
+        final FTPFile[] files = listRemote(client, absolutePath);
+        cache.get().put(absolutePath, modifiedTime, files);
+        return files;
+    }
+
+    private FTPFile[] listRemote(final FTPClient client, final String absolutePath)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        if (useMlsd) {
+            try {
+                client.setMLSDPolicy(FTPClient.MLSD_ALWAYS);
+                return withoutDotEntries(client.list(absolutePath));
+            }
+            catch (final FTPException ex) {
+                if (ex.getCode() == 550) {
+                    // throws if the directory is missing
+                    final FTPFile[] files = listByList(client, absolutePath);
+                    disableMlsd(ex);
+                    return files;
+                }
+                if (ex.getCode() != 500 && ex.getCode() != 501 && ex.getCode() != 502 && ex.getCode() != 504) {
+                    throw ex;
+                }
+                // not implemented, or not advertised by the server
+                disableMlsd(ex);
+            }
+        }
+        return listByList(client, absolutePath);
+    }
+
+    private FTPFile[] listByList(final FTPClient client, final String absolutePath)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        // a pooled connection may have been used for MLSD
+        client.setMLSDPolicy(FTPClient.MLSD_NEVER);
+        client.changeDirectory(absolutePath);
+        return toListedFiles(client.list());
+    }
+
+    private void disableMlsd(final FTPException ex)
+    {
+        if (useMlsd) {
+            log.info("MLSD is not available ({} {}). Falling back to LIST", ex.getCode(), ex.getMessage());
+            useMlsd = false;
+        }
+    }
+
+    static FTPFile[] toListedFiles(final FTPFile[] files)
+    {
+        final FTPFile[] result = new FTPFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final ListedFile listed = new ListedFile();
+            listed.setName(files[i].getName());
+            listed.setType(files[i].getType());
+            listed.setSize(files[i].getSize());
+            listed.setModifiedDate(files[i].getModifiedDate());
+            listed.setLink(files[i].getLink());
+            result[i] = listed;
+        }
+        return result;
+    }
+
+    private static FTPFile[] withoutDotEntries(final FTPFile[] files)
+    {
+        final List<FTPFile> result = new ArrayList<>(files.length);
+        for (final FTPFile file : files) {
+            if (!file.getName().equals(".") && !file.getName().equals("..")) {
+                result.add(file);
+            }
+        }
+        return result.toArray(new FTPFile[result.size()]);
+    }
+
+    /**
+     * An entry parsed from LIST, whose modify time is not exact.
+     */
+    static class ListedFile
+            extends FTPFile
+    {
+    }
+}
@@ -0,0 +1,76 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Groups consecutive files into tasks so that many small files don't become many tasks.
+ */
+class FileGroupPlanner
+{
+    private FileGroupPlanner()
+    {
+        // No instantiation.
+    }
+
+    /**
+     * Returns the index of the first file of each task. Task {@code i} reads files from
+     * {@code offsets[i]} (inclusive) to {@code offsets[i + 1]} (exclusive).
+     *
+     * A task is closed when it has {@code maxFilesPerTask} files, or when adding the next file
+     * would exceed {@code targetBytesPerTask}. A file larger than the target gets its own task.
+     */
+    static List<Integer> plan(final List<RemoteFile> files, final int maxFilesPerTask, final Optional<Long> targetBytesPerTask)
+    {
+        final List<Integer> offsets = new ArrayList<>();
+        int filesInTask = 0;
+        long bytesInTask = 0;
+        for (int i = 0; i < files.size(); i++) {
+            final long size = Math.max(files.get(i).getSize(), 0L);
+            final boolean full = filesInTask >= maxFilesPerTask
+                || (targetBytesPerTask.isPresent() && bytesInTask + size > targetBytesPerTask.get());
+            if (filesInTask == 0 || full) {
+                offsets.add(i);
+                filesInTask = 0;
+                bytesInTask = 0;
+            }
+            filesInTask++;
+            bytesInTask += size;
+        }
+        return Collections.unmodifiableList(offsets);
+    }
+
+    /**
+     * Returns the offsets to store in the task, or an empty list if every task reads one file,
+     * so that the task source doesn't carry an offset per file.
+     */
+    static List<Integer> compact(final List<Integer> offsets, final int fileCount)
+    {
+        return offsets.size() < fileCount ? offsets : Collections.<Integer>emptyList();
+    }
+
+    /**
+     * Returns the index of the first file read by the task.
+     */
+    static int firstFileOfTask(final List<Integer> offsets, final int taskIndex)
+    {
+        if (offsets == null || offsets.isEmpty()) {
+            return taskIndex;
+        }
+        return offsets.get(taskIndex);
+    }
+
+    /**
+     * Returns the files read by the task. If the files are not grouped, a task reads one file.
+     */
+    static List<String> filesOfTask(final List<String> files, final List<Integer> offsets, final int taskIndex)
+    {
+        if (offsets == null || offsets.isEmpty()) {
+            return Collections.singletonList(files.get(taskIndex));
+        }
+        final int end = taskIndex + 1 < offsets.size() ? offsets.get(taskIndex + 1) : files.size();
+        return files.subList(offsets.get(taskIndex), end);
+    }
+}
@@ -0,0 +1,286 @@
+package org.embulk.input.ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Compact encoding of the files of a transaction and their ranges, which is put in the task
+ * source instead of a JSON array of paths.
+ *
+ * Files are stored in the order of the tasks, in blocks of {@value #BLOCK_ENTRIES} files. In a
+ * block, each path is stored as the length of the prefix shared with the previous path and the
+ * rest. The offsets of the blocks are stored at the head, so a task decodes only the blocks of its
+ * own files. The encoding is stored in the task source as Base64, and a range of it is decoded
+ * without decoding the rest, or it's spilled to a local file if it's large.
+ */
+class FileList
+{
+    private static final int MAGIC = 0x4546544c;  // "EFTL"
+    private static final int VERSION = 1;
+
+    private static final int BLOCK_ENTRIES = 64;
+
+    // magic, version, count, ranges flag and block count
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 1 + 4;
+
+    private final Source source;
+    private final int count;
+    private final boolean hasRanges;
+    private final int[] blockOffsets;
+    private final long dataOffset;
+    private final long dataLength;
+
+    private FileList(final Source source)
+    {
+        this.source = source;
+        final ByteBuffer header = ByteBuffer.wrap(source.read(0, HEADER_BYTES));
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IllegalStateException("Unknown file list format");
+        }
+        this.count = header.getInt();
+        this.hasRanges = header.get() != 0;
+        this.blockOffsets = new int[header.getInt()];
+        final ByteBuffer offsets = ByteBuffer.wrap(source.read(HEADER_BYTES, blockOffsets.length * 4 + 4));
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = offsets.getInt();
+        }
+        this.dataLength = offsets.getInt();
+        this.dataOffset = HEADER_BYTES + blockOffsets.length * 4L + 4;
+    }
+
+    /**
+     * Encodes paths and their ranges. {@code ranges} has the start and the end of each file, or is
+     * empty if files are not split.
+     */
+    static byte[] encode(final List<String> paths, final List<Long> ranges)
+    {
+        final boolean hasRanges = !ranges.isEmpty();
+        final List<Integer> blockOffsets = new ArrayList<>();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] previous = new byte[0];
+        for (int i = 0; i < paths.size(); i++) {
+            final byte[] path = paths.get(i).getBytes(StandardCharsets.UTF_8);
+            final int shared;
+            if (i % BLOCK_ENTRIES == 0) {
+                blockOffsets.add(data.size());
+                shared = 0;
+            }
+            else {
+                shared = IncrementalState.sharedPrefixLength(previous, path);
+            }
+            writeVarLong(data, shared);
+            writeVarLong(data, path.length - shared);
+            data.write(path, shared, path.length - shared);
+            if (hasRanges) {
+                writeVarLong(data, ranges.get(i * 2));
+                // +1 so that -1 for the end of the file is 0
+                writeVarLong(data, ranges.get(i * 2 + 1) + 1);
+            }
+            previous = path;
+        }
+
+        final ByteBuffer encoded = ByteBuffer.allocate(HEADER_BYTES + blockOffsets.size() * 4 + 4 + data.size());
+        encoded.putInt(MAGIC).putInt(VERSION).putInt(paths.size()).put((byte) (hasRanges ? 1 : 0)).putInt(blockOffsets.size());
+        for (final int offset : blockOffsets) {
+            encoded.putInt(offset);
+        }
+        encoded.putInt(data.size());
+        encoded.put(data.toByteArray());
+        return encoded.array();
+    }
+
+    static String toBase64(final byte[] encoded)
+    {
+        return Base64.getEncoder().encodeToString(encoded);
+    }
+
+    /**
+     * Writes the encoded list to a new file in {@code directory}, and returns its path.
+     */
+    static Path spill(final Path directory, final byte[] encoded)
+    {
+        try {
+            Files.createDirectories(directory);
+            final Path file = Files.createTempFile(directory, "embulk-input-ftp-files-", ".bin");
+            Files.write(file, encoded);
+            return file;
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException("Failed to write file list to " + directory, ex);
+        }
+    }
+
+    static FileList ofBase64(final String base64)
+    {
+        return new FileList(new Base64Source(base64));
+    }
+
+    static FileList ofFile(final String file)
+    {
+        return new FileList(new FileSource(Paths.get(file)));
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * Decodes the files from {@code from} (inclusive) to {@code to} (exclusive), reading only
+     * the blocks which contain them.
+     */
+    List<FtpFileInputPlugin.InputFile> slice(final int from, final int to)
+    {
+        final List<FtpFileInputPlugin.InputFile> files = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) {
+            return files;
+        }
+        final int firstBlock = from / BLOCK_ENTRIES;
+        final int lastBlock = (to - 1) / BLOCK_ENTRIES;
+        final long start = blockOffsets[firstBlock];
+        final long end = lastBlock + 1 < blockOffsets.length ? blockOffsets[lastBlock + 1] : dataLength;
+        final byte[] data = source.read(dataOffset + start, (int) (end - start));
+
+        final int[] cursor = {0};
+        byte[] previous = new byte[0];
+        for (int i = firstBlock * BLOCK_ENTRIES; i < to; i++) {
+            previous = readPath(data, cursor, previous);
+            long rangeStart = 0L;
+            long rangeEnd = -1L;
+            if (hasRanges) {
+                rangeStart = readVarLong(data, cursor);
+                rangeEnd = readVarLong(data, cursor) - 1;
+            }
+            if (i >= from) {
+                files.add(new FtpFileInputPlugin.InputFile(new String(previous, StandardCharsets.UTF_8), rangeStart, rangeEnd));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the path which sorts last, or null if the list is empty.
+     */
+    String lastPath()
+    {
+        final byte[] data = source.read(dataOffset, (int) dataLength);
+        final int[] cursor = {0};
+        byte[] previous = new byte[0];
+        String last = null;
+        for (int i = 0; i < count; i++) {
+            previous = readPath(data, cursor, previous);
+            if (hasRanges) {
+                readVarLong(data, cursor);
+                readVarLong(data, cursor);
+            }
+            final String path = new String(previous, StandardCharsets.UTF_8);
+            if (last == null || path.compareTo(last) > 0) {
+                last = path;
+            }
+        }
+        return last;
+    }
+
+    private static byte[] readPath(final byte[] data, final int[] cursor, final byte[] previous)
+    {
+        final int shared = (int) readVarLong(data, cursor);
+        final int suffix = (int) readVarLong(data, cursor);
+        final byte[] path = new byte[shared + suffix];
+        System.arraycopy(previous, 0, path, 0, shared);
+        System.arraycopy(data, cursor[0], path, shared, suffix);
+        cursor[0] += suffix;
+        return path;
+    }
+
+    private static void writeVarLong(final ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(final byte[] data, final int[] cursor)
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = data[cursor[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private interface Source
+    {
+        byte[] read(long position, int length);
+    }
+
+    // decodes only the 4-character groups of Base64 which cover the range
+    private static class Base64Source
+            implements Source
+    {
+        private final String base64;
+
+        Base64Source(final String base64)
+        {
+            this.base64 = base64;
+        }
+
+        @Override
+        public byte[] read(final long position, final int length)
+        {
+            if (length == 0) {
+                return new byte[0];
+            }
+            final int firstGroup = (int) (position / 3);
+            final int endGroup = (int) ((position + length + 2) / 3);
+            final byte[] decoded = Base64.getDecoder().decode(
+                    base64.substring(firstGroup * 4, Math.min(base64.length(), endGroup * 4)));
+            final byte[] bytes = new byte[length];
+            System.arraycopy(decoded, (int) (position - firstGroup * 3L), bytes, 0, length);
+            return bytes;
+        }
+    }
+
+    private static class FileSource
+            implements Source
+    {
+        private final Path file;
+
+        FileSource(final Path file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public byte[] read(final long position, final int length)
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file list " + file);
+                    }
+                }
+                return buffer.array();
+            }
+            catch (final IOException ex) {
+                throw new UncheckedIOException("Failed to read file list " + file, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.embulk.input.ftp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the download of a file, from the first request to the end of the file.
+ *
+ * A segmented download writes to it from several transfer threads at once.
+ */
+class FileTransferMetrics
+{
+    private final String path;
+    private final HostTransferStats host;
+    private final long startNanos;
+    private final RateMeter rate;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger reopens = new AtomicInteger();
+    private final AtomicLong loginNanos = new AtomicLong();
+    private final AtomicLong retryNanos = new AtomicLong();
+    private final AtomicLong throttleNanos = new AtomicLong();
+
+    // guarded by this
+    private long firstByteNanos = -1L;
+    private long endNanos = -1L;
+    private boolean completed;
+    private boolean modeZ;
+    private double compressionRatio = -1.0;
+
+    FileTransferMetrics(final String path, final HostTransferStats host)
+    {
+        this(path, host, System.nanoTime());
+    }
+
+    FileTransferMetrics(final String path, final HostTransferStats host, final long startNanos)
+    {
+        this.path = path;
+        this.host = host;
+        this.startNanos = startNanos;
+        this.rate = new RateMeter(startNanos);
+    }
+
+    String getPath()
+    {
+        return path;
+    }
+
+    void transferStarted()
+    {
+        host.transferStarted();
+    }
+
+    void transferEnded()
+    {
+        host.transferEnded();
+    }
+
+    void transferred(final int length)
+    {
+        transferred(length, System.nanoTime());
+    }
+
+    void transferred(final int length, final long nowNanos)
+    {
+        synchronized (this) {
+            if (firstByteNanos < 0) {
+                firstByteNanos = nowNanos;
+            }
+        }
+        bytes.addAndGet(length);
+        rate.add(length, nowNanos);
+        host.transferred(length, nowNanos);
+    }
+
+    void reopened()
+    {
+        reopens.incrementAndGet();
+    }
+
+    /**
+     * Adds the time spent to connect and log in. It's 0 when a pooled connection is reused.
+     */
+    void addLoginNanos(final long nanos)
+    {
+        loginNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Adds the time from a failure to the restart of the download, including waits between retries.
+     */
+    void addRetryNanos(final long nanos)
+    {
+        retryNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Adds the time the transfer waited for the bandwidth limit, which is included in the duration.
+     */
+    void addThrottleNanos(final long nanos)
+    {
+        if (nanos > 0) {
+            throttleNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Records whether a transfer of the file used MODE Z, and its compression ratio, which is
+     * negative if it's unknown.
+     */
+    synchronized void compressionUsed(final boolean modeZ, final double ratio)
+    {
+        if (modeZ) {
+            this.modeZ = true;
+            if (ratio >= 0) {
+                compressionRatio = ratio;
+            }
+        }
+    }
+
+    synchronized boolean isFinished()
+    {
+        return endNanos >= 0;
+    }
+
+    void finish(final boolean completed)
+    {
+        finish(completed, System.nanoTime());
+    }
+
+    /**
+     * Stops the clock. Only the first call has effect.
+     */
+    synchronized void finish(final boolean completed, final long nowNanos)
+    {
+        if (endNanos >= 0) {
+            return;
+        }
+        endNanos = nowNanos;
+        this.completed = completed;
+        if (completed) {
+            host.fileCompleted();
+        }
+    }
+
+    /**
+     * Returns the metrics as a map for a task report. Durations are in milliseconds and
+     * throughputs are in bytes per second. {@code ttfb_millis} is missing if no byte arrived, and
+     * {@code compression_ratio} is missing unless MODE Z was used and the compressed bytes were counted.
+     */
+    synchronized Map<String, Object> toMap()
+    {
+        final long end = endNanos >= 0 ? endNanos : System.nanoTime();
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("path", path);
+        map.put("completed", completed);
+        map.put("bytes", bytes.get());
+        map.put("duration_millis", TimeUnit.NANOSECONDS.toMillis(end - startNanos));
+        if (firstByteNanos >= 0) {
+            map.put("ttfb_millis", TimeUnit.NANOSECONDS.toMillis(firstByteNanos - startNanos));
+        }
+        map.put("avg_bytes_per_sec", RateMeter.rate(bytes.get(), end - startNanos));
+        map.put("peak_bytes_per_sec", rate.getPeakRate(end));
+        map.put("reopens", reopens.get());
+        map.put("login_millis", TimeUnit.NANOSECONDS.toMillis(loginNanos.get()));
+        map.put("retry_millis", TimeUnit.NANOSECONDS.toMillis(retryNanos.get()));
+        map.put("throttle_millis", TimeUnit.NANOSECONDS.toMillis(throttleNanos.get()));
+        map.put("compression", modeZ ? "mode_z" : "none");
+        if (compressionRatio >= 0) {
+            map.put("compression_ratio", Math.round(compressionRatio * 1000) / 1000.0);
+        }
+        return map;
+    }
+}
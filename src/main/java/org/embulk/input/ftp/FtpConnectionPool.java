@@ -0,0 +1,490 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * JVM-wide pool of logged-in FTP connections.
+ *
+ * Connections are shared between the transaction and tasks running in the same JVM
+ * if they connect to the same server with the same user, transfer and TLS settings.
+ *
+ * If {@code connection_pool_max_total} is set, at most that number of connections are open for
+ * each of them, borrowed or idle. Listing, tasks, prefetch and segments all count, so that they
+ * stay under the login limit of the server. A borrower waits for a connection to be released.
+ * Prefetch and segments don't wait, because the task which would wait for them holds a
+ * connection. The crawler of streamed files is not limited, because tasks waiting for its files
+ * hold their connections.
+ */
+class FtpConnectionPool
+{
+    private static final FtpConnectionPool INSTANCE = new FtpConnectionPool();
+
+    private static final long EVICTION_INTERVAL_MILLIS = 10 * 1000;
+
+    private final Logger log = LoggerFactory.getLogger(FtpConnectionPool.class);
+
+    // guarded by this
+    private final Map<Key, Partition> partitions = new HashMap<>();
+    private final Map<FTPClient, Key> borrowed = new IdentityHashMap<>();
+    private ScheduledExecutorService evictor;
+
+    static FtpConnectionPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns an idle connection which passed a NOOP health check, or creates a new one.
+     * If {@code maxTotal} connections are open, waits until one is released.
+     */
+    FTPClient borrow(final Key key, final Supplier<FTPClient> factory)
+    {
+        final FTPClient client = borrow(key, factory, System.currentTimeMillis() + key.maxWaitMillis, true);
+        if (client == null) {
+            throw waitTimedOut(key);
+        }
+        return client;
+    }
+
+    /**
+     * Returns an idle or new connection like {@link #borrow}, or null without waiting if
+     * {@code maxTotal} connections are open.
+     */
+    FTPClient tryBorrow(final Key key, final Supplier<FTPClient> factory)
+    {
+        return borrow(key, factory, 0L, true);
+    }
+
+    /**
+     * Returns an idle or new connection like {@link #borrow}, but creates a new one even if
+     * {@code maxTotal} connections are open.
+     */
+    FTPClient borrowUnlimited(final Key key, final Supplier<FTPClient> factory)
+    {
+        return borrow(key, factory, 0L, false);
+    }
+
+    /**
+     * Creates a new connection without reusing idle ones, which may be broken by the failure of
+     * another connection to the same server. It's returned to the pool as a borrowed one.
+     * If {@code maxTotal} connections are open, an idle one is disconnected, or waits until one
+     * is released.
+     */
+    FTPClient create(final Key key, final Supplier<FTPClient> factory)
+    {
+        if (!reserve(key, System.currentTimeMillis() + key.maxWaitMillis)) {
+            throw waitTimedOut(key);
+        }
+        return connect(key, factory);
+    }
+
+    private FTPClient borrow(final Key key, final Supplier<FTPClient> factory, final long deadline, final boolean limited)
+    {
+        while (true) {
+            final Lease lease = pollIdle(key, deadline, limited);
+            if (lease == null) {
+                return null;
+            }
+            if (lease.idle == null) {
+                return connect(key, factory);
+            }
+            if (isHealthy(lease.idle)) {
+                log.info("Reusing pooled FTP connection to {}:{}", key.host, key.port);
+                return lease.idle;
+            }
+            invalidate(lease.idle);
+        }
+    }
+
+    // connects on a slot reserved by pollIdle or reserve
+    private FTPClient connect(final Key key, final Supplier<FTPClient> factory)
+    {
+        final FTPClient client;
+        try {
+            client = factory.get();
+        }
+        catch (final RuntimeException ex) {
+            synchronized (this) {
+                closed(key);
+            }
+            throw ex;
+        }
+        synchronized (this) {
+            borrowed.put(client, key);
+        }
+        return client;
+    }
+
+    private static RuntimeException waitTimedOut(final Key key)
+    {
+        return new RuntimeException(String.format(Locale.ENGLISH,
+                "Timed out waiting for one of %d connections to %s to be released. Increase \"connection_pool_max_total\".",
+                key.maxTotal, key));
+    }
+
+    /**
+     * Returns a connection to the pool. The connection must not have an ongoing transfer.
+     */
+    void release(final FTPClient client)
+    {
+        final FTPClient excess;
+        synchronized (this) {
+            final Key key = borrowed.remove(client);
+            if (key == null) {
+                excess = client;
+            }
+            else if (!client.isConnected() || key.maxIdle <= 0) {
+                excess = client;
+                closed(key);
+            }
+            else {
+                final Partition partition = partitionOf(key);
+                partition.idle.addFirst(new IdleConnection(client, System.currentTimeMillis() + key.idleTimeoutMillis));
+                if (partition.idle.size() > key.maxIdle) {
+                    excess = partition.idle.removeLast().client;
+                    closed(key);
+                }
+                else {
+                    excess = null;
+                }
+                startEvictor();
+                notifyAll();
+            }
+        }
+        if (excess != null) {
+            FtpFileInputPlugin.disconnectClient(excess);
+        }
+    }
+
+    /**
+     * Disconnects a connection which is in an unknown state instead of returning it to the pool.
+     */
+    void invalidate(final FTPClient client)
+    {
+        synchronized (this) {
+            final Key key = borrowed.remove(client);
+            if (key != null) {
+                closed(key);
+            }
+        }
+        FtpFileInputPlugin.disconnectClient(client);
+    }
+
+    /**
+     * Takes an idle connection which is not expired, or reserves a slot for a new connection if
+     * less than {@code maxTotal} connections are open or {@code limited} is false. Waits until
+     * {@code deadline} for either. Returns null if it timed out.
+     */
+    private Lease pollIdle(final Key key, final long deadline, final boolean limited)
+    {
+        final List<FTPClient> expired = new ArrayList<>();
+        Lease lease = null;
+        synchronized (this) {
+            final Partition partition = partitionOf(key);
+            while (true) {
+                final long now = System.currentTimeMillis();
+                while (lease == null && !partition.idle.isEmpty()) {
+                    final IdleConnection idle = partition.idle.pollFirst();
+                    if (idle.expiresAt > now) {
+                        borrowed.put(idle.client, key);
+                        lease = new Lease(idle.client);
+                    }
+                    else {
+                        expired.add(idle.client);
+                        partition.open--;
+                    }
+                }
+                if (lease != null) {
+                    break;
+                }
+                if (!limited || key.maxTotal <= 0 || partition.open < key.maxTotal) {
+                    partition.open++;
+                    lease = new Lease(null);
+                    break;
+                }
+                if (!awaitRelease(deadline - now)) {
+                    break;
+                }
+            }
+        }
+        // QUIT may wait for the server. don't block other borrowers and releasers meanwhile.
+        for (final FTPClient idle : expired) {
+            FtpFileInputPlugin.disconnectClient(idle);
+        }
+        return lease;
+    }
+
+    /**
+     * Reserves a slot for a new connection. If {@code maxTotal} connections are open, the least
+     * recently released idle one is disconnected, or waits until {@code deadline} for a
+     * connection to be closed. Returns false if it timed out.
+     */
+    private boolean reserve(final Key key, final long deadline)
+    {
+        FTPClient evicted = null;
+        boolean reserved = false;
+        synchronized (this) {
+            final Partition partition = partitionOf(key);
+            while (true) {
+                if (key.maxTotal <= 0 || partition.open < key.maxTotal) {
+                    partition.open++;
+                    reserved = true;
+                    break;
+                }
+                if (!partition.idle.isEmpty()) {
+                    // takes over the slot of the idle connection
+                    evicted = partition.idle.removeLast().client;
+                    reserved = true;
+                    break;
+                }
+                if (!awaitRelease(deadline - System.currentTimeMillis())) {
+                    break;
+                }
+            }
+        }
+        if (evicted != null) {
+            FtpFileInputPlugin.disconnectClient(evicted);
+        }
+        return reserved;
+    }
+
+    // guarded by this. returns false if it timed out.
+    private boolean awaitRelease(final long timeoutMillis)
+    {
+        if (timeoutMillis <= 0) {
+            return false;
+        }
+        try {
+            wait(timeoutMillis);
+            return true;
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // guarded by this. called when a connection of the key is disconnected.
+    private void closed(final Key key)
+    {
+        final Partition partition = partitions.get(key);
+        if (partition != null) {
+            partition.open--;
+            notifyAll();
+        }
+    }
+
+    private static boolean isHealthy(final FTPClient client)
+    {
+        if (!client.isConnected()) {
+            return false;
+        }
+        try {
+            client.noop();
+            return true;
+        }
+        catch (final IllegalStateException | IOException | FTPException | FTPIllegalReplyException ex) {
+            return false;
+        }
+    }
+
+    private Partition partitionOf(final Key key)
+    {
+        Partition partition = partitions.get(key);
+        if (partition == null) {
+            partition = new Partition();
+            partitions.put(key, partition);
+        }
+        return partition;
+    }
+
+    private void startEvictor()
+    {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "embulk-input-ftp-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    evictExpired();
+                }
+            }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictExpired()
+    {
+        final Deque<FTPClient> expired = new ArrayDeque<>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (final Partition partition : partitions.values()) {
+                final Iterator<IdleConnection> it = partition.idle.iterator();
+                while (it.hasNext()) {
+                    final IdleConnection idle = it.next();
+                    if (idle.expiresAt <= now) {
+                        expired.add(idle.client);
+                        it.remove();
+                        partition.open--;
+                    }
+                }
+            }
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (final FTPClient client : expired) {
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+    }
+
+    private static class Partition
+    {
+        // most recently released first
+        private final Deque<IdleConnection> idle = new ArrayDeque<>();
+        // borrowed, idle and connecting ones
+        private int open;
+    }
+
+    private static class Lease
+    {
+        // null if a slot for a new connection is reserved
+        private final FTPClient idle;
+
+        Lease(final FTPClient idle)
+        {
+            this.idle = idle;
+        }
+    }
+
+    private static class IdleConnection
+    {
+        private final FTPClient client;
+        private final long expiresAt;
+
+        IdleConnection(final FTPClient client, final long expiresAt)
+        {
+            this.client = client;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Identifies connections which can be used interchangeably.
+     */
+    static class Key
+    {
+        private final String host;
+        private final int port;
+        private final String user;
+        private final String password;
+        private final int security;
+        private final int type;
+        private final boolean passive;
+        // TLS settings, which are null without TLS
+        private final Boolean sslVerify;
+        private final boolean sslVerifyHostname;
+        private final String sslTrustedCaCertFile;
+        private final String sslTrustedCaCertData;
+
+        // pool settings of the latest borrower. not a part of the identity.
+        private final int maxIdle;
+        private final long idleTimeoutMillis;
+        private final int maxTotal;
+        private final long maxWaitMillis;
+
+        Key(final String host, final int port, final String user, final String password,
+                final int security, final int type, final boolean passive,
+                final Boolean sslVerify, final boolean sslVerifyHostname,
+                final String sslTrustedCaCertFile, final String sslTrustedCaCertData,
+                final int maxIdle, final long idleTimeoutMillis, final int maxTotal, final long maxWaitMillis)
+        {
+            this.host = host;
+            this.port = port;
+            this.user = user;
+            this.password = password;
+            this.security = security;
+            this.type = type;
+            this.passive = passive;
+            this.sslVerify = sslVerify;
+            this.sslVerifyHostname = sslVerifyHostname;
+            this.sslTrustedCaCertFile = sslTrustedCaCertFile;
+            this.sslTrustedCaCertData = sslTrustedCaCertData;
+            this.maxIdle = maxIdle;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.maxTotal = maxTotal;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        @Override
+        public boolean equals(final Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key o = (Key) other;
+            return host.equals(o.host) && port == o.port
+                && Objects.equals(user, o.user) && Objects.equals(password, o.password)
+                && security == o.security && type == o.type && passive == o.passive
+                && Objects.equals(sslVerify, o.sslVerify) && sslVerifyHostname == o.sslVerifyHostname
+                && Objects.equals(sslTrustedCaCertFile, o.sslTrustedCaCertFile)
+                && Objects.equals(sslTrustedCaCertData, o.sslTrustedCaCertData);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(host, port, user, security, type, passive, sslVerify, sslVerifyHostname);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ROOT, "%s@%s:%d", user, host, port);
+        }
+
+        /**
+         * Returns the user, the server and the TLS settings like "user@host:21" or
+         * "user@host:990 ftps/1b2c3d4e", which names the state kept for each server in the JVM.
+         * The TLS settings are hashed so that CA certificates don't appear in it.
+         */
+        String getName()
+        {
+            if (security == FTPClient.SECURITY_FTP) {
+                return toString();
+            }
+            return String.format(Locale.ROOT, "%s %s/%08x", this, security == FTPClient.SECURITY_FTPS ? "ftps" : "ftpes",
+                    Objects.hash(sslVerify, sslVerifyHostname, sslTrustedCaCertFile, sslTrustedCaCertData));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.embulk.input.ftp;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+
+import org.embulk.config.ConfigException;
+
+import it.sauronsoftware.ftp4j.FTPException;
+
+/**
+ * Classifies failures of FTP requests to decide how to retry them.
+ *
+ * A reply with a 4xx code is a transient failure, which is retried on the same connection.
+ * A reply with a 5xx code is a permanent failure, such as a missing file or a denied permission,
+ * which a retry doesn't fix. Other failures, such as an I/O error, a broken reply or a failed
+ * data transfer, leave the control connection broken or out of sync with the server, and are
+ * retried on a new connection.
+ */
+final class FtpErrors
+{
+    // 421 Service not available, closing control connection
+    private static final int SERVICE_NOT_AVAILABLE = 421;
+
+    private FtpErrors()
+    {
+    }
+
+    static boolean isRetryable(final Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FTPException) {
+                return !isPermanent(((FTPException) cause).getCode());
+            }
+            if (cause instanceof ConfigException || cause instanceof InterruptedException
+                    || cause instanceof InterruptedIOException || cause instanceof ClosedByInterruptException) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isPermanent(final int replyCode)
+    {
+        return replyCode >= 500 && replyCode < 600;
+    }
+
+    /**
+     * Returns true if the server replied to the failed request and the control connection can
+     * be used for the next request.
+     */
+    static boolean isControlConnectionAlive(final Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FTPException) {
+                return ((FTPException) cause).getCode() != SERVICE_NOT_AVAILABLE;
+            }
+        }
+        return false;
+    }
+}
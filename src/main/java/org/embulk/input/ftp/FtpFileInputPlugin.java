@@ -1,20 +1,41 @@
 package org.embulk.input.ftp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import org.embulk.config.ConfigDiff;
@@ -22,6 +43,8 @@ import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInputPlugin;
 import org.embulk.spi.TransactionalFileInput;
@@ -44,7 +67,6 @@ import org.slf4j.LoggerFactory;
 
 import it.sauronsoftware.ftp4j.FTPAbortedException;
 import it.sauronsoftware.ftp4j.FTPClient;
-import it.sauronsoftware.ftp4j.FTPCommunicationListener;
 import it.sauronsoftware.ftp4j.FTPConnector;
 import it.sauronsoftware.ftp4j.FTPDataTransferException;
 import it.sauronsoftware.ftp4j.FTPDataTransferListener;
@@ -62,6 +84,8 @@ public class FtpFileInputPlugin
     private static final int FTP_DEFULAT_PORT = 21;
     private static final int FTPS_DEFAULT_PORT = 990;
     private static final int FTPES_DEFAULT_PORT = 21;
+    // a segment is held in memory until it's read, and several of them are in flight
+    private static final long MAX_DOWNLOAD_SEGMENT_SIZE = 64 * 1024 * 1024;
 
     public interface PluginTask
             extends Task, SSLPlugins.SSLPluginTask
@@ -77,10 +101,34 @@ public class FtpFileInputPlugin
         @ConfigDefault("\".*\"")
         String getPathMatchPattern();
 
+        @Config("path_match_pattern_anchored")
+        @ConfigDefault("false")
+        boolean getPathMatchPatternAnchored();
+
+        @Config("path_include_globs")
+        @ConfigDefault("[]")
+        List<String> getPathIncludeGlobs();
+
+        @Config("path_exclude_globs")
+        @ConfigDefault("[]")
+        List<String> getPathExcludeGlobs();
+
+        @Config("max_depth")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxDepth();
+
         @Config("incremental")
         @ConfigDefault("true")
         boolean getIncremental();
 
+        @Config("incremental_state_file")
+        @ConfigDefault("null")
+        Optional<String> getIncrementalStateFile();
+
+        @Config("incremental_seen_file")
+        @ConfigDefault("null")
+        Optional<String> getIncrementalSeenFile();
+
         @Config("host")
         String getHost();
 
@@ -116,9 +164,181 @@ public class FtpFileInputPlugin
         @ConfigDefault("false")
         boolean getStopWhenFileNotFound();
 
+        @Config("download_connections")
+        @ConfigDefault("1")
+        int getDownloadConnections();
+
+        @Config("download_segment_size")
+        @ConfigDefault("8388608")  // 8MB
+        long getDownloadSegmentSize();
+
+        @Config("download_segment_buffers")
+        @ConfigDefault("null")
+        Optional<Integer> getDownloadSegmentBuffers();
+
+        @Config("transfer_buffer_count")
+        @ConfigDefault("4")
+        int getTransferBufferCount();
+
+        @Config("transfer_buffer_size")
+        @ConfigDefault("65536")
+        int getTransferBufferSize();
+
+        @Config("transfer_direct_buffers")
+        @ConfigDefault("false")
+        boolean getTransferDirectBuffers();
+
+        @Config("copy_free_input")
+        @ConfigDefault("false")
+        boolean getCopyFreeInput();
+
+        @Config("transfer_max_threads")
+        @ConfigDefault("64")
+        int getTransferMaxThreads();
+
+        @Config("transfer_virtual_threads")
+        @ConfigDefault("false")
+        boolean getTransferVirtualThreads();
+
+        @Config("decompress_in_transfer")
+        @ConfigDefault("false")
+        boolean getDecompressInTransfer();
+
+        @Config("prefetch_files")
+        @ConfigDefault("0")
+        int getPrefetchFiles();
+
+        @Config("prefetch_max_bytes")
+        @ConfigDefault("67108864")  // 64MB
+        long getPrefetchMaxBytes();
+
+        @Config("connection_pool_max_idle")
+        @ConfigDefault("8")
+        int getConnectionPoolMaxIdle();
+
+        @Config("connection_pool_idle_timeout")
+        @ConfigDefault("60")
+        int getConnectionPoolIdleTimeout();
+
+        @Config("connection_pool_max_total")
+        @ConfigDefault("0")
+        int getConnectionPoolMaxTotal();
+
+        @Config("connection_pool_max_wait")
+        @ConfigDefault("600")
+        int getConnectionPoolMaxWait();
+
+        @Config("protocol_trace")
+        @ConfigDefault("\"errors\"")
+        String getProtocolTrace();
+
+        @Config("protocol_trace_lines")
+        @ConfigDefault("256")
+        int getProtocolTraceLines();
+
+        @Config("max_bytes_per_second")
+        @ConfigDefault("null")
+        Optional<Long> getMaxBytesPerSecond();
+
+        @Config("max_bytes_per_second_per_host")
+        @ConfigDefault("null")
+        Optional<Long> getMaxBytesPerSecondPerHost();
+
+        @Config("bandwidth_burst_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getBandwidthBurstBytes();
+
+        @Config("max_files_per_task")
+        @ConfigDefault("1")
+        int getMaxFilesPerTask();
+
+        @Config("target_bytes_per_task")
+        @ConfigDefault("null")
+        Optional<Long> getTargetBytesPerTask();
+
+        @Config("checkpoint_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getCheckpointBytes();
+
+        @Config("streaming_tasks")
+        @ConfigDefault("null")
+        Optional<Integer> getStreamingTasks();
+
+        @Config("file_list_spill_bytes")
+        @ConfigDefault("16777216")
+        long getFileListSpillBytes();
+
+        @Config("file_list_spill_directory")
+        @ConfigDefault("null")
+        Optional<String> getFileListSpillDirectory();
+
+        @Config("checkpoint_header_lines")
+        @ConfigDefault("0")
+        int getCheckpointHeaderLines();
+
+        @Config("compression")
+        @ConfigDefault("\"on\"")
+        String getCompression();
+
+        @Config("compression_path_pattern")
+        @ConfigDefault("null")
+        Optional<String> getCompressionPathPattern();
+
+        @Config("compression_probe_bytes")
+        @ConfigDefault("4194304")  // 4MB
+        long getCompressionProbeBytes();
+
+        @Config("maximum_retries")
+        @ConfigDefault("3")
+        int getMaximumRetries();
+
+        @Config("initial_retry_interval_millis")
+        @ConfigDefault("500")
+        int getInitialRetryIntervalMillis();
+
+        @Config("maximum_retry_interval_millis")
+        @ConfigDefault("30000")
+        int getMaximumRetryIntervalMillis();
+
+        @Config("listing_concurrency")
+        @ConfigDefault("1")
+        int getListingConcurrency();
+
+        @Config("listing_cache_file")
+        @ConfigDefault("null")
+        Optional<String> getListingCacheFile();
+
+        @Config("listing_cache_stable_seconds")
+        @ConfigDefault("86400")
+        long getListingCacheStableSeconds();
+
+        @Config("listing_cache_refresh")
+        @ConfigDefault("false")
+        boolean getListingCacheRefresh();
+
+        // files of task sources made by older versions. newer versions set the file list.
         List<String> getFiles();
         void setFiles(List<String> files);
 
+        // FileList encoded in Base64, or the path of the file it's spilled to
+        Optional<String> getFileList();
+        void setFileList(Optional<String> fileList);
+
+        Optional<String> getFileListFile();
+        void setFileListFile(Optional<String> file);
+
+        // index of the first file of each task
+        List<Integer> getTaskFileOffsets();
+        void setTaskFileOffsets(List<Integer> offsets);
+
+        // start and end of each file split by "checkpoint_bytes" in task sources made by older versions
+        List<Long> getFileRanges();
+        void setFileRanges(List<Long> ranges);
+
+        // id of the StreamingFileQueue if "streaming_tasks" is set
+        Optional<String> getStreamingQueueId();
+        void setStreamingQueueId(Optional<String> id);
+
         SSLPluginConfig getSSLConfig();
         void setSSLConfig(SSLPluginConfig config);
     }
@@ -131,6 +351,116 @@ public class FtpFileInputPlugin
 
         task.setSSLConfig(SSLPlugins.configure(task));
 
+        if (task.getDownloadConnections() < 1) {
+            throw new ConfigException("\"download_connections\" must be 1 or larger.");
+        }
+        if (task.getTransferBufferCount() < 1) {
+            throw new ConfigException("\"transfer_buffer_count\" must be 1 or larger.");
+        }
+        if (task.getTransferBufferSize() < 1) {
+            throw new ConfigException("\"transfer_buffer_size\" must be 1 or larger.");
+        }
+        if (task.getTransferMaxThreads() < 1) {
+            throw new ConfigException("\"transfer_max_threads\" must be 1 or larger.");
+        }
+        if (task.getTransferVirtualThreads() && !TransferThreads.isVirtualThreadSupported()) {
+            throw new ConfigException("\"transfer_virtual_threads\" requires Java 21 or later and a jar built with a JDK 21."
+                    + " Running on Java " + System.getProperty("java.version") + ".");
+        }
+        if (task.getPrefetchFiles() < 0) {
+            throw new ConfigException("\"prefetch_files\" must be 0 or larger.");
+        }
+        if (task.getConnectionPoolMaxTotal() < 0) {
+            throw new ConfigException("\"connection_pool_max_total\" must be 0 or larger.");
+        }
+        if (task.getConnectionPoolMaxWait() < 0) {
+            throw new ConfigException("\"connection_pool_max_wait\" must be 0 or larger.");
+        }
+        if (task.getCopyFreeInput() && task.getPrefetchFiles() > 0) {
+            throw new ConfigException("\"copy_free_input\" can't be used with \"prefetch_files\".");
+        }
+        if (task.getCopyFreeInput() && task.getDecompressInTransfer()) {
+            throw new ConfigException("\"copy_free_input\" can't be used with \"decompress_in_transfer\".");
+        }
+        if (task.getCopyFreeInput() && task.getDownloadConnections() > 1) {
+            throw new ConfigException("\"copy_free_input\" can't be used with \"download_connections\" larger than 1.");
+        }
+        if (task.getListingConcurrency() < 1) {
+            throw new ConfigException("\"listing_concurrency\" must be 1 or larger.");
+        }
+        if (task.getMaxFilesPerTask() < 1) {
+            throw new ConfigException("\"max_files_per_task\" must be 1 or larger.");
+        }
+        if (task.getMaxDepth().isPresent() && task.getMaxDepth().get() < 0) {
+            throw new ConfigException("\"max_depth\" must be 0 or larger.");
+        }
+        if (task.getDownloadSegmentSize() <= 0 || task.getDownloadSegmentSize() > MAX_DOWNLOAD_SEGMENT_SIZE) {
+            throw new ConfigException("\"download_segment_size\" must be between 1 and " + MAX_DOWNLOAD_SEGMENT_SIZE + ".");
+        }
+        if (task.getCheckpointBytes().isPresent()) {
+            if (task.getCheckpointBytes().get() < 1) {
+                throw new ConfigException("\"checkpoint_bytes\" must be 1 or larger.");
+            }
+            if (task.getAsciiMode()) {
+                // offsets in ASCII mode don't match the bytes received
+                throw new ConfigException("\"checkpoint_bytes\" can't be used with \"ascii_mode\".");
+            }
+        }
+        if (task.getCheckpointHeaderLines() < 0) {
+            throw new ConfigException("\"checkpoint_header_lines\" must be 0 or larger.");
+        }
+        final CompressionPolicy.Mode compression = CompressionPolicy.Mode.of(task.getCompression());
+        if (compression == CompressionPolicy.Mode.PATTERN && !task.getCompressionPathPattern().isPresent()) {
+            throw new ConfigException("\"compression_path_pattern\" is required if \"compression\" is pattern.");
+        }
+        if (task.getCompressionProbeBytes() < 1) {
+            throw new ConfigException("\"compression_probe_bytes\" must be 1 or larger.");
+        }
+        if (task.getIncrementalStateFile().isPresent() && task.getIncrementalSeenFile().isPresent()) {
+            throw new ConfigException("\"incremental_state_file\" and \"incremental_seen_file\" can't be used together.");
+        }
+        if (usesIncrementalState(task) && task.getListingCacheFile().isPresent()) {
+            // a reused listing has stale sizes and modify times of files rewritten in place
+            throw new ConfigException("\"listing_cache_file\" can't be used with \"incremental_state_file\".");
+        }
+        if (task.getStreamingTasks().isPresent()) {
+            if (task.getStreamingTasks().get() < 1) {
+                throw new ConfigException("\"streaming_tasks\" must be 1 or larger.");
+            }
+            if (task.getCheckpointBytes().isPresent()) {
+                throw new ConfigException("\"streaming_tasks\" can't be used with \"checkpoint_bytes\".");
+            }
+            if (usesIncrementalState(task)) {
+                // the state is compared after all files are listed
+                throw new ConfigException("\"streaming_tasks\" can't be used with \"incremental_state_file\".");
+            }
+        }
+        ProtocolTrace.Level.of(task.getProtocolTrace());
+        if (task.getProtocolTraceLines() < 1) {
+            throw new ConfigException("\"protocol_trace_lines\" must be 1 or larger.");
+        }
+        if (task.getMaxBytesPerSecond().isPresent() && task.getMaxBytesPerSecond().get() <= 0) {
+            throw new ConfigException("\"max_bytes_per_second\" must be 1 or larger.");
+        }
+        if (task.getMaxBytesPerSecondPerHost().isPresent() && task.getMaxBytesPerSecondPerHost().get() <= 0) {
+            throw new ConfigException("\"max_bytes_per_second_per_host\" must be 1 or larger.");
+        }
+        if (task.getBandwidthBurstBytes().isPresent() && task.getBandwidthBurstBytes().get() <= 0) {
+            throw new ConfigException("\"bandwidth_burst_bytes\" must be 1 or larger.");
+        }
+        if (task.getFileListSpillBytes() < 0) {
+            throw new ConfigException("\"file_list_spill_bytes\" must be 0 or larger.");
+        }
+        if (task.getMaximumRetries() < 0) {
+            throw new ConfigException("\"maximum_retries\" must be 0 or larger.");
+        }
+        if (task.getInitialRetryIntervalMillis() < 0) {
+            throw new ConfigException("\"initial_retry_interval_millis\" must be 0 or larger.");
+        }
+        if (task.getMaximumRetryIntervalMillis() < task.getInitialRetryIntervalMillis()) {
+            throw new ConfigException("\"maximum_retry_interval_millis\" must be \"initial_retry_interval_millis\" or larger.");
+        }
+
         String pattern = task.getPathMatchPattern();
         // If pattern is empty then use default pattern
         if (pattern != null && pattern.trim().isEmpty()) {
@@ -140,14 +470,61 @@ public class FtpFileInputPlugin
         final Pattern pathMatchPattern = Pattern.compile(pattern);
 
         // list files recursively
-        final List<String> files = listFiles(log, task, pathMatchPattern);
-        task.setFiles(files);
-        log.info("Using files {}", files);
+        final SeenPathIndex seen = usesSeenIndex(task)
+                ? SeenPathIndex.load(log, Paths.get(task.getIncrementalSeenFile().get()), connectionKey(task).toString())
+                : SeenPathIndex.empty();
+
+        if (task.getStreamingTasks().isPresent()) {
+            final int taskCount = task.getStreamingTasks().get();
+            final StreamingFileQueue queue = StreamingFileQueue.create(usesSeenIndex(task));
+            task.setStreamingQueueId(Optional.of(queue.getId()));
+            task.setFiles(Collections.<String>emptyList());
+            task.setFileRanges(Collections.<Long>emptyList());
+            task.setFileList(Optional.<String>empty());
+            task.setFileListFile(Optional.<String>empty());
+            task.setTaskFileOffsets(Collections.<Integer>emptyList());
+            startStreamingCrawler(log, task, pathMatchPattern, seen, queue);
+            log.info("Streaming files to {} tasks while listing", taskCount);
+            return resume(task.toTaskSource(), taskCount, control);
+        }
+        task.setStreamingQueueId(Optional.<String>empty());
+
+        List<RemoteFile> remoteFiles = listRemoteFiles(log, task, pathMatchPattern, seen, Optional.<Consumer<RemoteFile>>empty());
+        if (usesIncrementalState(task)) {
+            remoteFiles = IncrementalState.prepare(log, Paths.get(task.getIncrementalStateFile().get()),
+                    connectionKey(task).toString(), remoteFiles);
+        }
+        else if (usesSeenIndex(task)) {
+            final List<String> added = new ArrayList<>(remoteFiles.size());
+            for (final RemoteFile file : remoteFiles) {
+                added.add(file.getPath());
+            }
+            SeenPathIndex.write(IncrementalState.pendingFile(Paths.get(task.getIncrementalSeenFile().get())),
+                    connectionKey(task).toString(), seen, added);
+        }
+        final List<RemoteFile> listedFiles = remoteFiles;
+        final List<Long> ranges = new ArrayList<>();
+        if (task.getCheckpointBytes().isPresent()) {
+            remoteFiles = splitFiles(log, remoteFiles, task.getCheckpointBytes().get(), ranges);
+        }
+        final List<String> files = new ArrayList<>(remoteFiles.size());
+        for (final RemoteFile file : remoteFiles) {
+            files.add(file.getPath());
+        }
+        task.setFiles(Collections.<String>emptyList());
+        task.setFileRanges(Collections.<Long>emptyList());
+        setFileList(log, task, files, ranges);
+        logFiles(log, task, listedFiles);
 
         // TODO what if task.getFiles().isEmpty()?
 
-        // number of processors is same with number of files
-        return resume(task.toTaskSource(), task.getFiles().size(), control);
+        // number of processors is same with number of files unless files are grouped
+        final List<Integer> offsets = FileGroupPlanner.plan(remoteFiles, task.getMaxFilesPerTask(), task.getTargetBytesPerTask());
+        task.setTaskFileOffsets(FileGroupPlanner.compact(offsets, files.size()));
+        if (offsets.size() < files.size()) {
+            log.info("Grouped {} files into {} tasks", files.size(), offsets.size());
+        }
+        return resume(task.toTaskSource(), offsets.size(), control);
     }
 
     @Override
@@ -158,35 +535,242 @@ public class FtpFileInputPlugin
         final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
         final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
 
-        control.run(taskSource, taskCount);
+        final StreamingFileQueue queue = streamingQueue(task);
+        try {
+            control.run(taskSource, taskCount);
+            if (queue != null) {
+                queue.checkListing();
+                log.info("Streamed {} of {} listed files", queue.getTakenFiles(), queue.getListedFiles());
+            }
+        }
+        finally {
+            if (queue != null) {
+                queue.close();
+            }
+        }
 
         // build next config
         final ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
 
+        if (usesIncrementalState(task)) {
+            // the state replaces last_path
+            IncrementalState.commit(log, Paths.get(task.getIncrementalStateFile().get()));
+        }
+        else if (usesSeenIndex(task)) {
+            final Path seenFile = Paths.get(task.getIncrementalSeenFile().get());
+            if (queue != null) {
+                // the files read by the tasks, which were not known when the transaction started
+                final String server = connectionKey(task).toString();
+                SeenPathIndex.write(IncrementalState.pendingFile(seenFile), server,
+                        SeenPathIndex.load(log, seenFile, server), queue.getTakenPaths());
+            }
+            IncrementalState.commit(log, seenFile);
+        }
         // last_path
-        if (task.getIncremental()) {
-            if (task.getFiles().isEmpty()) {
-                // keep the last value
-                if (task.getLastPath().isPresent()) {
-                    configDiff.set("last_path", task.getLastPath().get());
-                }
+        else if (task.getIncremental()) {
+            final Optional<String> lastPath;
+            if (queue != null) {
+                lastPath = queue.getLastPath();
+            }
+            else if (fileListOf(task).isPresent()) {
+                lastPath = Optional.ofNullable(fileListOf(task).get().lastPath());
+            }
+            else if (task.getFiles().isEmpty()) {
+                lastPath = Optional.empty();
             }
             else {
-                final List<String> files = new ArrayList<String>(task.getFiles());
-                Collections.sort(files);
-                configDiff.set("last_path", files.get(files.size() - 1));
+                lastPath = Optional.of(Collections.max(task.getFiles()));
+            }
+            if (lastPath.isPresent()) {
+                configDiff.set("last_path", lastPath.get());
+            }
+            else if (task.getLastPath().isPresent()) {
+                // keep the last value
+                configDiff.set("last_path", task.getLastPath().get());
             }
         }
 
         return configDiff;
     }
 
+    // returns null unless "streaming_tasks" is set
+    private static StreamingFileQueue streamingQueue(final PluginTask task)
+    {
+        if (!isSet(task.getStreamingQueueId())) {
+            return null;
+        }
+        final StreamingFileQueue queue = StreamingFileQueue.get(task.getStreamingQueueId().get());
+        if (queue == null) {
+            throw new ConfigException("An execution with \"streaming_tasks\" can't be resumed because its files are listed while it runs. Run it again.");
+        }
+        return queue;
+    }
+
+    // task-only values are null in task sources made by older versions
+    private static boolean isSet(final Optional<?> value)
+    {
+        return value != null && value.isPresent();
+    }
+
+    /**
+     * Encodes the files into the task source, or into a local file if the encoded list is larger
+     * than {@code file_list_spill_bytes}, so that each task decodes only its own files.
+     */
+    private static void setFileList(final Logger log, final PluginTask task, final List<String> files, final List<Long> ranges)
+    {
+        final byte[] encoded = FileList.encode(files, ranges);
+        if (encoded.length > task.getFileListSpillBytes()) {
+            final Path directory = Paths.get(task.getFileListSpillDirectory().orElse(System.getProperty("java.io.tmpdir")));
+            final Path file = FileList.spill(directory, encoded);
+            log.info("Wrote the list of {} files in {} bytes to {}", files.size(), encoded.length, file);
+            task.setFileList(Optional.<String>empty());
+            task.setFileListFile(Optional.of(file.toString()));
+        }
+        else {
+            task.setFileList(Optional.of(FileList.toBase64(encoded)));
+            task.setFileListFile(Optional.<String>empty());
+        }
+    }
+
+    // doesn't log every path, which can be millions
+    private static void logFiles(final Logger log, final PluginTask task, final List<RemoteFile> files)
+    {
+        if (files.isEmpty()) {
+            log.info("Using no files");
+            return;
+        }
+        final String spilled = isSet(task.getFileListFile()) ? ", listed in " + task.getFileListFile().get() : "";
+        log.info("Using {} files from {} to {}{}", files.size(), files.get(0), files.get(files.size() - 1), spilled);
+    }
+
+    private static Optional<FileList> fileListOf(final PluginTask task)
+    {
+        if (isSet(task.getFileList())) {
+            return Optional.of(FileList.ofBase64(task.getFileList().get()));
+        }
+        if (isSet(task.getFileListFile())) {
+            return Optional.of(FileList.ofFile(task.getFileListFile().get()));
+        }
+        return Optional.empty();
+    }
+
+    private void startStreamingCrawler(final Logger log, final PluginTask task, final Pattern pathMatchPattern,
+            final SeenPathIndex seen, final StreamingFileQueue queue)
+    {
+        final Thread crawler = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        listRemoteFiles(log, task, pathMatchPattern, seen, Optional.<Consumer<RemoteFile>>of(queue));
+                        queue.finishListing();
+                    }
+                    catch (final RuntimeException ex) {
+                        queue.failListing(ex);
+                    }
+                }
+            }, "embulk-input-ftp-crawler");
+        crawler.setDaemon(true);
+        crawler.start();
+    }
+
     @Override
     public void cleanup(final TaskSource taskSource,
             final int taskCount,
             final List<TaskReport> successTaskReports)
     {
-        // do nothing
+        final TransferMetrics.Summary summary = new TransferMetrics.Summary();
+        for (final TaskReport report : successTaskReports) {
+            if (report.has(TransferMetrics.REPORT_KEY)) {
+                summary.addTask(report.get(Map.class, TransferMetrics.REPORT_KEY));
+            }
+        }
+        summary.log(log);
+
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
+        if (isSet(task.getFileListFile())) {
+            try {
+                Files.deleteIfExists(Paths.get(task.getFileListFile().get()));
+            }
+            catch (final IOException ex) {
+                log.warn("Failed to delete {}", task.getFileListFile().get(), ex);
+            }
+        }
+    }
+
+    private static boolean usesIncrementalState(final PluginTask task)
+    {
+        return task.getIncremental() && task.getIncrementalStateFile().isPresent();
+    }
+
+    private static boolean usesSeenIndex(final PluginTask task)
+    {
+        return task.getIncremental() && task.getIncrementalSeenFile().isPresent();
+    }
+
+    private static FtpConnectionPool.Key connectionKey(final PluginTask task)
+    {
+        int security = FTPClient.SECURITY_FTP;
+        int defaultPort = FTP_DEFULAT_PORT;
+        if (task.getSsl()) {
+            security = task.getSslExplicit() ? FTPClient.SECURITY_FTPES : FTPClient.SECURITY_FTPS;
+            defaultPort = task.getSslExplicit() ? FTPES_DEFAULT_PORT : FTPS_DEFAULT_PORT;
+        }
+        // connections with different trust settings must not be shared
+        final boolean ssl = task.getSsl();
+        return new FtpConnectionPool.Key(task.getHost(), task.getPort().orElse(defaultPort),
+                task.getUser().orElse(null), task.getPassword().orElse(""),
+                security, task.getAsciiMode() ? FTPClient.TYPE_TEXTUAL : FTPClient.TYPE_BINARY, task.getPassiveMode(),
+                ssl ? task.getSslVerify().orElse(null) : null, ssl && task.getSslVerifyHostname(),
+                ssl ? task.getSslTrustedCaCertFile().orElse(null) : null, ssl ? task.getSslTrustedCaCertData().orElse(null) : null,
+                task.getConnectionPoolMaxIdle(), task.getConnectionPoolIdleTimeout() * 1000L,
+                task.getConnectionPoolMaxTotal(), task.getConnectionPoolMaxWait() * 1000L);
+    }
+
+    /**
+     * Borrows a connection from the JVM-wide pool. It must be returned with
+     * {@link FtpConnectionPool#release} or {@link FtpConnectionPool#invalidate}.
+     */
+    private static FTPClient borrowFTPClient(final Logger log, final PluginTask task)
+    {
+        return FtpConnectionPool.getInstance().borrow(connectionKey(task), ftpClientFactory(log, task));
+    }
+
+    /**
+     * Borrows a connection like {@link #borrowFTPClient}, or returns null if
+     * {@code connection_pool_max_total} connections are open.
+     */
+    private static FTPClient tryBorrowFTPClient(final Logger log, final PluginTask task)
+    {
+        return FtpConnectionPool.getInstance().tryBorrow(connectionKey(task), ftpClientFactory(log, task));
+    }
+
+    /**
+     * Borrows a connection like {@link #borrowFTPClient}, even if {@code connection_pool_max_total}
+     * connections are open.
+     */
+    private static FTPClient borrowUnlimitedFTPClient(final Logger log, final PluginTask task)
+    {
+        return FtpConnectionPool.getInstance().borrowUnlimited(connectionKey(task), ftpClientFactory(log, task));
+    }
+
+    /**
+     * Connects a new connection, which is returned to the pool like a borrowed one.
+     */
+    private static FTPClient reconnectFTPClient(final Logger log, final PluginTask task)
+    {
+        return FtpConnectionPool.getInstance().create(connectionKey(task), ftpClientFactory(log, task));
+    }
+
+    private static Supplier<FTPClient> ftpClientFactory(final Logger log, final PluginTask task)
+    {
+        return new Supplier<FTPClient>() {
+            @Override
+            public FTPClient get()
+            {
+                return newFTPClient(log, task);
+            }
+        };
     }
 
     private static FTPClient newFTPClient(final Logger log, final PluginTask task)
@@ -194,6 +778,8 @@ public class FtpFileInputPlugin
         FTPClient client = new FTPClient();
         try {
             int defaultPort = FTP_DEFULAT_PORT;
+            // counts bytes on data connections to measure MODE Z
+            client.setConnector(new MeteredConnector());
             if (task.getSsl()) {
                 client.setSSLSocketFactory(SSLPlugins.newSSLSocketFactory(task.getSSLConfig(), task.getHost()));
                 if (task.getSslExplicit()) {
@@ -209,7 +795,11 @@ public class FtpFileInputPlugin
             }
             final int port = task.getPort().isPresent() ? task.getPort().get() : defaultPort;
 
-            client.addCommunicationListener(new LoggingCommunicationListner(log));
+            final ProtocolTrace.Level traceLevel = ProtocolTrace.Level.of(task.getProtocolTrace());
+            if (traceLevel != ProtocolTrace.Level.OFF) {
+                client.addCommunicationListener(new ProtocolTrace(log, traceLevel, task.getHost() + ":" + port,
+                        task.getProtocolTraceLines()));
+            }
 
             // TODO configurable timeout parameters
             client.setAutoNoopTimeout(3000);
@@ -246,9 +836,9 @@ public class FtpFileInputPlugin
                 client.setType(FTPClient.TYPE_BINARY);
             }
 
+            // MODE Z is switched for each transfer by CompressionPolicy
             if (client.isCompressionSupported()) {
-                log.info("Using MODE Z compression");
-                client.setCompressionEnabled(true);
+                log.info("MODE Z compression is supported");
             }
 
             final FTPClient connected = client;
@@ -276,6 +866,10 @@ public class FtpFileInputPlugin
 
     static void disconnectClient(final FTPClient client)
     {
+        final ProtocolTrace trace = ProtocolTrace.of(client);
+        if (trace != null) {
+            trace.logSummary();
+        }
         if (client.isConnected()) {
             try {
                 client.disconnect(false);
@@ -292,91 +886,151 @@ public class FtpFileInputPlugin
         }
     }
 
-    private List<String> listFiles(final Logger log, final PluginTask task, final Pattern pathMatchPattern)
+    private List<RemoteFile> listRemoteFiles(final Logger log, final PluginTask task, final Pattern pathMatchPattern,
+            final SeenPathIndex seen, final Optional<Consumer<RemoteFile>> found)
     {
-        final FTPClient client = newFTPClient(log, task);
-        try {
-            List<String> files = listFilesByPrefix(log, client, task.getPathPrefix(), task.getLastPath(), pathMatchPattern);
-            if (files.isEmpty() && task.getStopWhenFileNotFound()) {
-                throw new ConfigException("No file is found. \"stop_when_file_not_found\" option is \"true\".");
-            }
+        final List<Pattern> includes = new ArrayList<>();
+        for (final String glob : task.getPathIncludeGlobs()) {
+            includes.add(GlobPattern.compile(glob));
+        }
+        final List<Pattern> excludes = new ArrayList<>();
+        for (final String glob : task.getPathExcludeGlobs()) {
+            excludes.add(GlobPattern.compile(glob));
+        }
+        // with the incremental state or the seen paths, files before last_path may be new or changed
+        final Optional<String> lastPath = usesIncrementalState(task) || usesSeenIndex(task)
+                ? Optional.<String>empty() : task.getLastPath();
+        final PathFilter filter = new PathFilter(lastPath, pathMatchPattern, task.getPathMatchPatternAnchored(),
+                includes, excludes, task.getMaxDepth(), seen);
+
+        Optional<ListingCache> cache = Optional.empty();
+        if (task.getListingCacheFile().isPresent()) {
+            cache = Optional.of(ListingCache.load(log, Paths.get(task.getListingCacheFile().get()), connectionKey(task).toString(),
+                    task.getListingCacheStableSeconds() * 1000L, task.getListingCacheRefresh()));
+        }
 
-            return files;
+        final List<RemoteFile> files;
+        // streamed files are given to the queue by the crawler as soon as they are found
+        if (task.getListingConcurrency() > 1 || found.isPresent()) {
+            files = new ParallelDirectoryCrawler(log, new Supplier<FTPClient>() {
+                    @Override
+                    public FTPClient get()
+                    {
+                        if (found.isPresent()) {
+                            // tasks waiting for the found files hold their connections
+                            return borrowUnlimitedFTPClient(log, task);
+                        }
+                        return borrowFTPClient(log, task);
+                    }
+                }, task.getListingConcurrency(), filter, cache, found).crawl(task.getPathPrefix());
         }
-        finally {
-            disconnectClient(client);
+        else {
+            final FtpConnectionPool pool = FtpConnectionPool.getInstance();
+            final FTPClient client = borrowFTPClient(log, task);
+            try {
+                files = listRemoteFilesByPrefix(log, client, task.getPathPrefix(), filter, cache);
+            }
+            catch (final RuntimeException ex) {
+                ProtocolTrace.dump(client, "Listing files failed");
+                pool.invalidate(client);
+                throw ex;
+            }
+            pool.release(client);
+        }
+        if (cache.isPresent()) {
+            cache.get().save();
+        }
+
+        if (files.isEmpty() && task.getStopWhenFileNotFound()) {
+            throw new ConfigException("No file is found. \"stop_when_file_not_found\" option is \"true\".");
         }
+        return files;
     }
 
     public static List<String> listFilesByPrefix(final Logger log, final FTPClient client,
             final String prefix, final Optional<String> lastPath, final Pattern pathMatchPattern)
     {
-        String directory;
-        String fileNamePrefix;
-        if (prefix.isEmpty()) {
-            directory = "";
-            fileNamePrefix = "";
+        final List<String> paths = new ArrayList<>();
+        for (final RemoteFile file : listRemoteFilesByPrefix(log, client, prefix,
+                    new PathFilter(lastPath, pathMatchPattern), Optional.<ListingCache>empty())) {
+            paths.add(file.getPath());
         }
-        else {
-            final int pos = prefix.lastIndexOf("/");
-            if (pos < 0) {
-                directory = "";
-                fileNamePrefix = prefix;
-            }
-            else {
-                directory = prefix.substring(0, pos + 1);  // include last "/"
-                fileNamePrefix = prefix.substring(pos + 1);
-            }
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Splits a path prefix into the directory (including the last "/") and the file name prefix.
+     */
+    static String[] splitPathPrefix(final String prefix)
+    {
+        final int pos = prefix.lastIndexOf("/");
+        if (pos < 0) {
+            return new String[] {"", prefix};
         }
+        return new String[] {prefix.substring(0, pos + 1), prefix.substring(pos + 1)};
+    }
 
-        final ArrayList<String> builder = new ArrayList<>();
+    private static List<RemoteFile> listRemoteFilesByPrefix(final Logger log, final FTPClient client,
+            final String prefix, final PathFilter filter, final Optional<ListingCache> cache)
+    {
+        final String[] split = splitPathPrefix(prefix);
+        final String directory = split[0];
+        final String fileNamePrefix = split[1];
 
-        try {
-            String currentDirectory = client.currentDirectory();
-            log.info("Listing ftp files at directory '{}' filtering filename by prefix '{}'", directory.isEmpty() ? currentDirectory : directory, fileNamePrefix);
+        final ArrayList<RemoteFile> builder = new ArrayList<>();
 
-            if (!directory.isEmpty()) {
-                client.changeDirectory(directory);
-                currentDirectory = directory;
-            }
+        try {
+            final String homeDirectory = client.currentDirectory();
+            final String baseDirectory = directory.isEmpty() ? homeDirectory : directory;
+            log.info("Listing ftp files at directory '{}' filtering filename by prefix '{}'", baseDirectory, fileNamePrefix);
 
-            for (final FTPFile file : client.list()) {
+            final DirectoryLister lister = DirectoryLister.create(log, cache);
+            for (final FTPFile file : lister.list(client, DirectoryLister.resolve(homeDirectory, baseDirectory))) {
                 if (file.getName().startsWith(fileNamePrefix)) {
-                    listFilesRecursive(client, currentDirectory, file, lastPath, builder, pathMatchPattern);
+                    listFilesRecursive(log, client, lister, homeDirectory, baseDirectory, file, 0, filter, builder);
                 }
             }
+
+            // leave the connection in the initial directory so that it can be reused
+            if (!homeDirectory.equals(client.currentDirectory())) {
+                client.changeDirectory(homeDirectory);
+            }
         }
-        catch (final FTPListParseException ex) {
-            log.info("FTP listing files failed");
-            throw new RuntimeException(ex);
+        catch (final FTPListParseException | FTPAbortedException | FTPDataTransferException
+                | FTPException | FTPIllegalReplyException | IOException ex) {
+            throw listingFailed(log, ex);
         }
-        catch (final FTPAbortedException ex) {
+
+        return Collections.unmodifiableList(builder);
+    }
+
+    static RuntimeException listingFailed(final Logger log, final Exception ex)
+    {
+        if (ex instanceof FTPListParseException || ex instanceof FTPAbortedException) {
             log.info("FTP listing files failed");
-            throw new RuntimeException(ex);
         }
-        catch (final FTPDataTransferException ex) {
+        else if (ex instanceof FTPDataTransferException) {
             log.info("FTP data transfer failed");
-            throw new RuntimeException(ex);
         }
-        catch (final FTPException ex) {
-            log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
-            throw new RuntimeException(ex);
+        else if (ex instanceof FTPException) {
+            log.info("FTP command failed: " + ((FTPException) ex).getCode() + " " + ex.getMessage());
         }
-        catch (final FTPIllegalReplyException ex) {
+        else if (ex instanceof FTPIllegalReplyException) {
             log.info("FTP protocol error");
-            throw new RuntimeException(ex);
         }
-        catch (final IOException ex) {
+        else if (ex instanceof IOException) {
             log.info("FTP network error: " + ex);
-            throw new UncheckedIOException(ex);
+            return new UncheckedIOException((IOException) ex);
         }
-
-        return Collections.unmodifiableList(builder);
+        else if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        return new RuntimeException(ex);
     }
 
-    private static void listFilesRecursive(final FTPClient client,
-            String baseDirectoryPath, final FTPFile file, final Optional<String> lastPath,
-            final ArrayList<String> builder, final Pattern pathMatchPattern)
+    private static void listFilesRecursive(final Logger log, final FTPClient client, final DirectoryLister lister, final String homeDirectory,
+            String baseDirectoryPath, final FTPFile file, final int depth, final PathFilter filter,
+            final ArrayList<RemoteFile> builder)
         throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
     {
         if (!baseDirectoryPath.endsWith("/")) {
@@ -384,61 +1038,164 @@ public class FtpFileInputPlugin
         }
         final String path = baseDirectoryPath + file.getName();
 
-        if (lastPath.isPresent() && path.compareTo(lastPath.get()) <= 0) {
-            return;
-        }
-
         switch (file.getType()) {
         case FTPFile.TYPE_FILE:
-            if (pathMatchPattern.matcher(path).find()) {
-                builder.add(path);
+            if (filter.shouldVisit(path) && filter.accepts(path)) {
+                builder.add(toRemoteFile(path, file));
             }
             break;
         case FTPFile.TYPE_DIRECTORY:
-            client.changeDirectory(path);
-            for (final FTPFile subFile : client.list()) {
-                listFilesRecursive(client, path, subFile, lastPath, builder, pathMatchPattern);
+            if (!filter.shouldVisitDirectory(path, depth)) {
+                break;
+            }
+            final String absolutePath = DirectoryLister.resolve(homeDirectory, path);
+            for (final FTPFile subFile : lister.list(client, absolutePath, DirectoryLister.modifiedTimeOf(file))) {
+                listFilesRecursive(log, client, lister, homeDirectory, path, subFile, depth + 1, filter, builder);
             }
-            client.changeDirectory(baseDirectoryPath);
             break;
         case FTPFile.TYPE_LINK:
-            // TODO
+            // a listing tells neither the type nor the size of the target. following a link
+            // needs more round trips per entry, and a link to a parent directory would loop.
+            log.debug("Skipping symbolic link {} -> {}", path, file.getLink());
+            break;
         }
     }
 
-    @Override
-    public TransactionalFileInput open(final TaskSource taskSource, final int taskIndex)
+    static RemoteFile toRemoteFile(final String path, final FTPFile file)
     {
-        final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
-        final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
-        return new FtpFileInput(log, task, taskIndex);
+        return new RemoteFile(path, file.getSize(), DirectoryLister.modifiedTimeOf(file), DirectoryLister.hasExactModifiedTime(file));
     }
 
-    private static class LoggingCommunicationListner
-            implements FTPCommunicationListener
+    private static final List<String> COMPRESSED_EXTENSIONS = Arrays.asList(".gz", ".bz2", ".zip", ".zst", ".xz", ".lz4");
+
+    /**
+     * Splits files larger than {@code rangeBytes} into line ranges, which are read as separate
+     * files. Returns the files, one for each range, and adds the start and the end of each one
+     * to {@code ranges}.
+     */
+    static List<RemoteFile> splitFiles(final Logger log, final List<RemoteFile> files, final long rangeBytes, final List<Long> ranges)
     {
-        private final Logger log;
+        final List<RemoteFile> split = new ArrayList<>();
+        for (final RemoteFile file : files) {
+            final long size = file.getSize();
+            if (size <= rangeBytes || isCompressed(file.getPath())) {
+                // a range of a compressed file can't be decoded
+                split.add(file);
+                ranges.add(0L);
+                ranges.add(-1L);
+                continue;
+            }
+            final List<Long> fileRanges = LineRange.split(size, rangeBytes);
+            for (int i = 0; i < fileRanges.size(); i += 2) {
+                final long start = fileRanges.get(i);
+                final long end = fileRanges.get(i + 1);
+                split.add(new RemoteFile(file.getPath(), (end < 0 ? size : end) - start, file.getModifiedTime(), file.hasExactModifiedTime()));
+                ranges.add(start);
+                ranges.add(end);
+            }
+            log.info("Reading {} ({} bytes) in {} ranges", file.getPath(), size, fileRanges.size() / 2);
+        }
+        return split;
+    }
 
-        public LoggingCommunicationListner(final Logger log)
+    static boolean isCompressed(final String path)
+    {
+        final String lower = path.toLowerCase(Locale.ROOT);
+        for (final String extension : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the files read by the task. With {@code streaming_tasks}, they are taken from the
+     * queue filled by the crawler.
+     */
+    static Iterator<InputFile> filesOfTask(final PluginTask task, final int taskIndex)
+    {
+        if (isSet(task.getStreamingQueueId())) {
+            final StreamingFileQueue queue = StreamingFileQueue.get(task.getStreamingQueueId().get());
+            if (queue == null) {
+                throw new IllegalStateException("Files of \"streaming_tasks\" are listed in another JVM. It needs the local executor.");
+            }
+            return queue.files();
+        }
+        return inputFilesOfTask(task, taskIndex).iterator();
+    }
+
+    /**
+     * Returns the files read by the task with their ranges.
+     */
+    static List<InputFile> inputFilesOfTask(final PluginTask task, final int taskIndex)
+    {
+        final Optional<FileList> fileList = fileListOf(task);
+        if (fileList.isPresent()) {
+            final List<Integer> offsets = task.getTaskFileOffsets();
+            final int first = FileGroupPlanner.firstFileOfTask(offsets, taskIndex);
+            final int end = offsets == null || offsets.isEmpty() ? taskIndex + 1
+                    : taskIndex + 1 < offsets.size() ? offsets.get(taskIndex + 1) : fileList.get().size();
+            return fileList.get().slice(first, end);
+        }
+
+        final List<String> paths = FileGroupPlanner.filesOfTask(task.getFiles(), task.getTaskFileOffsets(), taskIndex);
+        final int first = FileGroupPlanner.firstFileOfTask(task.getTaskFileOffsets(), taskIndex);
+        final List<Long> ranges = task.getFileRanges();
+        final List<InputFile> files = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            if (ranges == null || ranges.isEmpty()) {
+                files.add(new InputFile(paths.get(i), 0L, -1L));
+            }
+            else {
+                files.add(new InputFile(paths.get(i), ranges.get((first + i) * 2), ranges.get((first + i) * 2 + 1)));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * A file to read, or a range of it if the file is split by {@code checkpoint_bytes}.
+     */
+    static class InputFile
+    {
+        private final String path;
+        private final long start;
+        private final long end;
+
+        InputFile(final String path, final long start, final long end)
         {
-            this.log = log;
+            this.path = path;
+            this.start = start;
+            this.end = end;
         }
 
-        @Override
-        public void received(final String statement)
+        String getPath()
         {
-            log.info("< " + statement);
+            return path;
         }
 
-        @Override
-        public void sent(final String statement)
+        /**
+         * Returns a new range to read, or null if the whole file is read.
+         */
+        LineRange newLineRange()
         {
-            if (statement.startsWith("PASS")) {
-                // don't show password
-                return;
+            if (start == 0 && end < 0) {
+                return null;
             }
-            log.info("> " + statement);
+            return new LineRange(start, end);
+        }
+    }
+
+    @Override
+    public TransactionalFileInput open(final TaskSource taskSource, final int taskIndex)
+    {
+        final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
+        final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
+        if (task.getCopyFreeInput()) {
+            return new FtpBufferFileInput(log, task, taskIndex);
         }
+        return new FtpFileInput(log, task, taskIndex);
     }
 
     private static class LoggingTransferListener
@@ -446,15 +1203,22 @@ public class FtpFileInputPlugin
     {
         private final Logger log;
         private final long transferNoticeBytes;
+        private final FileTransferMetrics metrics;
+        private final CompressionPolicy.Transfer compression;
+        private final BandwidthGovernor governor;
 
         private long totalTransfer;
         private long nextTransferNotice;
 
-        public LoggingTransferListener(final Logger log, final long transferNoticeBytes)
+        public LoggingTransferListener(final Logger log, final long transferNoticeBytes, final FileTransferMetrics metrics,
+                final CompressionPolicy.Transfer compression, final BandwidthGovernor governor)
         {
             this.log = log;
             this.transferNoticeBytes = transferNoticeBytes;
             this.nextTransferNotice = transferNoticeBytes;
+            this.metrics = metrics;
+            this.compression = compression;
+            this.governor = governor;
         }
 
         @Override
@@ -466,6 +1230,15 @@ public class FtpFileInputPlugin
         @Override
         public void transferred(final int length)
         {
+            final long now = System.nanoTime();
+            metrics.transferred(length, now);
+            if (compression != null) {
+                compression.transferred(length, now);
+            }
+            if (governor != null) {
+                // waiting here stops reading the data connection, which slows the server down
+                metrics.addThrottleNanos(governor.acquire(length));
+            }
             totalTransfer += length;
             if (totalTransfer > nextTransferNotice) {
                 log.info("Transferred " + totalTransfer + " bytes");
@@ -494,10 +1267,50 @@ public class FtpFileInputPlugin
 
     private static final long TRANSFER_NOTICE_BYTES = 100 * 1024 * 1024;
 
-    private static InputStream startDownload(final Logger log, final FTPClient client,
-            final String path, final long offset, final ExecutorService executor)
+    private static InputStream startDownload(final Logger log, final FtpConnection connection,
+            final String path, final FileTransferMetrics metrics, final long offset, final ExecutorService executor)
     {
+        return startDownload(log, connection, path, metrics, offset, -1L, executor);
+    }
+
+    /**
+     * Starts downloading {@code path} from {@code offset} in background.
+     * If {@code endOffset} is not negative, the transfer is aborted when it reaches {@code endOffset}.
+     */
+    private static InputStream startDownload(final Logger log, final FtpConnection connection,
+            final String path, final FileTransferMetrics metrics, final long offset, final long endOffset,
+            final ExecutorService executor)
+    {
+        return startDownload(log, connection, path, metrics, offset, endOffset, connection.task.getTransferBufferCount(), executor);
+    }
+
+    private static InputStream startDownload(final Logger log, final FtpConnection connection,
+            final String path, final FileTransferMetrics metrics, final long offset, final long endOffset,
+            final int bufferCount, final ExecutorService executor)
+    {
+        return startDownload(log, connection, path, metrics, offset, endOffset, null, bufferCount, executor);
+    }
+
+    /**
+     * Starts downloading a line range of {@code path} in background, after {@code delivered}
+     * bytes of the range.
+     */
+    private static InputStream startDownload(final Logger log, final FtpConnection connection,
+            final String path, final FileTransferMetrics metrics, final LineRange range, final long delivered,
+            final int bufferCount, final ExecutorService executor)
+    {
+        return startDownload(log, connection, path, metrics, range.restartOffset(delivered), -1L, range.newCursor(delivered),
+                bufferCount, executor);
+    }
+
+    private static InputStream startDownload(final Logger log, final FtpConnection connection,
+            final String path, final FileTransferMetrics metrics, final long offset, final long endOffset,
+            final LineRange.Cursor cursor, final int bufferCount, final ExecutorService executor)
+    {
+        final FTPClient client = connection.get();
+        final PluginTask task = connection.task;
         final BlockingTransfer t = BlockingTransfer.submit(executor,
+                bufferCount, task.getTransferBufferSize(), task.getTransferDirectBuffers(),
                 new Function<BlockingTransfer, Runnable>()
                 {
                     @Override
@@ -508,26 +1321,13 @@ public class FtpFileInputPlugin
                             public void run()
                             {
                                 try {
-                                    client.download(path, Channels.newOutputStream(transfer.getWriterChannel()), offset, new LoggingTransferListener(log, TRANSFER_NOTICE_BYTES));
-                                }
-                                catch (final FTPException ex) {
-                                    log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
-                                    throw new RuntimeException(ex);
-                                }
-                                catch (final FTPDataTransferException ex) {
-                                    log.info("FTP data transfer failed");
-                                    throw new RuntimeException(ex);
-                                }
-                                catch (final FTPAbortedException ex) {
-                                    log.info("FTP listing files failed");
-                                    throw new RuntimeException(ex);
+                                    download(log, client, connection.compression, connection.governor, path, metrics, offset, endOffset, cursor,
+                                            Channels.newOutputStream(transfer.getWriterChannel()));
                                 }
-                                catch (final FTPIllegalReplyException ex) {
-                                    log.info("FTP protocol error");
-                                    throw new RuntimeException(ex);
-                                }
-                                catch (final IOException ex) {
-                                    throw new UncheckedIOException(ex);
+                                catch (final RuntimeException ex) {
+                                    // let the reader see the failure instead of a premature EOF
+                                    transfer.transferFailed(ex);
+                                    throw ex;
                                 }
                                 finally {
                                     try {
@@ -541,60 +1341,459 @@ public class FtpFileInputPlugin
                         };
                     }
                 });
+        connection.transfer = t;
         return Channels.newInputStream(t.getReaderChannel());
     }
 
+    private static void download(final Logger log, final FTPClient client, final CompressionPolicy compression,
+            final BandwidthGovernor governor, final String path, final FileTransferMetrics metrics, final long offset,
+            final long endOffset, final OutputStream out)
+    {
+        download(log, client, compression, governor, path, metrics, offset, endOffset, null, out);
+    }
+
+    /**
+     * Downloads {@code path} from {@code offset}. If {@code cursor} is not null, only the bytes
+     * of its line range are written, and the transfer is aborted at the end of the range.
+     * MODE Z is used if {@code compression} decides so. It's not used if {@code compression} is null.
+     * The transfer is throttled by {@code governor} unless it's null, on the bytes on the network if
+     * the client connects the data connection.
+     */
+    private static void download(final Logger log, final FTPClient client, final CompressionPolicy compression,
+            final BandwidthGovernor governor, final String path, final FileTransferMetrics metrics, final long offset, final long endOffset,
+            final LineRange.Cursor cursor, final OutputStream out)
+    {
+        final RangeOutputStream range;
+        if (cursor != null) {
+            range = new RangeOutputStream(client, out, cursor);
+        }
+        else {
+            range = endOffset < 0 ? null : new RangeOutputStream(client, out, endOffset - offset);
+        }
+        final boolean modeZ = compression != null && compression.useModeZ(client, path);
+        client.setCompressionEnabled(modeZ);
+        final CompressionPolicy.Transfer compressionTransfer = compression != null ? compression.startTransfer(client, modeZ, metrics) : null;
+        // in active mode, the connector doesn't see the data connection, and the listener throttles instead
+        final MeteredConnector throttled = governor != null && client.isPassive() && client.getConnector() instanceof MeteredConnector
+                ? (MeteredConnector) client.getConnector() : null;
+        boolean completed = false;
+        metrics.transferStarted();
+        try {
+            if (throttled != null) {
+                throttled.setGovernor(governor);
+            }
+            client.download(path, range == null ? out : range, offset,
+                    new LoggingTransferListener(log, TRANSFER_NOTICE_BYTES, metrics, compressionTransfer, throttled == null ? governor : null));
+            completed = true;
+        }
+        catch (final FTPException ex) {
+            log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPDataTransferException ex) {
+            log.info("FTP data transfer failed");
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPAbortedException ex) {
+            if (range != null && range.isCompleted()) {
+                completed = true;
+                return;  // aborted by RangeOutputStream at the end of the range
+            }
+            log.info("FTP data transfer aborted");
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPIllegalReplyException ex) {
+            log.info("FTP protocol error");
+            throw new RuntimeException(ex);
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        finally {
+            if (throttled != null) {
+                throttled.setGovernor(null);
+                metrics.addThrottleNanos(throttled.takeThrottleNanos());
+            }
+            if (compressionTransfer != null) {
+                compressionTransfer.finish(completed);
+            }
+            metrics.transferEnded();
+        }
+    }
+
+    private static final int HEADER_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Returns the header lines to put at the head of a line range, so that the parser skips them
+     * as in the first range. Returns an empty array for the first range.
+     */
+    private static byte[] readHeader(final Logger log, final FtpConnection connection, final String path,
+            final FileTransferMetrics metrics, final LineRange range, final int lines)
+    {
+        if (lines == 0 || range.getStart() == 0) {
+            return new byte[0];
+        }
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        download(log, connection.get(), null, connection.governor, path, metrics, 0L, HEADER_MAX_BYTES, head);
+        final byte[] header = LineRange.firstLines(head.toByteArray(), lines);
+        if (header == null) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "The first %d lines of %s are not found in its first %d bytes. Check \"checkpoint_header_lines\".",
+                    lines, path, HEADER_MAX_BYTES));
+        }
+        return header;
+    }
+
+    /**
+     * OutputStream which passes through the given number of bytes, or the bytes of a line range,
+     * then sends ABOR to stop the transfer and discards the rest.
+     */
+    private static class RangeOutputStream
+            extends OutputStream
+    {
+        private final FTPClient client;
+        private final OutputStream out;
+        private final LineRange.Cursor cursor;
+        private long remaining;
+        private boolean completed;
+
+        RangeOutputStream(final FTPClient client, final OutputStream out, final long length)
+        {
+            this.client = client;
+            this.out = out;
+            this.cursor = null;
+            this.remaining = length;
+        }
+
+        RangeOutputStream(final FTPClient client, final OutputStream out, final LineRange.Cursor cursor)
+        {
+            this.client = client;
+            this.out = out;
+            this.cursor = cursor;
+            this.remaining = Long.MAX_VALUE;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (completed) {
+                return;
+            }
+            if (cursor != null) {
+                final int skipped = cursor.skip(b, off, len);
+                final int n = cursor.take(b, off + skipped, len - skipped);
+                out.write(b, off + skipped, n);
+                if (cursor.isEnded()) {
+                    abort();
+                }
+                return;
+            }
+            final int n = (int) Math.min(len, remaining);
+            out.write(b, off, n);
+            remaining -= n;
+            if (remaining <= 0) {
+                abort();
+            }
+        }
+
+        private void abort() throws IOException
+        {
+            completed = true;
+            try {
+                client.abortCurrentDataTransfer(true);
+            }
+            catch (final FTPIllegalReplyException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        boolean isCompleted()
+        {
+            return completed;
+        }
+    }
+
+    /**
+     * Holds a connection borrowed from the pool, and borrows another one when it is lost.
+     */
+    private static class FtpConnection
+    {
+        private final Logger log;
+        private final PluginTask task;
+        private final CompressionPolicy compression;
+        private final BandwidthGovernor governor;
+        private FTPClient client;
+        // the last transfer started on the connection
+        private volatile BlockingTransfer transfer;
+        private long loginNanos;
+        // true if the next connection must be a new one instead of an idle pooled one
+        private boolean reconnecting;
+
+        FtpConnection(final Logger log, final PluginTask task)
+        {
+            this(log, task, null);
+        }
+
+        // borrows a connection unless client is given
+        private FtpConnection(final Logger log, final PluginTask task, final FTPClient client)
+        {
+            this.log = log;
+            this.task = task;
+            this.compression = CompressionPolicy.of(log, task.getCompression(), task.getCompressionPathPattern().orElse(null),
+                    task.getCompressionProbeBytes(), connectionKey(task).getName());
+            this.governor = BandwidthGovernor.of(task.getMaxBytesPerSecond(), task.getMaxBytesPerSecondPerHost(),
+                    task.getBandwidthBurstBytes(), task.getHost());
+            this.client = client != null ? client : borrow();
+        }
+
+        /**
+         * Returns a connection, or null if {@code connection_pool_max_total} connections are open.
+         */
+        static FtpConnection tryOpen(final Logger log, final PluginTask task)
+        {
+            final long start = System.nanoTime();
+            final FTPClient client = tryBorrowFTPClient(log, task);
+            if (client == null) {
+                return null;
+            }
+            final FtpConnection connection = new FtpConnection(log, task, client);
+            connection.loginNanos = System.nanoTime() - start;
+            return connection;
+        }
+
+        synchronized FTPClient get()
+        {
+            if (client == null || !client.isConnected()) {
+                if (client != null) {
+                    FtpConnectionPool.getInstance().invalidate(client);
+                    log.info("FTP connection is lost. Reconnecting");
+                }
+                client = borrow();
+            }
+            return client;
+        }
+
+        /**
+         * Disconnects the connection whose control channel is broken or out of sync with the
+         * server. {@code isConnected()} of ftp4j stays true after the socket is broken, so
+         * {@link #get()} doesn't notice it. The next {@link #get()} logs in on a new connection.
+         */
+        synchronized void reconnect()
+        {
+            if (client != null) {
+                FtpConnectionPool.getInstance().invalidate(client);
+                client = null;
+            }
+            reconnecting = true;
+        }
+
+        private FTPClient borrow()
+        {
+            final long start = System.nanoTime();
+            try {
+                if (reconnecting) {
+                    final FTPClient fresh = reconnectFTPClient(log, task);
+                    reconnecting = false;
+                    return fresh;
+                }
+                return borrowFTPClient(log, task);
+            }
+            finally {
+                loginNanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * Waits until the last transfer on the connection ends. A transfer stopped at the end of
+         * a range is still reading the replies to its ABOR after the reader has the last byte,
+         * and the next command on the connection would read them instead of its own. If the
+         * transfer doesn't end cleanly, the connection is disconnected.
+         */
+        void awaitTransfer()
+        {
+            final BlockingTransfer last = transfer;
+            if (last == null) {
+                return;
+            }
+            try {
+                last.waitForTransferCompletion();
+            }
+            catch (final IOException | RuntimeException ex) {
+                log.debug("Transfer ended with an error. Disconnecting: {}", ex.toString());
+                reconnect();
+            }
+        }
+
+        /**
+         * Dumps the protocol trace of the current connection, if any.
+         */
+        synchronized void dumpTrace(final String reason)
+        {
+            if (client != null) {
+                ProtocolTrace.dump(client, reason);
+            }
+        }
+
+        /**
+         * Returns the time spent to connect and log in since the last call.
+         */
+        synchronized long takeLoginNanos()
+        {
+            final long nanos = loginNanos;
+            loginNanos = 0;
+            return nanos;
+        }
+
+        /**
+         * Returns the connection to the pool if it's reusable. Otherwise, disconnects it.
+         */
+        synchronized void close(final boolean reusable)
+        {
+            if (client != null) {
+                if (reusable) {
+                    FtpConnectionPool.getInstance().release(client);
+                }
+                else {
+                    FtpConnectionPool.getInstance().invalidate(client);
+                }
+                client = null;
+            }
+        }
+    }
+
     private static class FtpInputStreamReopener
             implements ResumableInputStream.Reopener
     {
         private final Logger log;
-        private final FTPClient client;
+        private final FtpConnection connection;
         private final ExecutorService executor;
         private final String path;
+        private final FileTransferMetrics metrics;
+        private final long startOffset;
+        private final long endOffset;
+        private final LineRange lineRange;
+        // GET requests sent again since the reader last made progress. A GET request usually
+        // fails after reopen() returns, in the transfer thread, so they are counted across calls.
+        private int retries;
+        private long retryOffset;
+
+        public FtpInputStreamReopener(final Logger log, final FtpConnection connection, final ExecutorService executor, final String path,
+                final FileTransferMetrics metrics)
+        {
+            this(log, connection, executor, path, metrics, 0L, -1L, null);
+        }
 
-        public FtpInputStreamReopener(final Logger log, final FTPClient client, final ExecutorService executor, final String path)
+        public FtpInputStreamReopener(final Logger log, final FtpConnection connection, final ExecutorService executor, final String path,
+                final FileTransferMetrics metrics, final long startOffset, final long endOffset)
+        {
+            this(log, connection, executor, path, metrics, startOffset, endOffset, null);
+        }
+
+        public FtpInputStreamReopener(final Logger log, final FtpConnection connection, final ExecutorService executor, final String path,
+                final FileTransferMetrics metrics, final LineRange lineRange)
+        {
+            this(log, connection, executor, path, metrics, 0L, -1L, lineRange);
+        }
+
+        private FtpInputStreamReopener(final Logger log, final FtpConnection connection, final ExecutorService executor, final String path,
+                final FileTransferMetrics metrics, final long startOffset, final long endOffset, final LineRange lineRange)
         {
             this.log = log;
-            this.client = client;
+            this.connection = connection;
             this.executor = executor;
             this.path = path;
+            this.metrics = metrics;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.lineRange = lineRange;
         }
 
         @Override
         public InputStream reopen(final long offset, final Exception closedCause) throws IOException
         {
+            connection.dumpTrace("FTP read of " + path + " failed: " + closedCause);
+            if (!FtpErrors.isRetryable(closedCause)) {
+                log.warn("FTP read failed with a permanent error. Not retrying");
+                if (closedCause instanceof IOException) {
+                    throw (IOException) closedCause;
+                }
+                throw closedCause instanceof RuntimeException ? (RuntimeException) closedCause : new RuntimeException(closedCause);
+            }
+            final PluginTask task = connection.task;
+            if (offset > retryOffset) {
+                retries = 0;
+                retryOffset = offset;
+            }
+            if (retries >= task.getMaximumRetries()) {
+                log.warn(String.format("FTP read of %s failed at %,d bytes offset. Giving up after %d retries", path, offset, retries));
+                if (closedCause instanceof IOException) {
+                    throw (IOException) closedCause;
+                }
+                throw closedCause instanceof RuntimeException ? (RuntimeException) closedCause : new RuntimeException(closedCause);
+            }
+            if (!FtpErrors.isControlConnectionAlive(closedCause)) {
+                connection.reconnect();
+            }
+            final long restartOffset = lineRange != null ? lineRange.restartOffset(offset) : startOffset + offset;
+            final long start = System.nanoTime();
             try {
+                // one line for each GET request. onRetry logs the ones after the first.
+                if (retries > 0) {
+                    // the last GET request failed without progress
+                    final long retryWait = retryWaitMillis(task, retries);
+                    log.warn(String.format("FTP GET request failed. Retrying %d/%d with %,d bytes offset after %d seconds. Message: %s",
+                            retries + 1, task.getMaximumRetries(), restartOffset, retryWait / 1000, closedCause.getMessage()));
+                    Thread.sleep(retryWait);
+                }
+                else {
+                    log.warn(String.format("FTP read failed. Retrying GET request with %,d bytes offset", restartOffset), closedCause);
+                }
                 return RetryExecutor.builder()
-                    .withRetryLimit(3)
-                    .withInitialRetryWaitMillis(500)
-                    .withMaxRetryWaitMillis(30 * 1000)
+                    .withRetryLimit(task.getMaximumRetries() - retries - 1)
+                    .withInitialRetryWaitMillis((int) retryWaitMillis(task, retries + 1))
+                    .withMaxRetryWaitMillis(task.getMaximumRetryIntervalMillis())
                     .build()
                     .runInterruptible(new Retryable<InputStream>() {
                         @Override
                         public InputStream call() throws InterruptedIOException
                         {
-                            log.warn(String.format("FTP read failed. Retrying GET request with %,d bytes offset", offset), closedCause);
-                            return startDownload(log, client, path, offset, executor);
+                            retries++;
+                            metrics.reopened();
+                            if (lineRange != null) {
+                                return startDownload(log, connection, path, metrics, lineRange, offset,
+                                        task.getTransferBufferCount(), executor);
+                            }
+                            return startDownload(log, connection, path, metrics, startOffset + offset, endOffset, executor);
                         }
 
                         @Override
                         public boolean isRetryableException(final Exception exception)
                         {
-                            return true;  // TODO
+                            return FtpErrors.isRetryable(exception);
                         }
 
                         @Override
                         public void onRetry(final Exception exception, final int retryCount, final int retryLimit, final int retryWait)
                                 throws RetryGiveupException
                         {
-                            final String message = String.format("FTP GET request failed. Retrying %d/%d after %d seconds. Message: %s",
-                                    retryCount, retryLimit, retryWait / 1000, exception.getMessage());
+                            final String message = String.format("FTP GET request failed. Retrying %d/%d with %,d bytes offset after %d seconds. Message: %s",
+                                    retries + 1, task.getMaximumRetries(), restartOffset, retryWait / 1000, exception.getMessage());
                             if (retryCount % 3 == 0) {
                                 log.warn(message, exception);
                             }
                             else {
                                 log.warn(message);
                             }
+                            connection.dumpTrace("FTP GET request of " + path + " failed: " + exception);
+                            if (!FtpErrors.isControlConnectionAlive(exception)) {
+                                connection.reconnect();
+                            }
                         }
 
                         @Override
@@ -607,7 +1806,10 @@ public class FtpFileInputPlugin
             catch (final RetryGiveupException ex) {
                 final Throwable cause = ex.getCause();
                 if (cause instanceof IOException) {
-                    throw new UncheckedIOException((IOException) cause);
+                    throw (IOException) cause;
+                }
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
                 }
                 if (cause instanceof RuntimeException) {
                     throw (RuntimeException) cause;
@@ -617,61 +1819,456 @@ public class FtpFileInputPlugin
             catch (final InterruptedException ex) {
                 throw new InterruptedIOException();
             }
+            finally {
+                metrics.addRetryNanos(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Returns the wait before the {@code retries + 1}th GET request, which doubles from
+         * {@code initial_retry_interval_millis} up to {@code maximum_retry_interval_millis}.
+         */
+        private static long retryWaitMillis(final PluginTask task, final int retries)
+        {
+            long wait = task.getInitialRetryIntervalMillis();
+            for (int i = 1; i < retries && wait < task.getMaximumRetryIntervalMillis(); i++) {
+                wait *= 2;
+            }
+            return Math.min(wait, task.getMaximumRetryIntervalMillis());
         }
     }
 
-    // TODO create single-file InputStreamFileInput utility
-    private static class SingleFileProvider
+    /**
+     * Provides files of a task one by one, reusing one connection for all of them.
+     *
+     * If {@code prefetch_files} is set, the next files start downloading over their own
+     * connections while the current file is read. Each of them buffers up to
+     * {@code prefetch_max_bytes / prefetch_files} bytes until it's read.
+     */
+    private static class FtpFileProvider
             implements InputStreamFileInput.Provider
     {
         private final Logger log;
-        private final FTPClient client;
+        private final PluginTask task;
+        private final FtpConnection connection;
+        private final TransferScheduler scheduler;
         private final ExecutorService executor;
-        private final String path;
-        private boolean opened = false;
-
-        public SingleFileProvider(final Logger log, final PluginTask task, final int taskIndex)
+        private final ExecutorService prefetchExecutor;
+        private final Iterator<InputFile> files;
+        private final Deque<PrefetchedFile> prefetched = new ArrayDeque<>();
+        private final HostTransferStats hostStats;
+        private final TransferMetrics metrics;
+        private final List<Map<String, Object>> committedRanges = new ArrayList<>();
+        // runs the workers of segmented downloads, which wait for their transfers
+        private ExecutorService segmentWorkers;
+        // runs decoders of "decompress_in_transfer", which wait for their transfers
+        private ExecutorService decoderWorkers;
+        private String path;
+        private LineRange currentRange;
+        private FileTransferMetrics currentMetrics;
+        private FtpConnection currentConnection;
+        private boolean completed = true;
+
+        public FtpFileProvider(final Logger log, final PluginTask task, final int taskIndex)
         {
             this.log = log;
-            this.client = newFTPClient(log, task);
-            this.executor = Executors.newCachedThreadPool(new FormattedThreadFactory());
-            this.path = task.getFiles().get(taskIndex);
+            this.task = task;
+            this.hostStats = HostTransferStats.of(log, connectionKey(task).getName());
+            this.metrics = new TransferMetrics(log);
+            this.connection = new FtpConnection(log, task);
+            this.currentConnection = connection;
+            this.scheduler = TransferScheduler.getInstance(log, task.getTransferMaxThreads(), task.getTransferVirtualThreads());
+            this.executor = scheduler.newTaskExecutor();
+            this.prefetchExecutor = scheduler.newPrefetchExecutor();
+            this.files = filesOfTask(task, taskIndex);
         }
 
         @Override
         public InputStreamWithHints openNextWithHints() throws IOException
         {
-            if (opened) {
+            finishCurrentFile();
+            closeCurrentConnection();
+            if (!files.hasNext() && prefetched.isEmpty()) {
+                return null;
+            }
+            completed = false;
+
+            InputStream stream;
+            final PrefetchedFile next = prefetched.pollFirst();
+            if (next != null) {
+                path = next.path;
+                currentRange = next.range;
+                currentMetrics = next.metrics;
+                currentConnection = next.connection;
+                stream = next.stream;
+            }
+            else {
+                final InputFile file = files.next();
+                path = file.getPath();
+                currentRange = file.newLineRange();
+                currentMetrics = new FileTransferMetrics(path, hostStats);
+                currentConnection = connection;
+                if (currentRange != null) {
+                    stream = startRangeDownload(connection, path, currentRange, currentMetrics,
+                            task.getTransferBufferCount(), executor);
+                }
+                else {
+                    stream = startSegmentedDownload();
+                    if (stream == null) {
+                        stream = new ResumableInputStream(
+                                startDownload(log, connection, path, currentMetrics, 0L, executor),
+                                new FtpInputStreamReopener(log, connection, executor, path, currentMetrics));
+                    }
+                }
+            }
+            if (task.getDecompressInTransfer() && currentRange == null && TransferDecoder.isDecodable(path)) {
+                stream = TransferDecoder.start(log, decoderWorkers(), path, stream,
+                        task.getTransferBufferCount(), task.getTransferBufferSize(), task.getTransferDirectBuffers());
+            }
+            metrics.add(currentMetrics);
+            startPrefetch();
+
+            return new InputStreamWithHints(new FilterInputStream(stream) {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        return checkCompleted(super.read());
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException
+                    {
+                        return checkCompleted(super.read(b, off, len));
+                    }
+                }, path);
+        }
+
+        TransferMetrics getMetrics()
+        {
+            return metrics;
+        }
+
+        List<Map<String, Object>> getCommittedRanges()
+        {
+            return committedRanges;
+        }
+
+        /**
+         * Starts downloading a line range. The header lines of the file come first if the range
+         * doesn't start at the head of the file.
+         */
+        private InputStream startRangeDownload(final FtpConnection connection, final String path, final LineRange range,
+                final FileTransferMetrics fileMetrics, final int bufferCount, final ExecutorService transferExecutor)
+        {
+            final byte[] header = readHeader(log, connection, path, fileMetrics, range, task.getCheckpointHeaderLines());
+            final InputStream stream = new ResumableInputStream(
+                    startDownload(log, connection, path, fileMetrics, range, 0L, bufferCount, transferExecutor),
+                    new FtpInputStreamReopener(log, connection, executor, path, fileMetrics, range));
+            if (header.length == 0) {
+                return stream;
+            }
+            return new SequenceInputStream(new ByteArrayInputStream(header), stream);
+        }
+
+        private void finishCurrentFile()
+        {
+            if (currentMetrics != null) {
+                currentMetrics.addLoginNanos(currentConnection.takeLoginNanos());
+                currentMetrics.finish(completed);
+                currentMetrics = null;
+            }
+        }
+
+        private void closeCurrentConnection()
+        {
+            if (currentConnection != connection) {
+                // a prefetched file has its own connection
+                currentConnection.close(completed);
+            }
+            else if (!completed) {
+                // the previous file was not read to the end. its transfer may still be running.
+                connection.close(false);
+            }
+        }
+
+        private void startPrefetch()
+        {
+            final int prefetchFiles = task.getPrefetchFiles();
+            // if no thread is free for prefetch now, try again at the next file
+            while (prefetched.size() < prefetchFiles && hasNextFileReady() && scheduler.tryReservePrefetch()) {
+                // doesn't wait for a connection, which would block reading the current file meanwhile
+                final FtpConnection prefetchConnection;
+                try {
+                    prefetchConnection = FtpConnection.tryOpen(log, task);
+                }
+                catch (final RuntimeException ex) {
+                    scheduler.cancelPrefetchReservation();
+                    throw ex;
+                }
+                if (prefetchConnection == null) {
+                    scheduler.cancelPrefetchReservation();
+                    log.info("No connection is free to prefetch. \"connection_pool_max_total\" connections are open");
+                    break;
+                }
+                final InputFile file = files.next();
+                final String next = file.getPath();
+                final LineRange range = file.newLineRange();
+                final int bufferCount = (int) Math.max(1L,
+                        Math.min(Integer.MAX_VALUE, task.getPrefetchMaxBytes() / prefetchFiles / task.getTransferBufferSize()));
+                log.info("Prefetching {}", next);
+                // the clock starts at the request, so the time waiting to be read is included
+                final FileTransferMetrics prefetchMetrics = new FileTransferMetrics(next, hostStats);
+                try {
+                    final InputStream stream;
+                    if (range != null) {
+                        stream = startRangeDownload(prefetchConnection, next, range, prefetchMetrics, bufferCount, prefetchExecutor);
+                    }
+                    else {
+                        stream = new ResumableInputStream(
+                                startDownload(log, prefetchConnection, next, prefetchMetrics, 0L, -1L, bufferCount, prefetchExecutor),
+                                new FtpInputStreamReopener(log, prefetchConnection, executor, next, prefetchMetrics));
+                    }
+                    prefetched.addLast(new PrefetchedFile(next, range, prefetchConnection, prefetchMetrics, stream));
+                }
+                catch (final RuntimeException ex) {
+                    // the transfer was not submitted. reading the header failed, or it was rejected.
+                    scheduler.cancelPrefetchReservation();
+                    prefetchConnection.close(false);
+                    throw ex;
+                }
+            }
+        }
+
+        // doesn't wait for the crawler to prefetch a streamed file
+        private boolean hasNextFileReady()
+        {
+            if (files instanceof StreamingFileQueue.Files) {
+                return ((StreamingFileQueue.Files) files).hasReady();
+            }
+            return files.hasNext();
+        }
+
+        private int checkCompleted(final int result)
+        {
+            if (result < 0 && !completed) {
+                // the transfer finished cleanly. the connection can be reused.
+                completed = true;
+                if (currentRange != null) {
+                    committedRanges.add(currentRange.toMap(path));
+                }
+                finishCurrentFile();
+            }
+            return result;
+        }
+
+        // returns null if the file should be downloaded over a single connection
+        private InputStream startSegmentedDownload()
+        {
+            final int connections = task.getDownloadConnections();
+            if (connections <= 1 || task.getAsciiMode()) {
+                return null;
+            }
+
+            final long size;
+            try {
+                size = connection.get().fileSize(path);
+            }
+            catch (final FTPException | FTPIllegalReplyException | IOException ex) {
+                log.info("Could not get size of {}. Downloading it over a single connection: {}", path, ex.toString());
                 return null;
             }
-            opened = true;
 
-            return new InputStreamWithHints(
-                    new ResumableInputStream(
-                            startDownload(log, client, path, 0L, executor),
-                            new FtpInputStreamReopener(log, client, executor, path)), path
-            );
+            final long segmentSize = task.getDownloadSegmentSize();
+            if (size <= segmentSize) {
+                return null;
+            }
+
+            // doesn't wait for connections. other tasks may hold the rest of them and wait for theirs.
+            final long segmentCount = (size + segmentSize - 1) / segmentSize;
+            final Queue<FtpConnection> sources = new ConcurrentLinkedQueue<>();
+            try {
+                while (sources.size() < Math.min(connections, segmentCount)) {
+                    final FtpConnection source = FtpConnection.tryOpen(log, task);
+                    if (source == null) {
+                        break;
+                    }
+                    sources.add(source);
+                }
+            }
+            catch (final RuntimeException ex) {
+                closeAll(sources);
+                throw ex;
+            }
+            if (sources.size() < 2) {
+                closeAll(sources);
+                log.info("Downloading {} over a single connection. \"connection_pool_max_total\" connections are open", path);
+                return null;
+            }
+
+            final int buffers = task.getDownloadSegmentBuffers().orElse(connections * 2);
+            final FileTransferMetrics fileMetrics = currentMetrics;
+            log.info("Downloading {} ({} bytes) over {} connections with {} bytes segments", path, size, sources.size(), segmentSize);
+            return new SegmentedInputStream(log, size, segmentSize, sources.size(), buffers,
+                    new Callable<SegmentedInputStream.SegmentSource>() {
+                        @Override
+                        public SegmentedInputStream.SegmentSource call()
+                        {
+                            return new FtpSegmentSource(log, sources.remove(), executor, path, fileMetrics, size);
+                        }
+                    }, segmentWorkers());
+        }
+
+        private void closeAll(final Queue<FtpConnection> sources)
+        {
+            for (final FtpConnection source : sources) {
+                currentMetrics.addLoginNanos(source.takeLoginNanos());
+                source.close(true);
+            }
+        }
+
+        private ExecutorService segmentWorkers()
+        {
+            if (segmentWorkers == null) {
+                // not on the transfer scheduler. a worker waiting for its transfer could hold
+                // the thread which the transfer needs.
+                segmentWorkers = Executors.newCachedThreadPool(new FormattedThreadFactory("embulk-input-ftp-segment-%d"));
+            }
+            return segmentWorkers;
+        }
+
+        private ExecutorService decoderWorkers()
+        {
+            if (decoderWorkers == null) {
+                // not on the transfer scheduler for the same reason as segmentWorkers
+                decoderWorkers = Executors.newCachedThreadPool(new FormattedThreadFactory("embulk-input-ftp-decoder-%d"));
+            }
+            return decoderWorkers;
         }
 
         @Override
         public void close()
         {
             try {
+                finishCurrentFile();
                 executor.shutdownNow();
+                prefetchExecutor.shutdownNow();
+                if (segmentWorkers != null) {
+                    segmentWorkers.shutdownNow();
+                }
+                if (decoderWorkers != null) {
+                    decoderWorkers.shutdownNow();
+                }
+                log.debug("Transfer scheduler: {} active, {} queued", scheduler.getActiveCount(), scheduler.getQueueDepth());
             }
             finally {
-                disconnectClient(client);
+                for (final PrefetchedFile file : prefetched) {
+                    try {
+                        file.stream.close();
+                    }
+                    catch (final IOException ex) {
+                        // do nothing
+                    }
+                    file.connection.close(false);
+                }
+                prefetched.clear();
+                if (currentConnection != connection) {
+                    currentConnection.close(completed);
+                    connection.close(true);
+                }
+                else {
+                    connection.close(completed);
+                }
             }
         }
     }
 
+    private static class PrefetchedFile
+    {
+        private final String path;
+        private final LineRange range;
+        private final FtpConnection connection;
+        private final FileTransferMetrics metrics;
+        private final InputStream stream;
+
+        PrefetchedFile(final String path, final LineRange range, final FtpConnection connection, final FileTransferMetrics metrics,
+                final InputStream stream)
+        {
+            this.path = path;
+            this.range = range;
+            this.connection = connection;
+            this.metrics = metrics;
+            this.stream = stream;
+        }
+    }
+
+    private static class FtpSegmentSource
+            implements SegmentedInputStream.SegmentSource
+    {
+        private final Logger log;
+        private final FtpConnection connection;
+        private final ExecutorService executor;
+        private final String path;
+        private final FileTransferMetrics metrics;
+        private final long size;
+
+        FtpSegmentSource(final Logger log, final FtpConnection connection, final ExecutorService executor, final String path,
+                final FileTransferMetrics metrics, final long size)
+        {
+            this.log = log;
+            this.connection = connection;
+            this.executor = executor;
+            this.path = path;
+            this.metrics = metrics;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream open(final long start, final long end)
+        {
+            // the last segment reads until EOF so that the transfer completes without ABOR
+            final long endOffset = end < size ? end : -1L;
+            final InputStream in = new ResumableInputStream(
+                    startDownload(log, connection, path, metrics, start, endOffset, executor),
+                    new FtpInputStreamReopener(log, connection, executor, path, metrics, start, endOffset));
+            return new FilterInputStream(in) {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            // the next segment or the next borrower of the connection must not
+                            // start before the ABOR of this segment is done
+                            connection.awaitTransfer();
+                        }
+                    }
+                };
+        }
+
+        @Override
+        public void close(final boolean reusable)
+        {
+            metrics.addLoginNanos(connection.takeLoginNanos());
+            connection.close(reusable);
+        }
+    }
+
     public static class FtpFileInput
             extends InputStreamFileInput
             implements TransactionalFileInput
     {
+        private final FtpFileProvider provider;
+
         public FtpFileInput(final Logger log, final PluginTask task, final int taskIndex)
         {
-            super(Exec.getBufferAllocator(), new SingleFileProvider(log, task, taskIndex));
+            this(new FtpFileProvider(log, task, taskIndex));
+        }
+
+        private FtpFileInput(final FtpFileProvider provider)
+        {
+            super(Exec.getBufferAllocator(), provider);
+            this.provider = provider;
         }
 
         @Override
@@ -682,12 +2279,321 @@ public class FtpFileInputPlugin
         @Override
         public TaskReport commit()
         {
-            return CONFIG_MAPPER_FACTORY.newTaskReport();
+            final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+            report.set(TransferMetrics.REPORT_KEY, provider.getMetrics().toMap());
+            if (!provider.getCommittedRanges().isEmpty()) {
+                report.set(LineRange.REPORT_KEY, provider.getCommittedRanges());
+            }
+            return report;
+        }
+    }
+
+    /**
+     * TransactionalFileInput which downloads files into Embulk buffers. The transfer thread
+     * copies received bytes into a buffer once, and {@link #poll()} returns it without copying.
+     * A failed transfer is restarted with REST from the number of bytes received so far.
+     */
+    public static class FtpBufferFileInput
+            implements TransactionalFileInput
+    {
+        private final Logger log;
+        private final PluginTask task;
+        private final BufferAllocator allocator;
+        private final FtpConnection connection;
+        private final ExecutorService executor;
+        private final Iterator<InputFile> files;
+        private final HostTransferStats hostStats;
+        private final TransferMetrics metrics;
+        private final List<Map<String, Object>> committedRanges = new ArrayList<>();
+        private String path;
+        private LineRange currentRange;
+        private FileTransferMetrics currentMetrics;
+        private BufferTransfer transfer;
+        private TransferTask transferTask;
+        private boolean completed = true;
+
+        public FtpBufferFileInput(final Logger log, final PluginTask task, final int taskIndex)
+        {
+            this.log = log;
+            this.task = task;
+            this.allocator = Exec.getBufferAllocator();
+            this.hostStats = HostTransferStats.of(log, connectionKey(task).getName());
+            this.metrics = new TransferMetrics(log);
+            this.connection = new FtpConnection(log, task);
+            this.executor = TransferScheduler.getInstance(log, task.getTransferMaxThreads(), task.getTransferVirtualThreads())
+                    .newTaskExecutor();
+            this.files = filesOfTask(task, taskIndex);
+        }
+
+        @Override
+        public boolean nextFile()
+        {
+            closeTransfer();
+            finishCurrentFile();
+            if (!files.hasNext()) {
+                return false;
+            }
+            final InputFile file = files.next();
+            path = file.getPath();
+            currentRange = file.newLineRange();
+            completed = false;
+            currentMetrics = new FileTransferMetrics(path, hostStats);
+            metrics.add(currentMetrics);
+            transfer = startTransfer(path, currentRange, currentMetrics);
+            return true;
+        }
+
+        private void finishCurrentFile()
+        {
+            if (currentMetrics != null) {
+                currentMetrics.addLoginNanos(connection.takeLoginNanos());
+                currentMetrics.finish(completed);
+                currentMetrics = null;
+            }
+        }
+
+        private BufferTransfer startTransfer(final String path, final LineRange range, final FileTransferMetrics fileMetrics)
+        {
+            final BufferTransfer transfer = new BufferTransfer(allocator, task.getTransferBufferCount(), task.getTransferBufferSize());
+            transferTask = new TransferTask(path, range, fileMetrics, transfer);
+            transferTask.future = executor.submit(transferTask);
+            return transfer;
+        }
+
+        /**
+         * Downloads a file into a {@link BufferTransfer}. If it doesn't finish, it disconnects the
+         * connection on its way out, because the connection is in the middle of the transfer.
+         */
+        private class TransferTask
+                implements Runnable
+        {
+            private final String path;
+            private final LineRange range;
+            private final FileTransferMetrics fileMetrics;
+            private final BufferTransfer transfer;
+            // false until it starts running or is stopped before that
+            private final AtomicBoolean started = new AtomicBoolean(false);
+            private final CountDownLatch ended = new CountDownLatch(1);
+            private volatile Future<?> future;
+
+            TransferTask(final String path, final LineRange range, final FileTransferMetrics fileMetrics, final BufferTransfer transfer)
+            {
+                this.path = path;
+                this.range = range;
+                this.fileMetrics = fileMetrics;
+                this.transfer = transfer;
+            }
+
+            @Override
+            public void run()
+            {
+                if (!started.compareAndSet(false, true)) {
+                    return;
+                }
+                boolean finished = false;
+                try {
+                    int headerLength = 0;
+                    if (range != null) {
+                        final byte[] header = readHeader(log, connection, path, fileMetrics, range, task.getCheckpointHeaderLines());
+                        transfer.getOutputStream().write(header);
+                        headerLength = header.length;
+                    }
+                    downloadWithRetry(path, range, headerLength, fileMetrics, transfer);
+                    transfer.finish();
+                    finished = true;
+                }
+                catch (final IOException ex) {
+                    transfer.fail(new UncheckedIOException(ex));
+                }
+                catch (final RuntimeException ex) {
+                    transfer.fail(ex);
+                }
+                finally {
+                    if (!finished) {
+                        connection.close(false);
+                    }
+                    ended.countDown();
+                }
+            }
+
+            /**
+             * Stops the transfer and waits until it no longer uses the connection.
+             */
+            void stop(final boolean completed)
+            {
+                transfer.close();
+                if (!started.compareAndSet(false, true)) {
+                    if (!completed) {
+                        // a transfer blocked on the data socket doesn't notice the interrupt
+                        connection.close(false);
+                    }
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                    try {
+                        ended.await();
+                    }
+                    catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void downloadWithRetry(final String path, final LineRange range, final int headerLength,
+                final FileTransferMetrics fileMetrics, final BufferTransfer transfer)
+                throws IOException
+        {
+            try {
+                RetryExecutor.builder()
+                    .withRetryLimit(task.getMaximumRetries())
+                    .withInitialRetryWaitMillis(task.getInitialRetryIntervalMillis())
+                    .withMaxRetryWaitMillis(task.getMaximumRetryIntervalMillis())
+                    .build()
+                    .runInterruptible(new Retryable<Void>() {
+                        // when the first failure of the ongoing retries happened, or -1
+                        private long failedNanos = -1L;
+
+                        @Override
+                        public Void call()
+                        {
+                            if (transfer.isClosed()) {
+                                // the reader moved on. the next file may be using the connection.
+                                return null;
+                            }
+                            final FTPClient client = connection.get();
+                            if (failedNanos >= 0) {
+                                fileMetrics.addRetryNanos(System.nanoTime() - failedNanos);
+                                failedNanos = -1L;
+                            }
+                            final long delivered = transfer.getReceivedBytes() - headerLength;
+                            if (range != null) {
+                                download(log, client, connection.compression, connection.governor, path, fileMetrics, range.restartOffset(delivered), -1L,
+                                        range.newCursor(delivered), transfer.getOutputStream());
+                            }
+                            else {
+                                download(log, client, connection.compression, connection.governor, path, fileMetrics, delivered, -1L, transfer.getOutputStream());
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean isRetryableException(final Exception exception)
+                        {
+                            return !transfer.isClosed() && FtpErrors.isRetryable(exception);
+                        }
+
+                        @Override
+                        public void onRetry(final Exception exception, final int retryCount, final int retryLimit, final int retryWait)
+                                throws RetryGiveupException
+                        {
+                            if (failedNanos < 0) {
+                                failedNanos = System.nanoTime();
+                            }
+                            log.warn(String.format("FTP GET request failed. Retrying %d/%d after %d seconds with %,d bytes offset. Message: %s",
+                                    retryCount, retryLimit, retryWait / 1000, transfer.getReceivedBytes(), exception.getMessage()), exception);
+                            connection.dumpTrace("FTP GET request of " + path + " failed: " + exception);
+                            if (!FtpErrors.isControlConnectionAlive(exception)) {
+                                connection.reconnect();
+                            }
+                            fileMetrics.reopened();
+                        }
+
+                        @Override
+                        public void onGiveup(final Exception firstException, final Exception lastException)
+                                throws RetryGiveupException
+                        {
+                            if (failedNanos >= 0) {
+                                fileMetrics.addRetryNanos(System.nanoTime() - failedNanos);
+                            }
+                            connection.dumpTrace("FTP GET request of " + path + " failed: " + lastException);
+                        }
+                    });
+            }
+            catch (final RetryGiveupException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public Buffer poll()
+        {
+            if (transfer == null) {
+                return null;
+            }
+            try {
+                final Buffer buffer = transfer.poll();
+                if (buffer == null && !completed) {
+                    // the transfer finished cleanly. the connection can be reused.
+                    completed = true;
+                    if (currentRange != null) {
+                        committedRanges.add(currentRange.toMap(path));
+                    }
+                    finishCurrentFile();
+                }
+                return buffer;
+            }
+            catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public Optional<String> hintOfCurrentInputFileNameForLogging()
+        {
+            return Optional.ofNullable(path);
+        }
+
+        private void closeTransfer()
+        {
+            if (transfer != null) {
+                transferTask.stop(completed);
+                transfer = null;
+                transferTask = null;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                closeTransfer();
+                finishCurrentFile();
+                executor.shutdownNow();
+            }
+            finally {
+                connection.close(completed);
+            }
+        }
+
+        @Override
+        public void abort()
+        {
+        }
+
+        @Override
+        public TaskReport commit()
+        {
+            final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+            report.set(TransferMetrics.REPORT_KEY, metrics.toMap());
+            if (!committedRanges.isEmpty()) {
+                report.set(LineRange.REPORT_KEY, committedRanges);
+            }
+            return report;
         }
     }
 
     private static class FormattedThreadFactory implements ThreadFactory {
-        FormattedThreadFactory() {
+        FormattedThreadFactory(final String nameFormat) {
+            this.nameFormat = nameFormat;
             this.count = new AtomicLong(0);
         }
 
@@ -695,11 +2601,12 @@ public class FtpFileInputPlugin
         public Thread newThread(final Runnable runnable)
         {
             final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-            thread.setName(String.format(Locale.ROOT, "embulk-input-ftp-transfer-%d", this.count.getAndIncrement()));
+            thread.setName(String.format(Locale.ROOT, this.nameFormat, this.count.getAndIncrement()));
             thread.setDaemon(true);
             return thread;
         }
 
+        private final String nameFormat;
         private final AtomicLong count;
     }
 }
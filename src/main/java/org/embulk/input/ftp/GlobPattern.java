@@ -0,0 +1,137 @@
+package org.embulk.input.ftp;
+
+import java.util.regex.Pattern;
+
+import org.embulk.config.ConfigException;
+
+/**
+ * Compiles a glob matched against the whole path into a regular expression.
+ *
+ * <ul>
+ * <li>{@code *} matches any characters except "/", and {@code ?} matches one of them</li>
+ * <li>{@code **} matches any characters including "/". {@code **}{@code /} matches zero or more
+ * directories, and a trailing {@code /**} also matches the directory itself</li>
+ * <li>{@code [abc]}, {@code [a-z]} and {@code [!abc]} match a character in (or not in) the set</li>
+ * <li>{@code {a,b}} matches one of the alternatives</li>
+ * <li>{@code \} escapes the next character</li>
+ * </ul>
+ */
+class GlobPattern
+{
+    private GlobPattern()
+    {
+        // No instantiation.
+    }
+
+    static Pattern compile(final String glob)
+    {
+        final StringBuilder regex = new StringBuilder();
+        int braces = 0;
+        int i = 0;
+        while (i < glob.length()) {
+            final char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                if (glob.startsWith("**", i)) {
+                    if (glob.startsWith("**/", i)) {
+                        regex.append("(?:.*/)?");
+                        i += 3;
+                    }
+                    else {
+                        regex.append(".*");
+                        i += 2;
+                    }
+                }
+                else {
+                    regex.append("[^/]*");
+                    i++;
+                }
+                break;
+            case '/':
+                if (glob.startsWith("/**", i) && i + 3 == glob.length()) {
+                    regex.append("(?:/.*)?");
+                    i += 3;
+                }
+                else {
+                    regex.append('/');
+                    i++;
+                }
+                break;
+            case '?':
+                regex.append("[^/]");
+                i++;
+                break;
+            case '[':
+                i = appendCharacterClass(glob, i, regex);
+                break;
+            case '{':
+                regex.append("(?:");
+                braces++;
+                i++;
+                break;
+            case '}':
+                if (braces == 0) {
+                    throw invalid(glob, "unmatched '}'");
+                }
+                regex.append(')');
+                braces--;
+                i++;
+                break;
+            case ',':
+                regex.append(braces > 0 ? "|" : ",");
+                i++;
+                break;
+            case '\\':
+                if (i + 1 >= glob.length()) {
+                    throw invalid(glob, "trailing '\\'");
+                }
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(i + 1))));
+                i += 2;
+                break;
+            default:
+                regex.append(Pattern.quote(String.valueOf(c)));
+                i++;
+            }
+        }
+        if (braces != 0) {
+            throw invalid(glob, "unmatched '{'");
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    // returns the index after the closing ']'
+    private static int appendCharacterClass(final String glob, final int start, final StringBuilder regex)
+    {
+        int i = start + 1;
+        regex.append('[');
+        if (i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+            regex.append('^');
+            i++;
+        }
+        boolean first = true;
+        while (i < glob.length() && (first || glob.charAt(i) != ']')) {
+            final char c = glob.charAt(i);
+            if (c == '-' && !first && i + 1 < glob.length() && glob.charAt(i + 1) != ']') {
+                regex.append('-');
+            }
+            else {
+                if (c == '\\' || c == '[' || c == ']' || c == '^' || c == '&' || c == '-') {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+            first = false;
+            i++;
+        }
+        if (i >= glob.length()) {
+            throw invalid(glob, "unmatched '['");
+        }
+        regex.append(']');
+        return i + 1;
+    }
+
+    private static ConfigException invalid(final String glob, final String reason)
+    {
+        return new ConfigException("Invalid glob \"" + glob + "\": " + reason);
+    }
+}
@@ -0,0 +1,117 @@
+package org.embulk.input.ftp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+
+/**
+ * JVM-wide transfer counters of each FTP server, shared by all tasks and registered to the
+ * platform MBean server so that they can be graphed during long runs. A server is named by
+ * {@link FtpConnectionPool.Key#getName()}, so different ports, users or TLS settings of the
+ * same host are counted separately.
+ */
+class HostTransferStats
+        implements HostTransferStatsMXBean
+{
+    private static final ConcurrentMap<String, HostTransferStats> STATS = new ConcurrentHashMap<>();
+
+    private final String server;
+    private final RateMeter rate = new RateMeter(System.nanoTime());
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalFiles = new AtomicLong();
+
+    HostTransferStats(final String server)
+    {
+        this.server = server;
+    }
+
+    static HostTransferStats of(final Logger log, final String server)
+    {
+        HostTransferStats stats = STATS.get(server);
+        if (stats == null) {
+            final HostTransferStats created = new HostTransferStats(server);
+            stats = STATS.putIfAbsent(server, created);
+            if (stats == null) {
+                stats = created;
+                register(log, created, "org.embulk.input.ftp:type=HostTransferStats,server=" + ObjectName.quote(server));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Registers an MXBean to the platform MBean server. Failures are ignored because metrics
+     * must not stop the transfer.
+     */
+    static void register(final Logger log, final Object mxbean, final String name)
+    {
+        try {
+            final ObjectName objectName = new ObjectName(name);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mxbean, objectName);
+            }
+        }
+        catch (final JMException | RuntimeException ex) {
+            log.debug("Could not register MBean {}", name, ex);
+        }
+    }
+
+    void transferStarted()
+    {
+        activeTransfers.incrementAndGet();
+    }
+
+    void transferEnded()
+    {
+        activeTransfers.decrementAndGet();
+    }
+
+    void transferred(final long bytes, final long nowNanos)
+    {
+        totalBytes.addAndGet(bytes);
+        rate.add(bytes, nowNanos);
+    }
+
+    void fileCompleted()
+    {
+        totalFiles.incrementAndGet();
+    }
+
+    @Override
+    public String getServer()
+    {
+        return server;
+    }
+
+    @Override
+    public long getBytesPerSecond()
+    {
+        return rate.getRate(System.nanoTime());
+    }
+
+    @Override
+    public int getActiveTransfers()
+    {
+        return activeTransfers.get();
+    }
+
+    @Override
+    public long getTotalBytes()
+    {
+        return totalBytes.get();
+    }
+
+    @Override
+    public long getTotalFiles()
+    {
+        return totalFiles.get();
+    }
+}
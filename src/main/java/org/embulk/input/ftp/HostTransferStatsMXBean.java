@@ -0,0 +1,24 @@
+package org.embulk.input.ftp;
+
+/**
+ * Live transfer counters of a FTP server, published as
+ * {@code org.embulk.input.ftp:type=HostTransferStats,server=<server>}.
+ */
+public interface HostTransferStatsMXBean
+{
+    /**
+     * The user, the server and the TLS settings, like "user@host:21".
+     */
+    String getServer();
+
+    /**
+     * Bytes received from the server per second, over the last second.
+     */
+    long getBytesPerSecond();
+
+    int getActiveTransfers();
+
+    long getTotalBytes();
+
+    long getTotalFiles();
+}
@@ -0,0 +1,301 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+
+/**
+ * On-disk state of incremental loading which records the path, the size and the modify time
+ * of the files loaded so far, used if {@code incremental_state_file} is set.
+ *
+ * A listed file is loaded if it's not in the state, or if its size or modify time is different.
+ * An unknown size or modify time is not compared, and neither is a modify time parsed from LIST,
+ * which has minute precision, or day precision with an inferred year for an old file. Entries are sorted by path and front-coded:
+ * each path is stored as the length of the prefix shared with the previous path and the rest,
+ * so a directory with millions of similar paths stays small. The listed files are sorted and
+ * merged with the entries read one by one, so the state is never loaded in memory as a whole.
+ *
+ * {@link #prepare} writes the next state to a pending file next to the state file, and
+ * {@link #commit} replaces the state file with it after all tasks succeed.
+ */
+class IncrementalState
+{
+    private static final int MAGIC = 0x45465453;  // "EFTS"
+    private static final int VERSION = 1;
+
+    private static final Comparator<RemoteFile> BY_PATH = new Comparator<RemoteFile>() {
+        @Override
+        public int compare(final RemoteFile a, final RemoteFile b)
+        {
+            return a.getPath().compareTo(b.getPath());
+        }
+    };
+
+    private IncrementalState()
+    {
+    }
+
+    /**
+     * Returns the listed files which are new or changed since the state in {@code file}, in the
+     * listed order, and writes the listed files to the pending state.
+     */
+    static List<RemoteFile> prepare(final Logger log, final Path file, final String server, final List<RemoteFile> listed)
+    {
+        final List<RemoteFile> sorted = new ArrayList<>(listed);
+        Collections.sort(sorted, BY_PATH);
+
+        final Map<RemoteFile, Boolean> unchanged = new IdentityHashMap<>();
+        if (Files.exists(file)) {
+            try (final Reader reader = new Reader(file)) {
+                if (!server.equals(reader.getServer())) {
+                    log.warn("Incremental state {} is for {}, not {}. Loading all files", file, reader.getServer(), server);
+                }
+                else {
+                    int i = 0;
+                    while (i < sorted.size() && reader.next()) {
+                        while (i < sorted.size() && sorted.get(i).getPath().compareTo(reader.getPath()) < 0) {
+                            i++;
+                        }
+                        if (i < sorted.size() && sorted.get(i).getPath().equals(reader.getPath())) {
+                            if (isUnchanged(sorted.get(i), reader)) {
+                                unchanged.put(sorted.get(i), Boolean.TRUE);
+                            }
+                            i++;
+                        }
+                    }
+                }
+            }
+            catch (final IOException ex) {
+                throw new UncheckedIOException("Failed to read incremental state " + file, ex);
+            }
+        }
+
+        final List<RemoteFile> changed = new ArrayList<>();
+        for (final RemoteFile remote : listed) {
+            if (!unchanged.containsKey(remote)) {
+                changed.add(remote);
+            }
+        }
+        log.info("Incremental state {}: {} files listed, {} new or changed, {} unchanged",
+                file, listed.size(), changed.size(), unchanged.size());
+
+        write(pendingFile(file), server, sorted);
+        return changed;
+    }
+
+    /**
+     * Replaces {@code file} with its pending file written by {@link #prepare} or by
+     * {@link SeenPathIndex#write}. Does nothing if there is no pending file, such as when a
+     * resumed execution committed it already.
+     */
+    static void commit(final Logger log, final Path file)
+    {
+        final Path pending = pendingFile(file);
+        try {
+            if (Files.exists(pending)) {
+                Files.move(pending, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log.info("Saved incremental state {}", file);
+            }
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException("Failed to save incremental state " + file, ex);
+        }
+    }
+
+    static Path pendingFile(final Path file)
+    {
+        final Path absolute = file.toAbsolutePath();
+        final Path name = Paths.get(absolute.getFileName() + ".pending");
+        return absolute.getParent() == null ? name : absolute.getParent().resolve(name);
+    }
+
+    /**
+     * Writes files sorted by path to {@code file}. The file is replaced atomically.
+     */
+    static void write(final Path file, final String server, final List<RemoteFile> sorted)
+    {
+        final Path parent = file.toAbsolutePath().getParent();
+        try {
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(server);
+                    byte[] previous = new byte[0];
+                    for (final RemoteFile remote : sorted) {
+                        final byte[] path = remote.getPath().getBytes(StandardCharsets.UTF_8);
+                        final int shared = sharedPrefixLength(previous, path);
+                        writeVarLong(out, shared);
+                        writeVarLong(out, path.length - shared);
+                        out.write(path, shared, path.length - shared);
+                        // +1 so that -1 for unknown is 0
+                        writeVarLong(out, Math.max(remote.getSize(), -1L) + 1);
+                        writeVarLong(out, Math.max(exactModifiedTimeOf(remote), -1L) + 1);
+                        previous = path;
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException("Failed to write incremental state " + file, ex);
+        }
+    }
+
+    private static boolean isUnchanged(final RemoteFile listed, final Reader state)
+    {
+        if (listed.getSize() >= 0 && state.getSize() >= 0 && listed.getSize() != state.getSize()) {
+            return false;
+        }
+        final long modifiedTime = exactModifiedTimeOf(listed);
+        if (modifiedTime >= 0 && state.getModifiedTime() >= 0 && modifiedTime != state.getModifiedTime()) {
+            return false;
+        }
+        return true;
+    }
+
+    private static long exactModifiedTimeOf(final RemoteFile remote)
+    {
+        return remote.hasExactModifiedTime() ? remote.getModifiedTime() : -1L;
+    }
+
+    static int sharedPrefixLength(final byte[] a, final byte[] b)
+    {
+        final int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    static void writeVarLong(final DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(final DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length number");
+    }
+
+    /**
+     * Reads the entries of a state file one by one in the order of paths.
+     */
+    static class Reader
+            implements Closeable
+    {
+        private final DataInputStream in;
+        private final String server;
+        private byte[] path = new byte[0];
+        private String pathString;
+        private long size;
+        private long modifiedTime;
+
+        Reader(final Path file) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unknown incremental state format");
+                }
+                this.server = in.readUTF();
+            }
+            catch (final IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        String getServer()
+        {
+            return server;
+        }
+
+        /**
+         * Reads the next entry. Returns false at the end.
+         */
+        boolean next() throws IOException
+        {
+            final int shared;
+            try {
+                shared = (int) readVarLong(in);
+            }
+            catch (final EOFException ex) {
+                return false;
+            }
+            final int suffix = (int) readVarLong(in);
+            if (shared > path.length || suffix < 0) {
+                throw new IOException("Malformed incremental state");
+            }
+            final byte[] next = new byte[shared + suffix];
+            System.arraycopy(path, 0, next, 0, shared);
+            in.readFully(next, shared, suffix);
+            path = next;
+            pathString = new String(next, StandardCharsets.UTF_8);
+            size = readVarLong(in) - 1;
+            modifiedTime = readVarLong(in) - 1;
+            return true;
+        }
+
+        String getPath()
+        {
+            return pathString;
+        }
+
+        long getSize()
+        {
+            return size;
+        }
+
+        long getModifiedTime()
+        {
+            return modifiedTime;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
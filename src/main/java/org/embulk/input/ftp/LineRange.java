@@ -0,0 +1,196 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A byte range of a file whose boundaries are moved to line boundaries, so that ranges of a
+ * line-oriented file can be read separately and each line is read exactly once.
+ *
+ * A line belongs to the range which contains its first byte. Reading a range starts at the
+ * first line which begins at {@code start} or later, and ends at the end of the line which
+ * contains the byte at {@code end - 1}. To know whether {@code start} begins a line, the
+ * transfer starts at {@code start - 1} and skips through the first line feed.
+ *
+ * An instance is shared by the retries of a range: once the first line is found, a retry
+ * restarts right after the bytes already delivered.
+ */
+class LineRange
+{
+    // task report key of the ranges read completely by the task
+    static final String REPORT_KEY = "committed_ranges";
+
+    private static final byte LF = '\n';
+
+    private final long start;
+    // negative means the end of the file
+    private final long end;
+    // offset of the first line of this range, or -1 if not found yet
+    private volatile long firstLineStart;
+
+    LineRange(final long start, final long end)
+    {
+        this.start = start;
+        this.end = end;
+        this.firstLineStart = start == 0 ? 0 : -1;
+    }
+
+    /**
+     * Splits a file of {@code size} bytes into ranges of {@code rangeBytes}. Returns the start
+     * and the end of each range, and the end of the last range is -1.
+     */
+    static List<Long> split(final long size, final long rangeBytes)
+    {
+        final List<Long> ranges = new ArrayList<>();
+        for (long start = 0; start == 0 || start < size; start += rangeBytes) {
+            ranges.add(start);
+            ranges.add(start + rangeBytes < size ? start + rangeBytes : -1L);
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * Returns the first {@code lines} lines of {@code head}, or null if it doesn't have them.
+     */
+    static byte[] firstLines(final byte[] head, final int lines)
+    {
+        int found = 0;
+        for (int i = 0; i < head.length && found < lines; i++) {
+            if (head[i] == LF && ++found == lines) {
+                final byte[] header = new byte[i + 1];
+                System.arraycopy(head, 0, header, 0, i + 1);
+                return header;
+            }
+        }
+        return lines == 0 ? new byte[0] : null;
+    }
+
+    long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Returns the end of the range, or -1 if it reads until the end of the file.
+     */
+    long getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Returns the offset to restart the transfer at when {@code delivered} bytes of this range
+     * were delivered.
+     */
+    long restartOffset(final long delivered)
+    {
+        final long first = firstLineStart;
+        if (first < 0) {
+            return start - 1;
+        }
+        return first + delivered;
+    }
+
+    /**
+     * Returns a cursor for a transfer started at {@link #restartOffset(long)}.
+     */
+    Cursor newCursor(final long delivered)
+    {
+        return new Cursor(restartOffset(delivered), firstLineStart < 0);
+    }
+
+    Map<String, Object> toMap(final String path)
+    {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("path", path);
+        map.put("start", start);
+        map.put("end", end);
+        return map;
+    }
+
+    @Override
+    public String toString()
+    {
+        return start + "-" + (end < 0 ? "" : String.valueOf(end));
+    }
+
+    /**
+     * Tracks the position of a transfer and finds the bytes of the range in the received bytes.
+     */
+    class Cursor
+    {
+        // offset of the next received byte
+        private long position;
+        private boolean skipping;
+        private boolean ended;
+
+        private Cursor(final long position, final boolean skipping)
+        {
+            this.position = position;
+            this.skipping = skipping;
+        }
+
+        /**
+         * Returns the number of bytes at the head of {@code b} which precede the range.
+         */
+        int skip(final byte[] b, final int off, final int len)
+        {
+            if (!skipping) {
+                return 0;
+            }
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == LF) {
+                    final int n = i - off + 1;
+                    position += n;
+                    skipping = false;
+                    firstLineStart = position;
+                    if (end >= 0 && position >= end) {
+                        // the line which precedes the range covers it
+                        ended = true;
+                    }
+                    return n;
+                }
+            }
+            position += len;
+            return len;
+        }
+
+        /**
+         * Returns the number of bytes at the head of {@code b} which belong to the range. Call it
+         * with the bytes after the ones skipped by {@link #skip}.
+         */
+        int take(final byte[] b, final int off, final int len)
+        {
+            if (ended || skipping) {
+                return 0;
+            }
+            if (end < 0) {
+                position += len;
+                return len;
+            }
+            // the range ends at the first line feed at end - 1 or later
+            for (int i = off + (int) Math.max(0L, Math.min(len, end - 1 - position)); i < off + len; i++) {
+                if (b[i] == LF) {
+                    final int n = i - off + 1;
+                    position += n;
+                    ended = true;
+                    return n;
+                }
+            }
+            position += len;
+            return len;
+        }
+
+        /**
+         * Returns true if the last byte of the range was taken. The rest of the transfer is not
+         * needed.
+         */
+        boolean isEnded()
+        {
+            return ended;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+/**
+ * On-disk cache of directory listings, keyed by server and absolute directory path.
+ *
+ * A cached listing is used instead of listing the directory again only if:
+ * <ul>
+ * <li>the modify time of the directory reported by its parent is the same as the cached one, and</li>
+ * <li>the directory and every directory below it were already older than {@code stableMillis}
+ * when they were listed, and all of them are in the cache.</li>
+ * </ul>
+ * The second rule assumes that old subtrees don't change any more, which is typical for
+ * date-partitioned trees. Directories with unknown modify time are always listed.
+ *
+ * Directories which were not visited by the latest run, because {@code last_path}, globs or
+ * {@code max_depth} pruned them, are kept when the cache is saved, so that their parents can be
+ * reused. They are dropped when the nearest visited directory above them doesn't have them any more.
+ *
+ * Rewriting a file in place doesn't change the modify time of its directory, so the size and the
+ * modify time of files in a reused listing can be stale.
+ */
+class ListingCache
+{
+    private static final int MAGIC = 0x45465443;  // "EFTC"
+    private static final int VERSION = 1;
+
+    private final Logger log;
+    private final Path file;
+    private final String server;
+    private final long stableMillis;
+
+    // entries of other servers are kept as they are
+    private final Map<String, Map<String, CachedDirectory>> otherServers;
+    private final Map<String, CachedDirectory> loaded;
+    private final Set<String> frozen;
+
+    // guarded by this
+    private final Map<String, CachedDirectory> visited = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    private ListingCache(final Logger log, final Path file, final String server, final long stableMillis,
+            final Map<String, Map<String, CachedDirectory>> otherServers, final Map<String, CachedDirectory> loaded)
+    {
+        this.log = log;
+        this.file = file;
+        this.server = server;
+        this.stableMillis = stableMillis;
+        this.otherServers = otherServers;
+        this.loaded = loaded;
+        this.frozen = findFrozenDirectories(loaded, stableMillis);
+    }
+
+    /**
+     * Loads the cache file. If {@code refresh} is true or the file doesn't exist, starts with an empty cache.
+     */
+    static ListingCache load(final Logger log, final Path file, final String server, final long stableMillis, final boolean refresh)
+    {
+        final Map<String, Map<String, CachedDirectory>> servers = new HashMap<>();
+        if (refresh) {
+            log.info("Refreshing listing cache {}", file);
+        }
+        else if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                read(in, servers);
+            }
+            catch (final IOException ex) {
+                log.warn("Ignoring broken listing cache " + file, ex);
+                servers.clear();
+            }
+        }
+
+        Map<String, CachedDirectory> loaded = servers.remove(server);
+        if (loaded == null) {
+            loaded = new HashMap<>();
+        }
+        final ListingCache cache = new ListingCache(log, file, server, stableMillis, servers, loaded);
+        log.info("Loaded listing cache {} with {} directories ({} reusable)", file, loaded.size(), cache.frozen.size());
+        return cache;
+    }
+
+    /**
+     * Returns the number of cached directories of the server.
+     */
+    int size()
+    {
+        return loaded.size();
+    }
+
+    /**
+     * Returns the cached entries of the directory, or null if the directory needs to be listed.
+     */
+    FTPFile[] lookup(final String absolutePath, final long modifiedTime)
+    {
+        final CachedDirectory cached = loaded.get(absolutePath);
+        synchronized (this) {
+            if (modifiedTime < 0 || cached == null || cached.modifiedTime != modifiedTime || !frozen.contains(absolutePath)) {
+                misses++;
+                return null;
+            }
+            hits++;
+            visited.put(absolutePath, cached);
+        }
+        return cached.toFTPFiles();
+    }
+
+    synchronized void put(final String absolutePath, final long modifiedTime, final FTPFile[] entries)
+    {
+        visited.put(absolutePath, CachedDirectory.of(modifiedTime, System.currentTimeMillis(), entries));
+    }
+
+    /**
+     * Writes the directories visited by this run and the cached ones which still exist. The file
+     * is replaced atomically.
+     */
+    synchronized void save()
+    {
+        final Map<String, CachedDirectory> saved = new HashMap<>(visited);
+        for (final Map.Entry<String, CachedDirectory> entry : loaded.entrySet()) {
+            if (!saved.containsKey(entry.getKey()) && !isRemoved(entry.getKey())) {
+                saved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Map<String, Map<String, CachedDirectory>> servers = new HashMap<>(otherServers);
+        servers.put(server, saved);
+
+        final Path parent = file.toAbsolutePath().getParent();
+        try {
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                    write(out, servers);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (final IOException ex) {
+            log.warn("Failed to save listing cache " + file, ex);
+            return;
+        }
+        log.info("Saved listing cache {} with {} directories. {} directories were answered from the cache and {} were listed",
+                file, saved.size(), hits, misses);
+    }
+
+    // true if the nearest visited directory above the path doesn't have the directory on the way to it
+    private boolean isRemoved(final String path)
+    {
+        String child = path;
+        while (child.length() > 1) {
+            final int slash = child.lastIndexOf('/');
+            if (slash < 0) {
+                return false;
+            }
+            final String parent = slash == 0 ? "/" : child.substring(0, slash);
+            // the base directory may be listed with a trailing slash
+            CachedDirectory listed = visited.get(parent);
+            if (listed == null) {
+                listed = visited.get(parent + "/");
+            }
+            if (listed != null) {
+                return !listed.hasDirectory(child.substring(slash + 1));
+            }
+            child = parent;
+        }
+        return false;
+    }
+
+    // a directory is frozen if it and all directories below it were older than stableMillis when listed
+    private static Set<String> findFrozenDirectories(final Map<String, CachedDirectory> directories, final long stableMillis)
+    {
+        final Map<String, Boolean> memo = new HashMap<>();
+        final Set<String> frozen = new HashSet<>();
+        for (final String path : directories.keySet()) {
+            if (isFrozen(path, directories, stableMillis, memo)) {
+                frozen.add(path);
+            }
+        }
+        return frozen;
+    }
+
+    private static boolean isFrozen(final String path, final Map<String, CachedDirectory> directories,
+            final long stableMillis, final Map<String, Boolean> memo)
+    {
+        final Boolean known = memo.get(path);
+        if (known != null) {
+            return known;
+        }
+        memo.put(path, false);  // guards against cycles
+
+        final CachedDirectory directory = directories.get(path);
+        boolean result = directory != null
+            && directory.modifiedTime >= 0
+            && directory.modifiedTime < directory.listedAt - stableMillis;
+        for (int i = 0; result && i < directory.names.length; i++) {
+            if (directory.types[i] == FTPFile.TYPE_DIRECTORY) {
+                final String child = path.endsWith("/") ? path + directory.names[i] : path + "/" + directory.names[i];
+                final CachedDirectory cachedChild = directories.get(child);
+                result = cachedChild != null
+                    && cachedChild.modifiedTime == directory.modifiedTimes[i]
+                    && isFrozen(child, directories, stableMillis, memo);
+            }
+        }
+        memo.put(path, result);
+        return result;
+    }
+
+    private static void read(final DataInputStream in, final Map<String, Map<String, CachedDirectory>> servers) throws IOException
+    {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unknown listing cache format");
+        }
+        final int serverCount = in.readInt();
+        for (int s = 0; s < serverCount; s++) {
+            final String server = in.readUTF();
+            final int directoryCount = in.readInt();
+            final Map<String, CachedDirectory> directories = new HashMap<>(directoryCount * 2);
+            for (int d = 0; d < directoryCount; d++) {
+                final String path = in.readUTF();
+                directories.put(path, CachedDirectory.read(in));
+            }
+            servers.put(server, directories);
+        }
+    }
+
+    private static void write(final DataOutputStream out, final Map<String, Map<String, CachedDirectory>> servers) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(servers.size());
+        for (final Map.Entry<String, Map<String, CachedDirectory>> server : servers.entrySet()) {
+            out.writeUTF(server.getKey());
+            out.writeInt(server.getValue().size());
+            for (final Map.Entry<String, CachedDirectory> directory : server.getValue().entrySet()) {
+                out.writeUTF(directory.getKey());
+                directory.getValue().write(out);
+            }
+        }
+    }
+
+    // non-negative values and -1 (unknown) are stored as unsigned varints of (value + 1)
+    static void writeVarLong(final OutputStream out, final long value) throws IOException
+    {
+        long v = value + 1;
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static long readVarLong(final InputStream in) throws IOException
+    {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v - 1;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static class CachedDirectory
+    {
+        private final long modifiedTime;
+        private final long listedAt;
+        private final String[] names;
+        private final byte[] types;
+        private final long[] sizes;
+        private final long[] modifiedTimes;
+
+        private CachedDirectory(final long modifiedTime, final long listedAt,
+                final String[] names, final byte[] types, final long[] sizes, final long[] modifiedTimes)
+        {
+            this.modifiedTime = modifiedTime;
+            this.listedAt = listedAt;
+            this.names = names;
+            this.types = types;
+            this.sizes = sizes;
+            this.modifiedTimes = modifiedTimes;
+        }
+
+        static CachedDirectory of(final long modifiedTime, final long listedAt, final FTPFile[] entries)
+        {
+            final String[] names = new String[entries.length];
+            final byte[] types = new byte[entries.length];
+            final long[] sizes = new long[entries.length];
+            final long[] modifiedTimes = new long[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                names[i] = entries[i].getName();
+                types[i] = (byte) entries[i].getType();
+                sizes[i] = entries[i].getSize();
+                modifiedTimes[i] = DirectoryLister.modifiedTimeOf(entries[i]);
+            }
+            return new CachedDirectory(modifiedTime, listedAt, names, types, sizes, modifiedTimes);
+        }
+
+        boolean hasDirectory(final String name)
+        {
+            for (int i = 0; i < names.length; i++) {
+                if (types[i] == FTPFile.TYPE_DIRECTORY && names[i].equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        FTPFile[] toFTPFiles()
+        {
+            final FTPFile[] entries = new FTPFile[names.length];
+            for (int i = 0; i < names.length; i++) {
+                final FTPFile entry = new FTPFile();
+                entry.setName(names[i]);
+                entry.setType(types[i]);
+                entry.setSize(sizes[i]);
+                entry.setModifiedDate(modifiedTimes[i] < 0 ? null : new Date(modifiedTimes[i]));
+                entries[i] = entry;
+            }
+            return entries;
+        }
+
+        static CachedDirectory read(final DataInputStream in) throws IOException
+        {
+            final long modifiedTime = readVarLong(in);
+            final long listedAt = readVarLong(in);
+            final int count = (int) readVarLong(in);
+            final String[] names = new String[count];
+            final byte[] types = new byte[count];
+            final long[] sizes = new long[count];
+            final long[] modifiedTimes = new long[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                types[i] = in.readByte();
+                sizes[i] = readVarLong(in);
+                modifiedTimes[i] = readVarLong(in);
+            }
+            return new CachedDirectory(modifiedTime, listedAt, names, types, sizes, modifiedTimes);
+        }
+
+        void write(final DataOutputStream out) throws IOException
+        {
+            writeVarLong(out, modifiedTime);
+            writeVarLong(out, listedAt);
+            writeVarLong(out, names.length);
+            for (int i = 0; i < names.length; i++) {
+                out.writeUTF(names[i]);
+                out.writeByte(types[i]);
+                writeVarLong(out, sizes[i]);
+                writeVarLong(out, modifiedTimes[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.input.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.sauronsoftware.ftp4j.connectors.DirectConnector;
+
+/**
+ * Connector which counts the bytes received on data connections, before MODE Z inflates them,
+ * and throttles them by a {@link BandwidthGovernor} if one is set.
+ *
+ * Data connections are connected in the same way as {@link DirectConnector}, except that the
+ * socket buffer sizes are left to the OS, which tunes them for the link. Only data connections
+ * made by the client are counted, so nothing is counted in active mode. Over TLS, the bytes
+ * include the overhead of TLS records.
+ */
+class MeteredConnector
+        extends DirectConnector
+{
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicLong throttleNanos = new AtomicLong();
+
+    private volatile BandwidthGovernor governor;
+
+    @Override
+    public Socket connectForDataTransferChannel(final String host, final int port) throws IOException
+    {
+        final Socket socket = new MeteredSocket();
+        try {
+            socket.setSoTimeout(readTimeout * 1000);
+            socket.setSoLinger(true, closeTimeout);
+            socket.connect(new InetSocketAddress(host, port), connectionTimeout * 1000);
+            return socket;
+        }
+        catch (final IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the bytes received on the data connections so far.
+     */
+    long getDataBytes()
+    {
+        return dataBytes.get();
+    }
+
+    /**
+     * Throttles the bytes received on data connections by {@code governor} from now on, or
+     * stops throttling them if it's null.
+     */
+    void setGovernor(final BandwidthGovernor governor)
+    {
+        this.governor = governor;
+    }
+
+    /**
+     * Returns the nanoseconds spent waiting for the governor since the last call.
+     */
+    long takeThrottleNanos()
+    {
+        return throttleNanos.getAndSet(0L);
+    }
+
+    private void received(final int bytes)
+    {
+        dataBytes.addAndGet(bytes);
+        final BandwidthGovernor current = governor;
+        if (current != null) {
+            // waiting here stops reading the data connection, which slows the server down
+            throttleNanos.addAndGet(current.acquire(bytes));
+        }
+    }
+
+    private class MeteredSocket
+            extends Socket
+    {
+        private InputStream in;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (in == null) {
+                in = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        final int b = super.read();
+                        if (b >= 0) {
+                            received(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException
+                    {
+                        final int n = super.read(b, off, len);
+                        if (n > 0) {
+                            received(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+            return in;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPFile;
+
+/**
+ * Lists files under a path prefix recursively over multiple connections.
+ *
+ * Directories are put in a shared work queue, and each connection takes one, lists it,
+ * and puts its subdirectories back. The result is the same set of files as the sequential
+ * listing, sorted by path. Each file is also given to a consumer when it's found, so that it can
+ * be read before the listing ends.
+ */
+class ParallelDirectoryCrawler
+{
+    private final Logger log;
+    private final Supplier<FTPClient> clientFactory;
+    private final int concurrency;
+    private final PathFilter filter;
+    private final Optional<ListingCache> cache;
+    private final Optional<Consumer<RemoteFile>> found;
+
+    // guarded by this
+    private final Deque<Directory> queue = new ArrayDeque<>();
+    private final List<RemoteFile> files = new ArrayList<>();
+    private int pendingDirectories;
+    private Exception failure;
+
+    ParallelDirectoryCrawler(final Logger log, final Supplier<FTPClient> clientFactory,
+            final int concurrency, final PathFilter filter)
+    {
+        this(log, clientFactory, concurrency, filter, Optional.<ListingCache>empty());
+    }
+
+    ParallelDirectoryCrawler(final Logger log, final Supplier<FTPClient> clientFactory,
+            final int concurrency, final PathFilter filter, final Optional<ListingCache> cache)
+    {
+        this(log, clientFactory, concurrency, filter, cache, Optional.<Consumer<RemoteFile>>empty());
+    }
+
+    ParallelDirectoryCrawler(final Logger log, final Supplier<FTPClient> clientFactory,
+            final int concurrency, final PathFilter filter, final Optional<ListingCache> cache,
+            final Optional<Consumer<RemoteFile>> found)
+    {
+        this.log = log;
+        this.clientFactory = clientFactory;
+        this.concurrency = concurrency;
+        this.filter = filter;
+        this.cache = cache;
+        this.found = found;
+    }
+
+    List<RemoteFile> crawl(final String prefix)
+    {
+        final String[] split = FtpFileInputPlugin.splitPathPrefix(prefix);
+        final String directory = split[0];
+        final String fileNamePrefix = split[1];
+        final long startedAt = System.currentTimeMillis();
+
+        final FtpConnectionPool pool = FtpConnectionPool.getInstance();
+        final FTPClient client = clientFactory.get();
+        final String homeDirectory;
+        final DirectoryLister lister;
+        try {
+            homeDirectory = client.currentDirectory();
+            log.info("Listing ftp files at directory '{}' filtering filename by prefix '{}' with {} connections",
+                    directory.isEmpty() ? homeDirectory : directory, fileNamePrefix, concurrency);
+
+            final String baseDirectory = directory.isEmpty() ? homeDirectory : directory;
+            lister = DirectoryLister.create(log, cache);
+            for (final FTPFile file : lister.list(client, DirectoryLister.resolve(homeDirectory, baseDirectory))) {
+                if (file.getName().startsWith(fileNamePrefix)) {
+                    visit(baseDirectory, file, 0);
+                }
+            }
+        }
+        catch (final Exception ex) {
+            ProtocolTrace.dump(client, "Listing files failed");
+            pool.invalidate(client);
+            throw FtpFileInputPlugin.listingFailed(log, ex);
+        }
+
+        final List<Worker> workers = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ListerThreadFactory());
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                // the first worker reuses the connection which listed the base directory
+                final Worker worker = new Worker(i, i == 0 ? client : null, homeDirectory, lister);
+                workers.add(worker);
+                executor.submit(worker);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait until all workers finish
+            }
+        }
+        catch (final InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                throw FtpFileInputPlugin.listingFailed(log, failure);
+            }
+        }
+
+        long directories = 0;
+        for (final Worker worker : workers) {
+            directories += worker.directories;
+            log.info("Listing connection #{}: {} directories, {} entries, {} ms busy",
+                    worker.id, worker.directories, worker.entries, worker.busyMillis);
+        }
+        log.info("Listed {} directories and found {} files in {} ms with {} connections",
+                directories, files.size(), System.currentTimeMillis() - startedAt, concurrency);
+
+        final List<RemoteFile> result = new ArrayList<>(files);
+        Collections.sort(result, new Comparator<RemoteFile>() {
+                @Override
+                public int compare(final RemoteFile o1, final RemoteFile o2)
+                {
+                    return o1.getPath().compareTo(o2.getPath());
+                }
+            });
+        return Collections.unmodifiableList(result);
+    }
+
+    private synchronized void visit(String baseDirectoryPath, final FTPFile file, final int depth)
+    {
+        if (!baseDirectoryPath.endsWith("/")) {
+            baseDirectoryPath = baseDirectoryPath + "/";
+        }
+        final String path = baseDirectoryPath + file.getName();
+
+        switch (file.getType()) {
+        case FTPFile.TYPE_FILE:
+            if (filter.shouldVisit(path) && filter.accepts(path)) {
+                final RemoteFile remote = FtpFileInputPlugin.toRemoteFile(path, file);
+                files.add(remote);
+                if (found.isPresent()) {
+                    found.get().accept(remote);
+                }
+            }
+            break;
+        case FTPFile.TYPE_DIRECTORY:
+            if (!filter.shouldVisitDirectory(path, depth)) {
+                break;
+            }
+            queue.addLast(new Directory(path, DirectoryLister.modifiedTimeOf(file), depth));
+            pendingDirectories++;
+            notifyAll();
+            break;
+        case FTPFile.TYPE_LINK:
+            // skipped as in FtpFileInputPlugin.listFilesRecursive
+            log.debug("Skipping symbolic link {} -> {}", path, file.getLink());
+            break;
+        }
+    }
+
+    // returns null when all directories are listed or listing failed
+    private synchronized Directory takeDirectory() throws InterruptedException
+    {
+        while (queue.isEmpty() && pendingDirectories > 0 && failure == null) {
+            wait();
+        }
+        if (failure != null || queue.isEmpty()) {
+            return null;
+        }
+        return queue.pollFirst();
+    }
+
+    private synchronized void finishDirectory()
+    {
+        pendingDirectories--;
+        notifyAll();
+    }
+
+    private synchronized void fail(final Exception ex)
+    {
+        if (failure == null) {
+            failure = ex;
+        }
+        notifyAll();
+    }
+
+    // a queued directory, with its modify time to look up the listing cache
+    private static class Directory
+    {
+        private final String path;
+        private final long modifiedTime;
+        private final int depth;
+
+        Directory(final String path, final long modifiedTime, final int depth)
+        {
+            this.path = path;
+            this.modifiedTime = modifiedTime;
+            this.depth = depth;
+        }
+    }
+
+    private class Worker
+            implements Runnable
+    {
+        private final int id;
+        private final String homeDirectory;
+        private final DirectoryLister lister;
+        private FTPClient client;
+
+        private long directories;
+        private long entries;
+        private long busyMillis;
+
+        Worker(final int id, final FTPClient client, final String homeDirectory, final DirectoryLister lister)
+        {
+            this.id = id;
+            this.client = client;
+            this.homeDirectory = homeDirectory;
+            this.lister = lister;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean reusable = false;
+            try {
+                while (true) {
+                    final Directory directory = takeDirectory();
+                    if (directory == null) {
+                        break;
+                    }
+                    if (client == null) {
+                        client = clientFactory.get();
+                    }
+
+                    final long startedAt = System.currentTimeMillis();
+                    final FTPFile[] list = lister.list(client,
+                            DirectoryLister.resolve(homeDirectory, directory.path), directory.modifiedTime);
+                    for (final FTPFile file : list) {
+                        visit(directory.path, file, directory.depth + 1);
+                    }
+                    directories++;
+                    entries += list.length;
+                    busyMillis += System.currentTimeMillis() - startedAt;
+                    finishDirectory();
+                }
+                if (client != null && !homeDirectory.equals(client.currentDirectory())) {
+                    client.changeDirectory(homeDirectory);
+                }
+                reusable = true;
+            }
+            catch (final Exception ex) {
+                if (client != null) {
+                    ProtocolTrace.dump(client, "Listing files failed");
+                }
+                fail(ex);
+            }
+            finally {
+                if (client != null) {
+                    if (reusable) {
+                        FtpConnectionPool.getInstance().release(client);
+                    }
+                    else {
+                        FtpConnectionPool.getInstance().invalidate(client);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class ListerThreadFactory
+            implements ThreadFactory
+    {
+        private final AtomicLong count = new AtomicLong(0);
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName(String.format(Locale.ROOT, "embulk-input-ftp-lister-%d", count.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
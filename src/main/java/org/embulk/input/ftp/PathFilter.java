@@ -0,0 +1,142 @@
+package org.embulk.input.ftp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which listed entries are visited and which files are loaded.
+ *
+ * Directories are pruned before they are listed if no path under them can be loaded:
+ * include globs and an anchored {@code path_match_pattern} are tried against "{@code <dir>/}"
+ * as a prefix with {@link Matcher#hitEnd()}, which tells whether a longer input could still match.
+ */
+class PathFilter
+{
+    private final Optional<String> lastPath;
+    private final Pattern pathMatchPattern;
+    private final boolean anchored;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final Optional<Integer> maxDepth;
+    private final SeenPathIndex seen;
+
+    PathFilter(final Optional<String> lastPath, final Pattern pathMatchPattern)
+    {
+        this(lastPath, pathMatchPattern, false, Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(),
+                Optional.<Integer>empty());
+    }
+
+    PathFilter(final Optional<String> lastPath, final Pattern pathMatchPattern, final boolean anchored,
+            final List<Pattern> includes, final List<Pattern> excludes, final Optional<Integer> maxDepth)
+    {
+        this(lastPath, pathMatchPattern, anchored, includes, excludes, maxDepth, SeenPathIndex.empty());
+    }
+
+    PathFilter(final Optional<String> lastPath, final Pattern pathMatchPattern, final boolean anchored,
+            final List<Pattern> includes, final List<Pattern> excludes, final Optional<Integer> maxDepth,
+            final SeenPathIndex seen)
+    {
+        this.lastPath = lastPath;
+        this.pathMatchPattern = pathMatchPattern;
+        this.anchored = anchored;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.maxDepth = maxDepth;
+        this.seen = seen;
+    }
+
+    /**
+     * Returns false if the file at {@code path} should be skipped because it sorts before
+     * {@code last_path} or it was loaded before.
+     */
+    boolean shouldVisit(final String path)
+    {
+        if (lastPath.isPresent() && path.compareTo(lastPath.get()) <= 0) {
+            return false;
+        }
+        return !seen.contains(path);
+    }
+
+    /**
+     * Returns false if no path under the directory at {@code path} sorts after {@code last_path}.
+     *
+     * All paths under the directory start with "{@code path}/", so they sort before
+     * {@code last_path} if "{@code path}/" does and is not a prefix of it. The directory that
+     * contains {@code last_path} is visited because it may have newer entries.
+     */
+    boolean shouldVisitDirectory(final String path)
+    {
+        if (!lastPath.isPresent()) {
+            return true;
+        }
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        return lastPath.get().startsWith(prefix) || prefix.compareTo(lastPath.get()) > 0;
+    }
+
+    /**
+     * Returns false if the directory at {@code path} should not be listed. {@code depth} is the
+     * number of directories between the directory of {@code path_prefix} and this directory.
+     */
+    boolean shouldVisitDirectory(final String path, final int depth)
+    {
+        if (maxDepth.isPresent() && depth >= maxDepth.get()) {
+            return false;
+        }
+        if (!shouldVisitDirectory(path)) {
+            return false;
+        }
+        for (final Pattern exclude : excludes) {
+            if (exclude.matcher(path).matches()) {
+                return false;
+            }
+        }
+
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        if (anchored && !canMatch(pathMatchPattern, prefix)) {
+            return false;
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (final Pattern include : includes) {
+            if (canMatch(include, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the file at {@code path} should be loaded.
+     */
+    boolean accepts(final String path)
+    {
+        if (anchored ? !pathMatchPattern.matcher(path).matches() : !pathMatchPattern.matcher(path).find()) {
+            return false;
+        }
+        for (final Pattern exclude : excludes) {
+            if (exclude.matcher(path).matches()) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (final Pattern include : includes) {
+            if (include.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if the pattern matches prefix or some string starting with it
+    private static boolean canMatch(final Pattern pattern, final String prefix)
+    {
+        final Matcher matcher = pattern.matcher(prefix);
+        return matcher.matches() || matcher.hitEnd();
+    }
+}
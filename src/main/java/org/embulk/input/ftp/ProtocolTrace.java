@@ -0,0 +1,182 @@
+package org.embulk.input.ftp;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPCommunicationListener;
+
+/**
+ * Records the lines of an FTP control connection in a ring buffer, instead of logging each of them.
+ *
+ * <ul>
+ * <li>{@code off}: nothing is recorded.</li>
+ * <li>{@code errors}: commands and replies except NOOP keepalives are recorded, and dumped to the
+ *   log when a transfer or listing fails.</li>
+ * <li>{@code all}: NOOP keepalives are recorded too, and each line is also logged at DEBUG.</li>
+ * </ul>
+ *
+ * A line of the summary is logged when the connection is closed. Arguments of PASS and ACCT are
+ * never recorded.
+ */
+class ProtocolTrace
+        implements FTPCommunicationListener
+{
+    enum Level
+    {
+        OFF, ERRORS, ALL;
+
+        static Level of(final String name)
+        {
+            for (final Level level : values()) {
+                if (level.name().equalsIgnoreCase(name)) {
+                    return level;
+                }
+            }
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "\"protocol_trace\" must be one of off, errors or all, but got \"%s\".", name));
+        }
+    }
+
+    private final Logger log;
+    private final Level level;
+    private final String server;
+    private final long startedAt = System.currentTimeMillis();
+
+    // guarded by this
+    private final long[] times;
+    private final String[] lines;
+    private int next;
+    private int size;
+    private long commands;
+    private long replies;
+    private long noops;
+    private boolean skipReply;
+
+    ProtocolTrace(final Logger log, final Level level, final String server, final int capacity)
+    {
+        this.log = log;
+        this.level = level;
+        this.server = server;
+        this.times = new long[capacity];
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Returns the trace of the client, or null if it's not traced.
+     */
+    static ProtocolTrace of(final FTPClient client)
+    {
+        for (final FTPCommunicationListener listener : client.getCommunicationListeners()) {
+            if (listener instanceof ProtocolTrace) {
+                return (ProtocolTrace) listener;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Dumps the trace of the client, if it's traced.
+     */
+    static void dump(final FTPClient client, final String reason)
+    {
+        final ProtocolTrace trace = of(client);
+        if (trace != null) {
+            trace.dump(reason);
+        }
+    }
+
+    @Override
+    public synchronized void sent(final String statement)
+    {
+        commands++;
+        if (statement.regionMatches(true, 0, "NOOP", 0, 4)) {
+            noops++;
+            if (level != Level.ALL) {
+                // the reply to a keepalive is not recorded either
+                skipReply = true;
+                return;
+            }
+        }
+        record("> " + redact(statement));
+    }
+
+    @Override
+    public synchronized void received(final String statement)
+    {
+        replies++;
+        if (skipReply) {
+            skipReply = false;
+            return;
+        }
+        record("< " + statement);
+    }
+
+    static String redact(final String statement)
+    {
+        if (statement.regionMatches(true, 0, "PASS", 0, 4) || statement.regionMatches(true, 0, "ACCT", 0, 4)) {
+            return statement.substring(0, 4) + " ********";
+        }
+        return statement;
+    }
+
+    private void record(final String line)
+    {
+        times[next] = System.currentTimeMillis();
+        lines[next] = line;
+        next = (next + 1) % lines.length;
+        size = Math.min(size + 1, lines.length);
+        if (level == Level.ALL && log.isDebugEnabled()) {
+            log.debug(line);
+        }
+    }
+
+    /**
+     * Logs the recorded lines at WARN, and clears them so that the next dump has only new lines.
+     */
+    synchronized void dump(final String reason)
+    {
+        if (size == 0) {
+            return;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "%s. Last %d lines of the FTP control connection to %s:", reason, size, server));
+        for (int i = 0; i < size; i++) {
+            final int index = (next - size + i + lines.length) % lines.length;
+            sb.append(System.lineSeparator()).append(format.format(new Date(times[index]))).append(' ').append(lines[index]);
+            lines[index] = null;
+        }
+        size = 0;
+        log.warn(sb.toString());
+    }
+
+    /**
+     * Returns the recorded lines from the oldest.
+     */
+    synchronized List<String> recordedLines()
+    {
+        final List<String> recorded = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            recorded.add(lines[(next - size + i + lines.length) % lines.length]);
+        }
+        return recorded;
+    }
+
+    synchronized String summary()
+    {
+        return String.format(Locale.ENGLISH, "%,d commands (%,d NOOP) and %,d replies in %,d ms",
+                commands, noops, replies, System.currentTimeMillis() - startedAt);
+    }
+
+    void logSummary()
+    {
+        log.info("Closed FTP control connection to {}: {}", server, summary());
+    }
+}
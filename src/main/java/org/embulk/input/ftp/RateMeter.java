@@ -0,0 +1,70 @@
+package org.embulk.input.ftp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures bytes per second over one-second windows, and keeps the highest rate seen.
+ */
+class RateMeter
+{
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // a shorter last window is too noisy to be a peak
+    private static final long MIN_PARTIAL_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long windowStart;
+    private long windowBytes;
+    private long lastRate;
+    private long peakRate;
+
+    RateMeter(final long nowNanos)
+    {
+        this.windowStart = nowNanos;
+    }
+
+    synchronized void add(final long bytes, final long nowNanos)
+    {
+        roll(nowNanos);
+        windowBytes += bytes;
+    }
+
+    /**
+     * Returns the rate of the last complete window in bytes per second.
+     */
+    synchronized long getRate(final long nowNanos)
+    {
+        roll(nowNanos);
+        return lastRate;
+    }
+
+    /**
+     * Returns the highest rate in bytes per second, including the current window if it's long enough.
+     */
+    synchronized long getPeakRate(final long nowNanos)
+    {
+        roll(nowNanos);
+        final long elapsed = nowNanos - windowStart;
+        if (elapsed >= MIN_PARTIAL_WINDOW_NANOS) {
+            return Math.max(peakRate, rate(windowBytes, elapsed));
+        }
+        return peakRate;
+    }
+
+    private void roll(final long nowNanos)
+    {
+        final long elapsed = nowNanos - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            lastRate = rate(windowBytes, elapsed);
+            peakRate = Math.max(peakRate, lastRate);
+            windowStart = nowNanos;
+            windowBytes = 0;
+        }
+    }
+
+    static long rate(final long bytes, final long nanos)
+    {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (long) (bytes * (double) WINDOW_NANOS / nanos);
+    }
+}
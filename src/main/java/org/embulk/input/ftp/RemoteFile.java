@@ -0,0 +1,60 @@
+package org.embulk.input.ftp;
+
+/**
+ * A file found by listing, with the facts returned by the server.
+ */
+class RemoteFile
+{
+    private final String path;
+    private final long size;
+    private final long modifiedTime;
+    private final boolean exactModifiedTime;
+
+    RemoteFile(final String path, final long size, final long modifiedTime)
+    {
+        this(path, size, modifiedTime, true);
+    }
+
+    RemoteFile(final String path, final long size, final long modifiedTime, final boolean exactModifiedTime)
+    {
+        this.path = path;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.exactModifiedTime = exactModifiedTime;
+    }
+
+    String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the size in bytes, or a negative value if the server didn't report it.
+     */
+    long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the modification time in epoch milliseconds, or a negative value if unknown.
+     */
+    long getModifiedTime()
+    {
+        return modifiedTime;
+    }
+
+    /**
+     * Returns false if the modification time was parsed from LIST, which has minute or day precision.
+     */
+    boolean hasExactModifiedTime()
+    {
+        return exactModifiedTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
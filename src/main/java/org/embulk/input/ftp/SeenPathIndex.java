@@ -0,0 +1,325 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+/**
+ * Set of the paths loaded so far, used if {@code incremental_seen_file} is set. Listed files in
+ * the set are skipped, so it works with file names which are not sorted in the order they are
+ * added, unlike {@code last_path}.
+ *
+ * Paths are sorted by their UTF-8 bytes and split into blocks of {@value #BLOCK_ENTRIES} paths.
+ * In a block, each path is stored as the length of the prefix shared with the previous path and
+ * the rest, so similar paths take a few bytes each. A lookup tries a Bloom filter first, which
+ * rejects most paths not in the set without touching the blocks. Otherwise it finds the block by
+ * a binary search on the first path of each block, which is stored whole, and decodes the block.
+ *
+ * The index is kept in memory as it's stored in the file: a bit array and a byte array of
+ * blocks. Loading it reads them without creating an object for each path.
+ */
+class SeenPathIndex
+{
+    private static final int MAGIC = 0x45465449;  // "EFTI"
+    private static final int VERSION = 1;
+
+    private static final int BLOCK_ENTRIES = 64;
+
+    // about 1% false positives
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] a, final byte[] b)
+        {
+            return compareBytes(a, 0, a.length, b);
+        }
+    };
+
+    private final int size;
+    private final long[] bloom;
+    private final int[] blockOffsets;
+    private final byte[] blocks;
+
+    private SeenPathIndex(final int size, final long[] bloom, final int[] blockOffsets, final byte[] blocks)
+    {
+        this.size = size;
+        this.bloom = bloom;
+        this.blockOffsets = blockOffsets;
+        this.blocks = blocks;
+    }
+
+    static SeenPathIndex empty()
+    {
+        return new SeenPathIndex(0, new long[1], new int[0], new byte[0]);
+    }
+
+    /**
+     * Loads the index. Returns an empty index if {@code file} doesn't exist or is for another server.
+     */
+    static SeenPathIndex load(final Logger log, final Path file, final String server)
+    {
+        if (!Files.exists(file)) {
+            log.info("Seen path index {} doesn't exist. Loading all files", file);
+            return empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown seen path index format");
+            }
+            final String indexServer = in.readUTF();
+            if (!server.equals(indexServer)) {
+                log.warn("Seen path index {} is for {}, not {}. Loading all files", file, indexServer, server);
+                return empty();
+            }
+            final int size = in.readInt();
+            final long[] bloom = new long[in.readInt()];
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] = in.readLong();
+            }
+            final int[] blockOffsets = new int[in.readInt()];
+            for (int i = 0; i < blockOffsets.length; i++) {
+                blockOffsets[i] = in.readInt();
+            }
+            final byte[] blocks = new byte[in.readInt()];
+            in.readFully(blocks);
+            log.info("Loaded {} seen paths in {} bytes from {}", size, blocks.length + bloom.length * 8L, file);
+            return new SeenPathIndex(size, bloom, blockOffsets, blocks);
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException("Failed to read seen path index " + file, ex);
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean contains(final String path)
+    {
+        if (size == 0) {
+            return false;
+        }
+        final byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        if (!mightContain(bloom, key)) {
+            return false;
+        }
+
+        // the last block whose first path is not after the key
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            final int[] cursor = {blockOffsets[mid]};
+            readVarInt(cursor);  // shared, always 0
+            final int length = readVarInt(cursor);
+            if (compareBytes(blocks, cursor[0], length, key) <= 0) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        final int end = low + 1 < blockOffsets.length ? blockOffsets[low + 1] : blocks.length;
+        final int[] cursor = {blockOffsets[low]};
+        byte[] current = new byte[0];
+        while (cursor[0] < end) {
+            current = readEntry(cursor, current);
+            final int c = UNSIGNED_ORDER.compare(current, key);
+            if (c == 0) {
+                return true;
+            }
+            if (c > 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the paths in {@code index} and {@code added} to {@code file}. The file is replaced atomically.
+     */
+    static void write(final Path file, final String server, final SeenPathIndex index, final Collection<String> added)
+    {
+        final List<byte[]> sortedAdded = new ArrayList<>(added.size());
+        for (final String path : added) {
+            sortedAdded.add(path.getBytes(StandardCharsets.UTF_8));
+        }
+        Collections.sort(sortedAdded, UNSIGNED_ORDER);
+
+        final int capacity = index.size + sortedAdded.size();
+        final long[] bloom = new long[Math.max(1, (int) (((long) capacity * BLOOM_BITS_PER_ENTRY + 63) / 64))];
+        final List<Integer> blockOffsets = new ArrayList<>();
+        final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        int size = 0;
+        byte[] previous = null;
+        // merges the paths decoded from the index one by one with the added paths
+        final int[] cursor = {0};
+        byte[] existing = cursor[0] < index.blocks.length ? index.readEntry(cursor, new byte[0]) : null;
+        int j = 0;
+        while (existing != null || j < sortedAdded.size()) {
+            final byte[] next;
+            if (j >= sortedAdded.size() || (existing != null && UNSIGNED_ORDER.compare(existing, sortedAdded.get(j)) <= 0)) {
+                next = existing;
+                existing = cursor[0] < index.blocks.length ? index.readEntry(cursor, existing) : null;
+            }
+            else {
+                next = sortedAdded.get(j++);
+            }
+            if (previous != null && UNSIGNED_ORDER.compare(previous, next) == 0) {
+                continue;
+            }
+            final int shared;
+            if (size % BLOCK_ENTRIES == 0) {
+                blockOffsets.add(blocks.size());
+                shared = 0;
+            }
+            else {
+                shared = IncrementalState.sharedPrefixLength(previous, next);
+            }
+            writeVarInt(blocks, shared);
+            writeVarInt(blocks, next.length - shared);
+            blocks.write(next, shared, next.length - shared);
+            addToBloom(bloom, next);
+            previous = next;
+            size++;
+        }
+
+        final Path parent = file.toAbsolutePath().getParent();
+        try {
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(server);
+                    out.writeInt(size);
+                    out.writeInt(bloom.length);
+                    for (final long word : bloom) {
+                        out.writeLong(word);
+                    }
+                    out.writeInt(blockOffsets.size());
+                    for (final int offset : blockOffsets) {
+                        out.writeInt(offset);
+                    }
+                    out.writeInt(blocks.size());
+                    blocks.writeTo(out);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (final IOException ex) {
+            throw new UncheckedIOException("Failed to write seen path index " + file, ex);
+        }
+    }
+
+    private byte[] readEntry(final int[] cursor, final byte[] previous)
+    {
+        final int shared = readVarInt(cursor);
+        final int suffix = readVarInt(cursor);
+        final byte[] entry = new byte[shared + suffix];
+        System.arraycopy(previous, 0, entry, 0, shared);
+        System.arraycopy(blocks, cursor[0], entry, shared, suffix);
+        cursor[0] += suffix;
+        return entry;
+    }
+
+    private int readVarInt(final int[] cursor)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = blocks[cursor[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void writeVarInt(final ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // compares bytes[offset, offset + length) with key as unsigned bytes
+    private static int compareBytes(final byte[] bytes, final int offset, final int length, final byte[] key)
+    {
+        final int max = Math.min(length, key.length);
+        for (int i = 0; i < max; i++) {
+            final int c = (bytes[offset + i] & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static void addToBloom(final long[] bloom, final byte[] key)
+    {
+        final long hash = hash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = bloomBit(bloom, hash, i);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(final long[] bloom, final byte[] key)
+    {
+        final long hash = hash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = bloomBit(bloom, hash, i);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Kirsch-Mitzenmacher double hashing with the two 32-bit halves of a 64-bit hash
+    private static long bloomBit(final long[] bloom, final long hash, final int i)
+    {
+        return Math.floorMod((hash & 0xffffffffL) + i * (hash >>> 32), bloom.length * 64L);
+    }
+
+    private static long hash(final byte[] key)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // FNV-1a mixes the last bytes poorly into the upper bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,268 @@
+package org.embulk.input.ftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+
+/**
+ * InputStream which downloads fixed-size byte ranges of a single file over multiple
+ * connections concurrently, and returns them in the original order.
+ *
+ * At most {@code bufferedSegments} segments are downloading or waiting to be read at
+ * the same time, so memory usage is bounded by {@code bufferedSegments * segmentSize}.
+ */
+class SegmentedInputStream
+        extends InputStream
+{
+    interface SegmentSource
+    {
+        /**
+         * Opens a stream of bytes from {@code start} (inclusive) to {@code end} (exclusive).
+         */
+        InputStream open(long start, long end) throws IOException;
+
+        /**
+         * Closes the source. {@code reusable} is false if a segment was left partially read.
+         */
+        void close(boolean reusable);
+    }
+
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private final Logger log;
+    private final long size;
+    private final long segmentSize;
+    private final long segmentCount;
+    private final int bufferedSegments;
+
+    // guarded by this
+    private final Map<Long, byte[]> completedSegments = new HashMap<>();
+    private long nextSegmentToClaim;
+    private long nextSegmentToRead;
+    private Throwable failure;
+    private boolean closed;
+
+    private byte[] current;
+    private int currentPosition;
+
+    SegmentedInputStream(final Logger log, final long size, final long segmentSize,
+            final int connections, final int bufferedSegments,
+            final Callable<SegmentSource> sourceFactory, final ExecutorService executor)
+    {
+        this.log = log;
+        this.size = size;
+        this.segmentSize = segmentSize;
+        this.segmentCount = (size + segmentSize - 1) / segmentSize;
+        this.bufferedSegments = Math.max(bufferedSegments, connections);
+
+        final long workers = Math.min(connections, segmentCount);
+        for (int i = 0; i < workers; i++) {
+            executor.submit(new Worker(sourceFactory));
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!ensureCurrentSegment()) {
+            return -1;
+        }
+        return current[currentPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureCurrentSegment()) {
+            return -1;
+        }
+        final int n = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current, currentPosition, b, off, n);
+        currentPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return current == null ? 0 : current.length - currentPosition;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        completedSegments.clear();
+        notifyAll();
+    }
+
+    private boolean ensureCurrentSegment() throws IOException
+    {
+        while (current == null || currentPosition >= current.length) {
+            current = takeNextSegment();
+            currentPosition = 0;
+            if (current == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized byte[] takeNextSegment() throws IOException
+    {
+        if (nextSegmentToRead >= segmentCount) {
+            return null;
+        }
+        while (!completedSegments.containsKey(nextSegmentToRead)) {
+            if (failure != null) {
+                throwFailure();
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                wait();
+            }
+            catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        final byte[] segment = completedSegments.remove(nextSegmentToRead);
+        nextSegmentToRead++;
+        notifyAll();  // a slot in the reorder buffer is available
+        return segment;
+    }
+
+    private void throwFailure() throws IOException
+    {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        else {
+            throw new IOException(failure);
+        }
+    }
+
+    // returns -1 if there are no more segments to download
+    private synchronized long claimSegment() throws InterruptedException
+    {
+        while (!isStopped() && nextSegmentToClaim < segmentCount
+                && nextSegmentToClaim >= nextSegmentToRead + bufferedSegments) {
+            wait();
+        }
+        if (isStopped() || nextSegmentToClaim >= segmentCount) {
+            return -1;
+        }
+        return nextSegmentToClaim++;
+    }
+
+    private synchronized void completeSegment(final long index, final byte[] data)
+    {
+        if (!closed) {
+            completedSegments.put(index, data);
+        }
+        notifyAll();
+    }
+
+    private synchronized void fail(final Throwable ex)
+    {
+        if (failure == null) {
+            failure = ex;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean isStopped()
+    {
+        return closed || failure != null;
+    }
+
+    private class Worker
+            implements Runnable
+    {
+        private final Callable<SegmentSource> sourceFactory;
+
+        Worker(final Callable<SegmentSource> sourceFactory)
+        {
+            this.sourceFactory = sourceFactory;
+        }
+
+        @Override
+        public void run()
+        {
+            SegmentSource source = null;
+            boolean reusable = false;
+            try {
+                source = sourceFactory.call();
+                while (true) {
+                    final long index = claimSegment();
+                    if (index < 0) {
+                        reusable = true;
+                        return;
+                    }
+                    final long start = index * segmentSize;
+                    final long end = Math.min(start + segmentSize, size);
+                    log.debug("Downloading segment {}/{} ({}-{})", index + 1, segmentCount, start, end);
+
+                    final byte[] data = new byte[(int) (end - start)];
+                    if (!readSegment(source, start, end, data)) {
+                        return;
+                    }
+                    completeSegment(index, data);
+                }
+            }
+            catch (final InterruptedException ex) {
+                fail(new InterruptedIOException());
+            }
+            catch (final Exception ex) {
+                fail(ex);
+            }
+            catch (final Error ex) {
+                fail(ex);
+                throw ex;
+            }
+            finally {
+                if (source != null) {
+                    source.close(reusable);
+                }
+            }
+        }
+
+        // returns false if the stream is closed while reading
+        private boolean readSegment(final SegmentSource source, final long start, final long end, final byte[] data)
+                throws IOException
+        {
+            try (InputStream in = source.open(start, end)) {
+                int pos = 0;
+                while (pos < data.length) {
+                    if (isStopped()) {
+                        return false;
+                    }
+                    final int n = in.read(data, pos, Math.min(READ_CHUNK_SIZE, data.length - pos));
+                    if (n < 0) {
+                        throw new EOFException(String.format("Segment %d-%d ended at %d bytes", start, end, start + pos));
+                    }
+                    pos += n;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Queue of listed files shared by the tasks of an execution with {@code streaming_tasks}.
+ *
+ * The crawler adds files while it's listing directories, and each task takes the next file when
+ * it finishes the previous one, so transfers start before the listing ends. A task ends when the
+ * listing has ended and the queue is empty. The queue lives in the JVM which runs the
+ * transaction, so the tasks must run in the same JVM, as they do with the local executor.
+ *
+ * The taken files are recorded, so that {@code last_path} of the next execution is the last of
+ * the files which were actually read.
+ */
+class StreamingFileQueue
+        implements Consumer<RemoteFile>
+{
+    private static final ConcurrentMap<String, StreamingFileQueue> QUEUES = new ConcurrentHashMap<>();
+
+    private final String id;
+    private final boolean recordsPaths;
+
+    // guarded by this
+    private final Deque<String> queue = new ArrayDeque<>();
+    private final List<String> takenPaths = new ArrayList<>();
+    private long listedFiles;
+    private long takenFiles;
+    private String lastPath;
+    private boolean listed;
+    private boolean closed;
+    private RuntimeException failure;
+
+    private StreamingFileQueue(final String id, final boolean recordsPaths)
+    {
+        this.id = id;
+        this.recordsPaths = recordsPaths;
+    }
+
+    /**
+     * Creates a queue and registers it to be found by {@link #get}. If {@code recordsPaths} is
+     * true, all taken paths are kept for {@link #getTakenPaths}.
+     */
+    static StreamingFileQueue create(final boolean recordsPaths)
+    {
+        final StreamingFileQueue queue = new StreamingFileQueue(UUID.randomUUID().toString(), recordsPaths);
+        QUEUES.put(queue.id, queue);
+        return queue;
+    }
+
+    /**
+     * Returns the queue of an execution, or null if it's not in this JVM.
+     */
+    static StreamingFileQueue get(final String id)
+    {
+        return QUEUES.get(id);
+    }
+
+    String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Adds a listed file. Throws {@link CancellationException} to stop the crawler if the queue is closed.
+     */
+    @Override
+    public synchronized void accept(final RemoteFile file)
+    {
+        if (closed) {
+            throw new CancellationException("Streaming execution is closed");
+        }
+        queue.addLast(file.getPath());
+        listedFiles++;
+        notifyAll();
+    }
+
+    synchronized void finishListing()
+    {
+        listed = true;
+        notifyAll();
+    }
+
+    synchronized void failListing(final RuntimeException ex)
+    {
+        if (failure == null) {
+            failure = ex;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes the next file. If {@code wait} is true, waits until a file is added or the listing
+     * ends. Returns null if no more file is taken.
+     */
+    synchronized String take(final boolean wait)
+    {
+        while (queue.isEmpty() && wait && !listed && failure == null) {
+            try {
+                wait();
+            }
+            catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        final String path = queue.pollFirst();
+        if (path != null) {
+            takenFiles++;
+            if (lastPath == null || path.compareTo(lastPath) > 0) {
+                lastPath = path;
+            }
+            if (recordsPaths) {
+                takenPaths.add(path);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns the files of a task, which are taken from the queue one by one.
+     */
+    Files files()
+    {
+        return new Files();
+    }
+
+    synchronized long getListedFiles()
+    {
+        return listedFiles;
+    }
+
+    synchronized long getTakenFiles()
+    {
+        return takenFiles;
+    }
+
+    synchronized Optional<String> getLastPath()
+    {
+        return Optional.ofNullable(lastPath);
+    }
+
+    synchronized List<String> getTakenPaths()
+    {
+        return new ArrayList<>(takenPaths);
+    }
+
+    /**
+     * Throws the failure of the listing, if any.
+     */
+    synchronized void checkListing()
+    {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Unregisters the queue, and stops the crawler if it's still listing.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        QUEUES.remove(id);
+        notifyAll();
+    }
+
+    /**
+     * Iterator of the files of a task. {@link #hasNext} waits for the crawler, and
+     * {@link #hasReady} doesn't, for prefetching.
+     */
+    class Files
+            implements Iterator<FtpFileInputPlugin.InputFile>
+    {
+        private String next;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next == null) {
+                next = take(true);
+            }
+            return next != null;
+        }
+
+        /**
+         * Returns true if the next file is listed already.
+         */
+        boolean hasReady()
+        {
+            if (next == null) {
+                next = take(false);
+            }
+            return next != null;
+        }
+
+        @Override
+        public FtpFileInputPlugin.InputFile next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final String path = next;
+            next = null;
+            return new FtpFileInputPlugin.InputFile(path, 0L, -1L);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.slf4j.Logger;
+
+/**
+ * Decompresses a downloaded file on its own thread, so that the thread of the parser only
+ * parses. Used if {@code decompress_in_transfer} is true.
+ *
+ * The compressed stream is given as a {@link org.embulk.util.file.ResumableInputStream}, so a
+ * failed transfer restarts at the offset of the compressed bytes without the decoder noticing.
+ * The format is detected by the magic bytes at the head of the file. A file without known magic
+ * bytes is passed through.
+ */
+class TransferDecoder
+{
+    enum Codec
+    {
+        GZIP, BZIP2, ZSTD, NONE;
+
+        static Codec detect(final byte[] head, final int length)
+        {
+            if (length >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+                return GZIP;
+            }
+            if (length >= 3 && head[0] == 'B' && head[1] == 'Z' && head[2] == 'h') {
+                return BZIP2;
+            }
+            if (length >= 4 && (head[0] & 0xff) == 0x28 && (head[1] & 0xff) == 0xb5
+                    && (head[2] & 0xff) == 0x2f && (head[3] & 0xff) == 0xfd) {
+                return ZSTD;
+            }
+            return NONE;
+        }
+    }
+
+    // extensions of files which are decoded. other files don't go through the decoder thread.
+    private static final String[] EXTENSIONS = {".gz", ".gzip", ".bz2", ".zst"};
+
+    private static final int MAGIC_BYTES = 4;
+
+    private TransferDecoder()
+    {
+    }
+
+    static boolean isDecodable(final String path)
+    {
+        final String lower = path.toLowerCase(Locale.ROOT);
+        for (final String extension : EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts decoding {@code compressed} on {@code executor}, and returns the decoded stream.
+     * {@code compressed} is closed when the decoding ends.
+     */
+    static InputStream start(final Logger log, final ExecutorService executor, final String path, final InputStream compressed,
+            final int bufferCount, final int bufferSize, final boolean directBuffers)
+    {
+        final BlockingTransfer t = BlockingTransfer.submit(executor, bufferCount, bufferSize, directBuffers,
+                new Function<BlockingTransfer, Runnable>()
+                {
+                    @Override
+                    public Runnable apply(final BlockingTransfer transfer)
+                    {
+                        return new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                try (final InputStream in = compressed) {
+                                    decode(log, path, in, Channels.newOutputStream(transfer.getWriterChannel()));
+                                }
+                                catch (final IOException ex) {
+                                    transfer.transferFailed(new UncheckedIOException(ex));
+                                }
+                                catch (final RuntimeException ex) {
+                                    transfer.transferFailed(ex);
+                                }
+                                finally {
+                                    try {
+                                        transfer.getWriterChannel().close();
+                                    }
+                                    catch (final IOException ex) {
+                                        throw new UncheckedIOException(ex);
+                                    }
+                                }
+                            }
+                        };
+                    }
+                });
+        return Channels.newInputStream(t.getReaderChannel());
+    }
+
+    static void decode(final Logger log, final String path, final InputStream compressed, final OutputStream out) throws IOException
+    {
+        final BufferedInputStream in = new BufferedInputStream(compressed);
+        in.mark(MAGIC_BYTES);
+        final byte[] head = new byte[MAGIC_BYTES];
+        int length = 0;
+        while (length < MAGIC_BYTES) {
+            final int n = in.read(head, length, MAGIC_BYTES - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        in.reset();
+
+        final Codec codec = Codec.detect(head, length);
+        log.info("Decoding {} as {} in transfer", path, codec.name().toLowerCase(Locale.ROOT));
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream decoded = open(codec, in)) {
+            int n;
+            while ((n = decoded.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        // read the rest after the end of the compressed data, so the transfer ends cleanly
+        while (in.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    private static InputStream open(final Codec codec, final InputStream in) throws IOException
+    {
+        switch (codec) {
+        case GZIP:
+            return new GzipCompressorInputStream(new NonClosingInputStream(in), true);
+        case BZIP2:
+            return new BZip2CompressorInputStream(new NonClosingInputStream(in), true);
+        case ZSTD:
+            return new ZstdCompressorInputStream(new NonClosingInputStream(in));
+        default:
+            return new NonClosingInputStream(in);
+        }
+    }
+
+    // keeps the compressed stream open after the decoder is closed, to read the rest of it
+    private static class NonClosingInputStream
+            extends FilterInputStream
+    {
+        NonClosingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.embulk.input.ftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+
+/**
+ * Collects the metrics of the files read by a task for the task report, and sums up the task
+ * reports in {@code cleanup}.
+ *
+ * The task report has a {@code transfer} map with the totals of the task and a
+ * {@code slowest_files} list of {@link FileTransferMetrics#toMap()}, which has the
+ * {@value #SLOWEST_FILES} files that took the longest. A task may read millions of files, so
+ * only the totals are kept for the others, and their metrics are logged at DEBUG.
+ */
+class TransferMetrics
+{
+    static final String REPORT_KEY = "transfer";
+    static final int SLOWEST_FILES = 10;
+
+    private static final Comparator<Map<String, Object>> BY_DURATION = new Comparator<Map<String, Object>>() {
+            @Override
+            public int compare(final Map<String, Object> a, final Map<String, Object> b)
+            {
+                return Long.compare(Summary.longOf(a, "duration_millis"), Summary.longOf(b, "duration_millis"));
+            }
+        };
+
+    private final Logger log;
+    private final Summary total = new Summary();
+    // files which were not finished yet when they were added
+    private final List<FileTransferMetrics> reading = new ArrayList<>();
+    // the shortest one first
+    private final PriorityQueue<Map<String, Object>> slowest = new PriorityQueue<>(SLOWEST_FILES + 1, BY_DURATION);
+
+    TransferMetrics(final Logger log)
+    {
+        this.log = log;
+    }
+
+    synchronized void add(final FileTransferMetrics file)
+    {
+        final Iterator<FileTransferMetrics> it = reading.iterator();
+        while (it.hasNext()) {
+            final FileTransferMetrics finished = it.next();
+            if (finished.isFinished()) {
+                collect(finished);
+                it.remove();
+            }
+        }
+        reading.add(file);
+    }
+
+    synchronized Map<String, Object> toMap()
+    {
+        for (final FileTransferMetrics file : reading) {
+            collect(file);
+        }
+        reading.clear();
+        final List<Map<String, Object>> fileMaps = new ArrayList<>(slowest);
+        Collections.sort(fileMaps, Collections.reverseOrder(BY_DURATION));
+        final Map<String, Object> map = total.toMap();
+        map.put("slowest_files", fileMaps);
+        return map;
+    }
+
+    private void collect(final FileTransferMetrics file)
+    {
+        final Map<String, Object> map = file.toMap();
+        log.debug("Transfer metrics: {}", map);
+        total.addFile(map);
+        slowest.add(map);
+        if (slowest.size() > SLOWEST_FILES) {
+            slowest.poll();
+        }
+    }
+
+    /**
+     * Totals of files. Maps from task reports have numbers as Integer or Long, so they're read as Number.
+     */
+    static class Summary
+    {
+        private long files;
+        private long completedFiles;
+        private long bytes;
+        private long durationMillis;
+        private long ttfbMillis;
+        private long ttfbCount;
+        private long maxTtfbMillis;
+        private long peakBytesPerSec;
+        private long reopens;
+        private long loginMillis;
+        private long retryMillis;
+        private long throttleMillis;
+
+        void addFile(final Map<?, ?> file)
+        {
+            files++;
+            if (Boolean.TRUE.equals(file.get("completed"))) {
+                completedFiles++;
+            }
+            bytes += longOf(file, "bytes");
+            durationMillis += longOf(file, "duration_millis");
+            if (file.get("ttfb_millis") != null) {
+                final long ttfb = longOf(file, "ttfb_millis");
+                ttfbMillis += ttfb;
+                ttfbCount++;
+                maxTtfbMillis = Math.max(maxTtfbMillis, ttfb);
+            }
+            peakBytesPerSec = Math.max(peakBytesPerSec, longOf(file, "peak_bytes_per_sec"));
+            reopens += longOf(file, "reopens");
+            loginMillis += longOf(file, "login_millis");
+            retryMillis += longOf(file, "retry_millis");
+            throttleMillis += longOf(file, "throttle_millis");
+        }
+
+        /**
+         * Adds the totals of a task, which {@link TransferMetrics#toMap()} made.
+         */
+        void addTask(final Map<?, ?> task)
+        {
+            files += longOf(task, "files");
+            completedFiles += longOf(task, "completed_files");
+            bytes += longOf(task, "bytes");
+            durationMillis += longOf(task, "duration_millis");
+            ttfbMillis += longOf(task, "ttfb_millis_total");
+            ttfbCount += longOf(task, "ttfb_count");
+            maxTtfbMillis = Math.max(maxTtfbMillis, longOf(task, "max_ttfb_millis"));
+            peakBytesPerSec = Math.max(peakBytesPerSec, longOf(task, "peak_bytes_per_sec"));
+            reopens += longOf(task, "reopens");
+            loginMillis += longOf(task, "login_millis");
+            retryMillis += longOf(task, "retry_millis");
+            throttleMillis += longOf(task, "throttle_millis");
+        }
+
+        long getFiles()
+        {
+            return files;
+        }
+
+        long getBytes()
+        {
+            return bytes;
+        }
+
+        long getReopens()
+        {
+            return reopens;
+        }
+
+        long getAverageBytesPerSec()
+        {
+            return durationMillis > 0 ? bytes * 1000L / durationMillis : 0L;
+        }
+
+        long getAverageTtfbMillis()
+        {
+            return ttfbCount > 0 ? ttfbMillis / ttfbCount : 0L;
+        }
+
+        Map<String, Object> toMap()
+        {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("files", files);
+            map.put("completed_files", completedFiles);
+            map.put("bytes", bytes);
+            map.put("duration_millis", durationMillis);
+            map.put("ttfb_millis_total", ttfbMillis);
+            map.put("ttfb_count", ttfbCount);
+            map.put("max_ttfb_millis", maxTtfbMillis);
+            map.put("avg_bytes_per_sec", getAverageBytesPerSec());
+            map.put("peak_bytes_per_sec", peakBytesPerSec);
+            map.put("reopens", reopens);
+            map.put("login_millis", loginMillis);
+            map.put("retry_millis", retryMillis);
+            map.put("throttle_millis", throttleMillis);
+            return map;
+        }
+
+        void log(final Logger log)
+        {
+            log.info(String.format(Locale.ROOT,
+                    "Transferred %,d bytes in %,d files (%,d completed). Average %,d bytes/sec per file, peak %,d bytes/sec. "
+                    + "Time to first byte: average %,d ms, max %,d ms. Reopened %,d times after %,d ms of retries. Login took %,d ms in total. "
+                    + "Throttled by the bandwidth limit for %,d ms.",
+                    bytes, files, completedFiles, getAverageBytesPerSec(), peakBytesPerSec,
+                    getAverageTtfbMillis(), maxTtfbMillis, reopens, retryMillis, loginMillis, throttleMillis));
+        }
+
+        static long longOf(final Map<?, ?> map, final String key)
+        {
+            final Object value = map.get(key);
+            return value instanceof Number ? ((Number) value).longValue() : 0L;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.embulk.input.ftp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * JVM-wide executor which runs the transfer threads of all tasks.
+ *
+ * At most {@code transfer_max_threads} transfers run at the same time, and the others wait in
+ * the queue. Unlike the state kept for each server, there is one scheduler for all servers,
+ * because the threads are shared by the whole JVM. Tasks submit through their own {@link #newTaskExecutor()} so that closing a task
+ * cancels only its own transfers.
+ *
+ * A transfer thread blocks while its buffers are full and nobody reads them. Prefetched files
+ * are not read until the current file ends, so prefetch transfers may hold at most half of the
+ * threads. The rest run transfers which are being read, and they always make progress.
+ */
+class TransferScheduler
+        implements TransferSchedulerMXBean
+{
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static TransferScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+    private final boolean virtualThreads;
+    // number of prefetch transfers which are running or queued
+    private final AtomicInteger prefetching = new AtomicInteger();
+
+    TransferScheduler(final int maxThreads, final boolean virtualThreads)
+    {
+        // empty below Java 21, where "transfer_virtual_threads" is rejected by the config validation
+        final Optional<ThreadFactory> virtualThreadFactory = virtualThreads
+                ? TransferThreads.newVirtualThreadFactory("embulk-input-ftp-transfer-")
+                : Optional.<ThreadFactory>empty();
+        final ThreadFactory threadFactory = virtualThreadFactory.isPresent()
+                ? virtualThreadFactory.get()
+                : new TransferThreadFactory();
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.virtualThreads = virtualThreadFactory.isPresent();
+    }
+
+    /**
+     * Returns the scheduler shared in this JVM. It's created by the first task, and a later task
+     * can only increase the number of threads.
+     */
+    static synchronized TransferScheduler getInstance(final Logger log, final int maxThreads, final boolean virtualThreads)
+    {
+        if (instance == null) {
+            instance = new TransferScheduler(maxThreads, virtualThreads);
+            HostTransferStats.register(log, instance, "org.embulk.input.ftp:type=TransferScheduler");
+            log.info("Transfers run on at most {} {} threads", maxThreads, instance.isVirtualThreads() ? "virtual" : "platform");
+        }
+        else if (maxThreads > instance.getMaxThreads()) {
+            instance.setMaxThreads(maxThreads);
+        }
+        return instance;
+    }
+
+    @Override
+    public int getMaxThreads()
+    {
+        return executor.getMaximumPoolSize();
+    }
+
+    private void setMaxThreads(final int maxThreads)
+    {
+        // maximum first, so that the core size never exceeds it
+        executor.setMaximumPoolSize(maxThreads);
+        executor.setCorePoolSize(maxThreads);
+    }
+
+    boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the number of transfers waiting for a thread.
+     */
+    @Override
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the approximate number of threads running transfers.
+     */
+    @Override
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns an executor for the transfers of a task. Its {@code shutdownNow()} cancels them
+     * without affecting other tasks.
+     */
+    TaskExecutor newTaskExecutor()
+    {
+        return new TaskExecutor(false);
+    }
+
+    /**
+     * Returns an executor for prefetch transfers. Reserve a thread by {@link #tryReservePrefetch()}
+     * before submitting each of them. The reservation is released when the transfer ends, or by
+     * {@link #cancelPrefetchReservation()} if it could not be submitted.
+     */
+    TaskExecutor newPrefetchExecutor()
+    {
+        return new TaskExecutor(true);
+    }
+
+    /**
+     * Reserves a thread for a prefetch transfer. Returns false if prefetch transfers already hold
+     * half of the threads.
+     */
+    boolean tryReservePrefetch()
+    {
+        final int limit = getMaxThreads() / 2;
+        while (true) {
+            final int current = prefetching.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (prefetching.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reservation of {@link #tryReservePrefetch()} whose transfer was not submitted.
+     */
+    void cancelPrefetchReservation()
+    {
+        prefetching.decrementAndGet();
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    class TaskExecutor
+            extends AbstractExecutorService
+    {
+        private final boolean prefetch;
+        private final Set<TrackedTask<?>> tasks = Collections.newSetFromMap(new ConcurrentHashMap<TrackedTask<?>, Boolean>());
+        private volatile boolean shutdown;
+
+        private TaskExecutor(final boolean prefetch)
+        {
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value)
+        {
+            return new TrackedTask<T>(Executors.callable(runnable, value));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+        {
+            return new TrackedTask<T>(callable);
+        }
+
+        @Override
+        public void execute(final Runnable command)
+        {
+            final TrackedTask<?> task = command instanceof TrackedTask
+                    ? (TrackedTask<?>) command
+                    : new TrackedTask<Void>(Executors.<Void>callable(command, null));
+            if (shutdown) {
+                throw new RejectedExecutionException("transfers of this task are cancelled");
+            }
+            task.owner = this;
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            }
+            catch (final RejectedExecutionException ex) {
+                tasks.remove(task);
+                throw ex;
+            }
+        }
+
+        private void releaseReservation()
+        {
+            if (prefetch) {
+                prefetching.decrementAndGet();
+            }
+        }
+
+        private synchronized void finished(final TrackedTask<?> task)
+        {
+            if (tasks.remove(task)) {
+                releaseReservation();
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void shutdown()
+        {
+            shutdown = true;
+        }
+
+        /**
+         * Cancels the transfers of this task. Running ones are interrupted.
+         */
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            shutdown = true;
+            for (final TrackedTask<?> task : tasks) {
+                // drop it from the queue so that it doesn't count in the queue depth
+                executor.remove(task);
+                task.cancel(true);
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    private static class TrackedTask<T>
+            extends FutureTask<T>
+    {
+        private volatile TaskExecutor owner;
+
+        TrackedTask(final Callable<T> callable)
+        {
+            super(callable);
+        }
+
+        @Override
+        protected void done()
+        {
+            final TaskExecutor executor = owner;
+            if (executor != null) {
+                executor.finished(this);
+            }
+        }
+    }
+
+    private static class TransferThreadFactory
+            implements ThreadFactory
+    {
+        private final AtomicLong count = new AtomicLong(0);
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName(String.format(Locale.ROOT, "embulk-input-ftp-transfer-%d", count.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.embulk.input.ftp;
+
+/**
+ * State of the transfer thread pool, published as {@code org.embulk.input.ftp:type=TransferScheduler}.
+ */
+public interface TransferSchedulerMXBean
+{
+    int getMaxThreads();
+
+    int getActiveCount();
+
+    int getQueueDepth();
+}
@@ -0,0 +1,32 @@
+package org.embulk.input.ftp;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual transfer threads where the JVM has them.
+ *
+ * This is the implementation for Java 8 to 20, which have no virtual threads. The jar is a
+ * multi-release jar, and Java 21 or later loads another implementation from
+ * {@code META-INF/versions/21} built from {@code src/main/java21}.
+ */
+final class TransferThreads
+{
+    private TransferThreads()
+    {
+        // No instantiation.
+    }
+
+    static boolean isVirtualThreadSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Returns empty, as there are no virtual threads before Java 21.
+     */
+    static Optional<ThreadFactory> newVirtualThreadFactory(final String namePrefix)
+    {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,28 @@
+package org.embulk.input.ftp;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual transfer threads where the JVM has them.
+ *
+ * This is the implementation for Java 21 or later, packaged in {@code META-INF/versions/21}
+ * of the multi-release jar.
+ */
+final class TransferThreads
+{
+    private TransferThreads()
+    {
+        // No instantiation.
+    }
+
+    static boolean isVirtualThreadSupported()
+    {
+        return true;
+    }
+
+    static Optional<ThreadFactory> newVirtualThreadFactory(final String namePrefix)
+    {
+        return Optional.of(Thread.ofVirtual().name(namePrefix, 0).factory());
+    }
+}
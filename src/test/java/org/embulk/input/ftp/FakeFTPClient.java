@@ -0,0 +1,144 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPReply;
+
+/**
+ * FTPClient which serves an in-memory directory tree for listing tests.
+ */
+class FakeFTPClient
+        extends FTPClient
+{
+    // absolute directory path without trailing "/" (root is "") -> entries
+    private final Map<String, List<FTPFile>> directories;
+    private final AtomicInteger listCount;
+    private String currentDirectory = "/";
+    private int mlsdReplyCode = 502;
+    private int mlsdCount;
+
+    FakeFTPClient(final Map<String, List<FTPFile>> directories, final AtomicInteger listCount)
+    {
+        this.directories = directories;
+        this.listCount = listCount;
+    }
+
+    static Map<String, List<FTPFile>> tree(final String... paths)
+    {
+        final Map<String, List<FTPFile>> directories = new TreeMap<>();
+        directories.put("", new ArrayList<FTPFile>());
+        for (final String path : paths) {
+            String parent = "";
+            final String[] names = path.substring(1).split("/");
+            for (int i = 0; i < names.length; i++) {
+                final boolean isFile = i == names.length - 1 && !path.endsWith("/");
+                final String child = parent + "/" + names[i];
+                final List<FTPFile> entries = directories.get(parent);
+                if (!contains(entries, names[i])) {
+                    entries.add(entry(names[i], isFile ? FTPFile.TYPE_FILE : FTPFile.TYPE_DIRECTORY));
+                }
+                if (!isFile && !directories.containsKey(child)) {
+                    directories.put(child, new ArrayList<FTPFile>());
+                }
+                parent = child;
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Sets the modify time of the entry at {@code path}, which is reported by the listing of its parent.
+     */
+    static void setModifiedTime(final Map<String, List<FTPFile>> directories, final String path, final long modifiedTime)
+    {
+        final int pos = path.lastIndexOf('/');
+        for (final FTPFile entry : directories.get(path.substring(0, pos))) {
+            if (entry.getName().equals(path.substring(pos + 1))) {
+                entry.setModifiedDate(new Date(modifiedTime));
+            }
+        }
+    }
+
+    /**
+     * Sets the reply code to MLSD, which the server rejects.
+     */
+    FakeFTPClient withMlsdReplyCode(final int code)
+    {
+        this.mlsdReplyCode = code;
+        return this;
+    }
+
+    int getMlsdCount()
+    {
+        return mlsdCount;
+    }
+
+    private static boolean contains(final List<FTPFile> entries, final String name)
+    {
+        for (final FTPFile entry : entries) {
+            if (entry.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static FTPFile entry(final String name, final int type)
+    {
+        final FTPFile file = new FTPFile();
+        file.setName(name);
+        file.setType(type);
+        file.setSize(type == FTPFile.TYPE_FILE ? 10L : 0L);
+        return file;
+    }
+
+    @Override
+    public FTPReply sendCustomCommand(final String command) throws IOException
+    {
+        throw new IOException(command + " is not supported");
+    }
+
+    @Override
+    public String currentDirectory()
+    {
+        return currentDirectory;
+    }
+
+    @Override
+    public void changeDirectory(final String path) throws FTPException
+    {
+        String resolved = path.startsWith("/") ? path : currentDirectory + (currentDirectory.endsWith("/") ? "" : "/") + path;
+        if (resolved.endsWith("/")) {
+            resolved = resolved.substring(0, resolved.length() - 1);
+        }
+        if (!directories.containsKey(resolved)) {
+            throw new FTPException(550, "No such directory: " + resolved);
+        }
+        currentDirectory = resolved.isEmpty() ? "/" : resolved;
+    }
+
+    @Override
+    public FTPFile[] list(final String fileSpec) throws FTPException
+    {
+        // a server without MLSD
+        mlsdCount++;
+        throw new FTPException(mlsdReplyCode, "MLSD is not available");
+    }
+
+    @Override
+    public FTPFile[] list()
+    {
+        listCount.incrementAndGet();
+        final String key = currentDirectory.equals("/") ? "" : currentDirectory;
+        return directories.get(key).toArray(new FTPFile[0]);
+    }
+}
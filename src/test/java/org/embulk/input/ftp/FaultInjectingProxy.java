@@ -0,0 +1,460 @@
+package org.embulk.input.ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TCP proxy in front of an FTP server which adds latency, limits bandwidth and injects faults.
+ *
+ * Clients connect to {@link #getPort()} instead of the server. The proxy rewrites "227" replies
+ * to PASV so that the data connections go through it too. Latency applies to both directions of
+ * every connection. Bandwidth, resets and stalls apply to the data sent from the server, and the
+ * bandwidth is shared by all connections like a single link.
+ *
+ * At most {@code QUEUE_CHUNKS} chunks are in flight in each direction, which plays the role of
+ * the TCP window: with a long delay, it bounds the throughput as a real window does.
+ */
+class FaultInjectingProxy
+        implements Closeable
+{
+    private static final Pattern PASV_REPLY = Pattern.compile("^227 .*\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\).*$");
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int QUEUE_CHUNKS = 256;
+    private static final Chunk END = new Chunk(new byte[0], 0, 0);
+
+    private final String targetHost;
+    private final int targetPort;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile boolean closed;
+
+    private volatile long delayNanos;
+    private volatile long bytesPerSecond;
+    // time when the link is free to send the next byte
+    private long linkFreeNanos;
+
+    private final AtomicLong resetAfterBytes = new AtomicLong(-1);
+    // data connections left to reset, guarded by this
+    private int resetsLeft;
+    private final AtomicLong stallAfterBytes = new AtomicLong(-1);
+    private volatile long stallMillis;
+
+    private final AtomicInteger dataConnections = new AtomicInteger();
+    private final AtomicInteger resets = new AtomicInteger();
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicLong resetNanos = new AtomicLong(-1);
+    private final AtomicLong recoveryNanos = new AtomicLong(-1);
+
+    FaultInjectingProxy(final String targetHost, final int targetPort) throws IOException
+    {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    acceptLoop();
+                }
+            });
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delays every chunk by a half of {@code rttMillis} in each direction.
+     */
+    FaultInjectingProxy setRttMillis(final long rttMillis)
+    {
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+        return this;
+    }
+
+    /**
+     * Limits the data sent from the server to {@code bytesPerSecond}. 0 means no limit.
+     */
+    FaultInjectingProxy setBytesPerSecond(final long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Resets the first data connection which sends {@code bytes} bytes, with a TCP RST to the
+     * client. Only one connection is reset per call.
+     */
+    FaultInjectingProxy resetDataConnectionAfter(final long bytes)
+    {
+        return resetDataConnectionsAfter(bytes, 1);
+    }
+
+    /**
+     * Resets the next {@code connections} data connections which send {@code bytes} bytes.
+     */
+    synchronized FaultInjectingProxy resetDataConnectionsAfter(final long bytes, final int connections)
+    {
+        resetsLeft = connections;
+        resetAfterBytes.set(bytes);
+        return this;
+    }
+
+    /**
+     * Stops the first data connection which sends {@code bytes} bytes for {@code millis}.
+     */
+    FaultInjectingProxy stallDataConnectionAfter(final long bytes, final long millis)
+    {
+        this.stallMillis = millis;
+        stallAfterBytes.set(bytes);
+        return this;
+    }
+
+    int getDataConnectionCount()
+    {
+        return dataConnections.get();
+    }
+
+    int getResetCount()
+    {
+        return resets.get();
+    }
+
+    /**
+     * Returns the number of bytes delivered to clients over data connections.
+     */
+    long getDataBytes()
+    {
+        return dataBytes.get();
+    }
+
+    /**
+     * Returns the time from the last reset to the next byte delivered over a data connection, or
+     * -1 if nothing was delivered after it yet.
+     */
+    long getRecoveryNanos()
+    {
+        return recoveryNanos.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            }
+            catch (final IOException ex) {
+                return;
+            }
+            try {
+                new Connection(client, new Socket(targetHost, targetPort), false).start();
+            }
+            catch (final IOException ex) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * Listens for the data connection of a PASV reply and returns the port to send to the client.
+     */
+    private int openDataListener(final String host, final int port) throws IOException
+    {
+        final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try (final ServerSocket closing = listener) {
+                        final Socket client = listener.accept();
+                        try {
+                            new Connection(client, new Socket(host, port), true).start();
+                        }
+                        catch (final IOException ex) {
+                            closeQuietly(client);
+                        }
+                    }
+                    catch (final IOException ex) {
+                        // proxy closed
+                    }
+                }
+            });
+        return listener.getLocalPort();
+    }
+
+    private String rewritePasvReply(final String line) throws IOException
+    {
+        final Matcher m = PASV_REPLY.matcher(line.trim());
+        if (!m.matches()) {
+            return line;
+        }
+        final String host = m.group(1) + "." + m.group(2) + "." + m.group(3) + "." + m.group(4);
+        final int port = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+        final int proxyPort = openDataListener(host, port);
+        return String.format(Locale.ROOT, "227 Entering Passive Mode (127,0,0,1,%d,%d)\r\n", proxyPort >> 8, proxyPort & 0xff);
+    }
+
+    private synchronized boolean takeReset(final long resetAt)
+    {
+        if (resetAfterBytes.get() != resetAt || resetsLeft <= 0) {
+            return false;
+        }
+        if (--resetsLeft == 0) {
+            resetAfterBytes.set(-1);
+        }
+        return true;
+    }
+
+    private void pace(final int length) throws InterruptedException
+    {
+        final long limit = bytesPerSecond;
+        if (limit <= 0) {
+            return;
+        }
+        final long start;
+        synchronized (this) {
+            start = Math.max(System.nanoTime(), linkFreeNanos);
+            linkFreeNanos = start + length * 1000000000L / limit;
+        }
+        sleepUntil(start);
+    }
+
+    private static void sleepUntil(final long nanoTime) throws InterruptedException
+    {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static void closeQuietly(final Socket socket)
+    {
+        try {
+            socket.close();
+        }
+        catch (final IOException ex) {
+            // ignore
+        }
+    }
+
+    private static class Chunk
+    {
+        final byte[] data;
+        final int length;
+        final long dueNanos;
+
+        Chunk(final byte[] data, final int length, final long dueNanos)
+        {
+            this.data = data;
+            this.length = length;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private class Connection
+    {
+        private final Socket client;
+        private final Socket server;
+        private final boolean data;
+        private final AtomicInteger openPipes = new AtomicInteger(2);
+        private volatile boolean aborted;
+        // bytes sent to the client on this data connection
+        private long sentBytes;
+
+        Connection(final Socket client, final Socket server, final boolean data)
+        {
+            this.client = client;
+            this.server = server;
+            this.data = data;
+        }
+
+        void start()
+        {
+            if (data) {
+                dataConnections.incrementAndGet();
+            }
+            final BlockingQueue<Chunk> upstream = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+            final BlockingQueue<Chunk> downstream = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        read(client, upstream, false);
+                    }
+                });
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        write(upstream, server, false);
+                    }
+                });
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        read(server, downstream, !data);
+                    }
+                });
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        write(downstream, client, data);
+                    }
+                });
+        }
+
+        private void read(final Socket from, final BlockingQueue<Chunk> queue, final boolean controlReplies)
+        {
+            try {
+                final InputStream in = from.getInputStream();
+                final ByteArrayOutputStream line = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    if (!controlReplies) {
+                        enqueue(queue, Arrays.copyOf(buffer, n), n);
+                        continue;
+                    }
+                    // forward replies line by line to rewrite PASV replies
+                    for (int i = 0; i < n; i++) {
+                        line.write(buffer[i]);
+                        if (buffer[i] == '\n') {
+                            final byte[] reply = rewritePasvReply(new String(line.toByteArray(), StandardCharsets.ISO_8859_1))
+                                    .getBytes(StandardCharsets.ISO_8859_1);
+                            enqueue(queue, reply, reply.length);
+                            line.reset();
+                        }
+                    }
+                }
+                enqueue(queue, END.data, -1);
+            }
+            catch (final IOException | InterruptedException ex) {
+                abort();
+            }
+        }
+
+        private void enqueue(final BlockingQueue<Chunk> queue, final byte[] bytes, final int length) throws InterruptedException
+        {
+            final Chunk chunk = length < 0 ? END : new Chunk(bytes, length, System.nanoTime() + delayNanos);
+            while (!aborted && !closed) {
+                if (queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        private void write(final BlockingQueue<Chunk> queue, final Socket to, final boolean fromServer)
+        {
+            try {
+                final OutputStream out = to.getOutputStream();
+                while (!aborted && !closed) {
+                    final Chunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        continue;
+                    }
+                    if (chunk == END) {
+                        to.shutdownOutput();
+                        break;
+                    }
+                    sleepUntil(chunk.dueNanos);
+                    if (fromServer) {
+                        writeData(out, chunk);
+                    }
+                    else {
+                        out.write(chunk.data, 0, chunk.length);
+                        out.flush();
+                    }
+                }
+            }
+            catch (final IOException | InterruptedException ex) {
+                abort();
+                return;
+            }
+            if (openPipes.decrementAndGet() == 0) {
+                closeQuietly(client);
+                closeQuietly(server);
+            }
+        }
+
+        private void writeData(final OutputStream out, final Chunk chunk) throws IOException, InterruptedException
+        {
+            int offset = 0;
+            while (offset < chunk.length) {
+                int length = chunk.length - offset;
+                final long stallAt = stallAfterBytes.get();
+                if (stallAt >= 0 && sentBytes >= stallAt && stallAfterBytes.compareAndSet(stallAt, -1)) {
+                    Thread.sleep(stallMillis);
+                }
+                else if (stallAt > sentBytes) {
+                    length = (int) Math.min(length, stallAt - sentBytes);
+                }
+                final long resetAt = resetAfterBytes.get();
+                if (resetAt >= 0 && sentBytes >= resetAt && takeReset(resetAt)) {
+                    reset();
+                    throw new IOException("injected connection reset");
+                }
+                else if (resetAt > sentBytes) {
+                    length = (int) Math.min(length, resetAt - sentBytes);
+                }
+                pace(length);
+                out.write(chunk.data, offset, length);
+                out.flush();
+                if (resetNanos.get() >= 0) {
+                    recoveryNanos.compareAndSet(-1, System.nanoTime() - resetNanos.get());
+                }
+                offset += length;
+                sentBytes += length;
+                dataBytes.addAndGet(length);
+            }
+        }
+
+        private void reset() throws IOException
+        {
+            resets.incrementAndGet();
+            recoveryNanos.set(-1);
+            resetNanos.set(System.nanoTime());
+            // SO_LINGER 0 makes close() send RST instead of FIN
+            client.setSoLinger(true, 0);
+            aborted = true;
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+
+        private void abort()
+        {
+            aborted = true;
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Minimal FTP server serving in-memory files on the loopback address, for tests and benchmarks
+ * which can't depend on an external server.
+ *
+ * It speaks the subset of FTP which ftp4j and this plugin use: USER/PASS, FEAT, PWD, CWD, TYPE,
+ * PASV, REST, RETR, ABOR, SIZE, MDTM, LIST and MLSD. Every file has the same modify time. MODE Z
+ * is supported if it's enabled by {@link #setModeZSupported(boolean)}.
+ */
+class InProcessFtpServer
+        implements Closeable
+{
+    static final String USER = "scott";
+    static final String PASSWORD = "tiger";
+    static final long MODIFIED_TIME = 1700000000000L;
+
+    private static final int DATA_CHUNK_SIZE = 64 * 1024;
+
+    // absolute path -> content
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger retrCount = new AtomicInteger();
+    private final List<Long> retrOffsets = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<String> retrPaths = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicInteger abortedTransfers = new AtomicInteger();
+    private volatile boolean modeZSupported;
+    private volatile boolean closed;
+
+    InProcessFtpServer() throws IOException
+    {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    acceptLoop();
+                }
+            });
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    InProcessFtpServer addFile(final String path, final byte[] content)
+    {
+        files.put(path, content);
+        return this;
+    }
+
+    /**
+     * Adds a file of {@code size} bytes whose content is a function of the offset, so a resumed
+     * download can be verified.
+     */
+    InProcessFtpServer addFile(final String path, final int size)
+    {
+        return addFile(path, content(size));
+    }
+
+    InProcessFtpServer setModeZSupported(final boolean modeZSupported)
+    {
+        this.modeZSupported = modeZSupported;
+        return this;
+    }
+
+    static byte[] content(final int size)
+    {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >>> 10));
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of control connections accepted so far.
+     */
+    int getSessionCount()
+    {
+        return sessions.get();
+    }
+
+    int getRetrCount()
+    {
+        return retrCount.get();
+    }
+
+    /**
+     * Returns the offsets of RETR commands so far, which REST set.
+     */
+    List<Long> getRetrOffsets()
+    {
+        synchronized (retrOffsets) {
+            return new ArrayList<>(retrOffsets);
+        }
+    }
+
+    /**
+     * Returns the paths of RETR commands so far.
+     */
+    List<String> getRetrPaths()
+    {
+        synchronized (retrPaths) {
+            return new ArrayList<>(retrPaths);
+        }
+    }
+
+    /**
+     * Returns the number of file transfers whose data connection is open.
+     */
+    int getActiveTransferCount()
+    {
+        return activeTransfers.get();
+    }
+
+    /**
+     * Returns the number of file transfers which ended before all data was sent.
+     */
+    int getAbortedTransferCount()
+    {
+        return abortedTransfers.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (final IOException ex) {
+                return;
+            }
+            sessions.incrementAndGet();
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try (final Session session = new Session(socket)) {
+                            session.run();
+                        }
+                        catch (final IOException ex) {
+                            // the client is gone
+                        }
+                    }
+                });
+        }
+    }
+
+    private class Session
+            implements Closeable
+    {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final Writer writer;
+        private String currentDirectory = "/";
+        private ServerSocket passive;
+        private long restartOffset;
+        private boolean modeZ;
+        // guarded by this
+        private Socket dataSocket;
+        private boolean aborted;
+
+        Session(final Socket socket) throws IOException
+        {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        void run() throws IOException
+        {
+            reply("220 in-process FTP server ready");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                final String command = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+                final String argument = space < 0 ? "" : line.substring(space + 1);
+                if (!handle(command, argument)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean handle(final String command, final String argument) throws IOException
+        {
+            switch (command) {
+            case "USER":
+                reply("331 Password required");
+                break;
+            case "PASS":
+                reply(PASSWORD.equals(argument) ? "230 Logged in" : "530 Login incorrect");
+                break;
+            case "SYST":
+                reply("215 UNIX Type: L8");
+                break;
+            case "FEAT":
+                reply("211-Features:\r\n MLST type*;size*;modify*;\r\n SIZE\r\n MDTM\r\n REST STREAM\r\n"
+                        + (modeZSupported ? " MODE Z\r\n" : "") + "211 End");
+                break;
+            case "PWD":
+                reply("257 \"" + currentDirectory + "\" is the current directory");
+                break;
+            case "CWD":
+                final String directory = resolve(argument);
+                if (isDirectory(directory)) {
+                    currentDirectory = directory;
+                    reply("250 Directory changed");
+                }
+                else {
+                    reply("550 No such directory");
+                }
+                break;
+            case "TYPE":
+            case "NOOP":
+                reply("200 OK");
+                break;
+            case "MODE":
+                if ("S".equalsIgnoreCase(argument) || ("Z".equalsIgnoreCase(argument) && modeZSupported)) {
+                    modeZ = "Z".equalsIgnoreCase(argument);
+                    reply("200 OK");
+                }
+                else {
+                    reply("504 Mode not supported");
+                }
+                break;
+            case "PASV":
+                openPassive();
+                break;
+            case "REST":
+                restartOffset = Long.parseLong(argument.trim());
+                reply("350 Restarting at " + restartOffset);
+                break;
+            case "RETR":
+                retrieve(resolve(argument));
+                break;
+            case "ABOR":
+                abort();
+                break;
+            case "SIZE":
+                final byte[] content = files.get(resolve(argument));
+                reply(content == null ? "550 No such file" : "213 " + content.length);
+                break;
+            case "MDTM":
+                reply(files.containsKey(resolve(argument)) ? "213 " + formatTime(MODIFIED_TIME) : "550 No such file");
+                break;
+            case "LIST":
+                list(argument.startsWith("-") || argument.isEmpty() ? currentDirectory : resolve(argument), false);
+                break;
+            case "MLSD":
+                list(argument.isEmpty() ? currentDirectory : resolve(argument), true);
+                break;
+            case "QUIT":
+                reply("221 Bye");
+                return false;
+            default:
+                reply("502 Command not implemented");
+            }
+            return true;
+        }
+
+        private void openPassive() throws IOException
+        {
+            closePassive();
+            passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            final int port = passive.getLocalPort();
+            reply(String.format(Locale.ROOT, "227 Entering Passive Mode (127,0,0,1,%d,%d)", port >> 8, port & 0xff));
+        }
+
+        private Socket acceptData() throws IOException
+        {
+            if (passive == null) {
+                reply("425 Use PASV first");
+                return null;
+            }
+            try {
+                return passive.accept();
+            }
+            finally {
+                closePassive();
+            }
+        }
+
+        private void retrieve(final String path) throws IOException
+        {
+            final long offset = restartOffset;
+            restartOffset = 0;
+            final byte[] content = files.get(path);
+            if (content == null) {
+                closePassive();
+                reply("550 No such file");
+                return;
+            }
+            retrCount.incrementAndGet();
+            retrOffsets.add(offset);
+            retrPaths.add(path);
+            reply("150 Opening BINARY mode data connection for " + path);
+            final Socket data = acceptData();
+            if (data == null) {
+                return;
+            }
+            synchronized (this) {
+                dataSocket = data;
+                aborted = false;
+            }
+            final boolean deflate = modeZ;
+            // send in background so that ABOR can be read while the data flows
+            executor.submit(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        boolean completed = false;
+                        activeTransfers.incrementAndGet();
+                        try (final Socket socket = data) {
+                            final OutputStream out = deflate
+                                    ? new DeflaterOutputStream(socket.getOutputStream()) : socket.getOutputStream();
+                            for (long pos = offset; pos < content.length; pos += DATA_CHUNK_SIZE) {
+                                out.write(content, (int) pos, (int) Math.min(DATA_CHUNK_SIZE, content.length - pos));
+                            }
+                            if (out instanceof DeflaterOutputStream) {
+                                ((DeflaterOutputStream) out).finish();
+                            }
+                            out.flush();
+                            completed = true;
+                        }
+                        catch (final IOException ex) {
+                            // the client closed the data connection
+                        }
+                        finally {
+                            activeTransfers.decrementAndGet();
+                            if (!completed) {
+                                abortedTransfers.incrementAndGet();
+                            }
+                            transferEnded(completed);
+                        }
+                    }
+                });
+        }
+
+        private synchronized void transferEnded(final boolean completed)
+        {
+            dataSocket = null;
+            if (aborted) {
+                // abort() replied already
+                return;
+            }
+            try {
+                reply(completed ? "226 Transfer complete" : "426 Connection closed; transfer aborted");
+            }
+            catch (final IOException ex) {
+                // the client is gone
+            }
+        }
+
+        private synchronized void abort() throws IOException
+        {
+            final Socket data = dataSocket;
+            if (data != null) {
+                aborted = true;
+                dataSocket = null;
+                data.close();
+                reply("426 Connection closed; transfer aborted");
+            }
+            reply("226 ABOR command successful");
+        }
+
+        private void list(final String directory, final boolean mlsd) throws IOException
+        {
+            if (!isDirectory(directory)) {
+                closePassive();
+                reply("550 No such directory");
+                return;
+            }
+            reply("150 Here comes the directory listing");
+            final Socket data = acceptData();
+            if (data == null) {
+                return;
+            }
+            try (final Socket socket = data) {
+                final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                for (final Map.Entry<String, Long> entry : children(directory).entrySet()) {
+                    out.write(mlsd ? mlsdLine(entry.getKey(), entry.getValue()) : listLine(entry.getKey(), entry.getValue()));
+                    out.write("\r\n");
+                }
+                out.flush();
+            }
+            reply("226 Directory send OK");
+        }
+
+        private String resolve(final String path)
+        {
+            String resolved = path.startsWith("/") ? path : (currentDirectory.endsWith("/") ? currentDirectory : currentDirectory + "/") + path;
+            while (resolved.length() > 1 && resolved.endsWith("/")) {
+                resolved = resolved.substring(0, resolved.length() - 1);
+            }
+            return resolved;
+        }
+
+        private void closePassive() throws IOException
+        {
+            if (passive != null) {
+                passive.close();
+                passive = null;
+            }
+        }
+
+        private synchronized void reply(final String message) throws IOException
+        {
+            writer.write(message);
+            writer.write("\r\n");
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            closePassive();
+            socket.close();
+        }
+    }
+
+    private boolean isDirectory(final String path)
+    {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        for (final String file : files.keySet()) {
+            if (file.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // name -> size, or -1 for a directory
+    private Map<String, Long> children(final String directory)
+    {
+        final String prefix = directory.endsWith("/") ? directory : directory + "/";
+        final Map<String, Long> children = new TreeMap<>();
+        final TreeSet<String> paths = new TreeSet<>(files.keySet());
+        for (final String path : paths.tailSet(prefix)) {
+            if (!path.startsWith(prefix)) {
+                break;
+            }
+            final String rest = path.substring(prefix.length());
+            final int slash = rest.indexOf('/');
+            if (slash < 0) {
+                children.put(rest, (long) files.get(path).length);
+            }
+            else {
+                children.put(rest.substring(0, slash), -1L);
+            }
+        }
+        return children;
+    }
+
+    private static String listLine(final String name, final long size)
+    {
+        final SimpleDateFormat format = new SimpleDateFormat("MMM dd  yyyy", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return String.format(Locale.ROOT, "%s 1 ftp ftp %12d %s %s",
+                size < 0 ? "drwxr-xr-x" : "-rw-r--r--", Math.max(size, 0), format.format(new Date(MODIFIED_TIME)), name);
+    }
+
+    private static String mlsdLine(final String name, final long size)
+    {
+        final List<String> facts = new ArrayList<>();
+        facts.add(size < 0 ? "type=dir" : "type=file");
+        if (size >= 0) {
+            facts.add("size=" + size);
+        }
+        facts.add("modify=" + formatTime(MODIFIED_TIME));
+        return String.join(";", facts) + "; " + name;
+    }
+
+    private static String formatTime(final long time)
+    {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
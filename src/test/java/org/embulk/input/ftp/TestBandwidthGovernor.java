@@ -0,0 +1,74 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestBandwidthGovernor
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstThenRate()
+    {
+        final BandwidthGovernor.TokenBucket bucket = new BandwidthGovernor.TokenBucket(0L);
+        bucket.configure(1000L, 1000L);
+        // the burst is read at full speed
+        assertEquals(0L, bucket.reserve(1000, 0L));
+        // then each chunk waits until the debt before it is paid
+        assertEquals(SECOND / 2, bucket.reserve(500, 0L));
+        assertEquals(SECOND, bucket.reserve(500, 0L));
+    }
+
+    @Test
+    public void testRefillUpToBurst()
+    {
+        final BandwidthGovernor.TokenBucket bucket = new BandwidthGovernor.TokenBucket(0L);
+        bucket.configure(1000L, 1000L);
+        assertEquals(0L, bucket.reserve(1000, 0L));
+        assertEquals(0L, bucket.reserve(500, SECOND / 2));
+        // an idle bucket doesn't hold more than the burst
+        assertEquals(0L, bucket.reserve(1000, SECOND * 10));
+        assertEquals(SECOND / 10, bucket.reserve(100, SECOND * 10));
+    }
+
+    @Test
+    public void testConcurrentTransfersShareRate()
+    {
+        final BandwidthGovernor.TokenBucket bucket = new BandwidthGovernor.TokenBucket(0L);
+        bucket.configure(1000L, 1000L);
+        bucket.reserve(1000, 0L);
+        // transfers asking in turn wait in the order they asked
+        final long first = bucket.reserve(250, 0L);
+        final long second = bucket.reserve(250, 0L);
+        final long third = bucket.reserve(250, 0L);
+        assertEquals(SECOND / 4, first);
+        assertEquals(SECOND / 2, second);
+        assertEquals(SECOND * 3 / 4, third);
+    }
+
+    @Test
+    public void testNotLimited()
+    {
+        assertNull(BandwidthGovernor.of(Optional.<Long>empty(), Optional.<Long>empty(), Optional.<Long>empty(), "example.com"));
+    }
+
+    @Test
+    public void testAcquireWaits()
+    {
+        final BandwidthGovernor governor = BandwidthGovernor.of(Optional.<Long>empty(), Optional.of(100000L),
+                Optional.of(10000L), "throttle.example.com");
+        assertEquals(0L, governor.acquire(10000));
+        // 20000 bytes more take 0.2 seconds
+        final long start = System.nanoTime();
+        long stalled = governor.acquire(10000);
+        stalled += governor.acquire(10000);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(stalled >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+}
@@ -1,5 +1,223 @@
 package org.embulk.input.ftp;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
 public class TestBlockingTransfer
 {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testTransferInOrder() throws IOException
+    {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 2, 1000, false, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    for (int off = 0; off < data.length; off += 777) {
+                        out.write(data, off, Math.min(777, data.length - off));
+                    }
+                }
+            }));
+        assertArrayEquals(data, readAll(Channels.newInputStream(transfer.getReaderChannel())));
+    }
+
+    @Test
+    public void testDirectBuffers() throws IOException
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 3, 4, true, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    out.write("hello, world".getBytes("UTF-8"));
+                }
+            }));
+        assertEquals("hello, world", new String(readAll(Channels.newInputStream(transfer.getReaderChannel())), "UTF-8"));
+    }
+
+    @Test
+    public void testFailureAfterData() throws IOException
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 2, 16, false, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    out.write(new byte[10]);
+                    throw new IOException("connection reset");
+                }
+            }));
+        final InputStream in = Channels.newInputStream(transfer.getReaderChannel());
+        assertEquals(10, in.read(new byte[100]));
+        try {
+            in.read(new byte[100]);
+            fail();
+        }
+        catch (final UncheckedIOException ex) {
+            assertEquals("connection reset", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testFailureKeepsPendingBuffer() throws Exception
+    {
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 2, 16, false, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    out.write(new byte[16]);
+                    // not handed to the reader yet, because the first buffer is still unread
+                    out.write(new byte[4]);
+                    throw new IOException("connection reset");
+                }
+            }));
+        final BlockingTransfer.ReaderChannel reader = (BlockingTransfer.ReaderChannel) transfer.getReaderChannel();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!reader.hasException() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        final InputStream in = Channels.newInputStream(reader);
+        final byte[] buffer = new byte[100];
+        int read = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer, read, buffer.length - read)) >= 0) {
+                read += n;
+            }
+            fail();
+        }
+        catch (final UncheckedIOException ex) {
+            assertEquals("connection reset", ex.getCause().getMessage());
+        }
+        assertEquals(20, read);
+    }
+
+    @Test
+    public void testReaderCloseStopsWriter() throws Exception
+    {
+        final AtomicReference<Exception> writerException = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 2, 16, false, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out)
+                {
+                    try {
+                        while (true) {
+                            out.write(new byte[16]);
+                        }
+                    }
+                    catch (final Exception ex) {
+                        writerException.set(ex);
+                    }
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            }));
+        final InputStream in = Channels.newInputStream(transfer.getReaderChannel());
+        assertEquals(16, in.read(new byte[16]));
+        in.close();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(writerException.get() instanceof IOException);
+    }
+
+    @Test
+    public void testInterruptedReader() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingTransfer transfer = BlockingTransfer.submit(executor, 2, 16, false, writer(new Writer() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    try {
+                        release.await();
+                    }
+                    catch (final InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }));
+
+        Thread.currentThread().interrupt();
+        try {
+            transfer.getReaderChannel().read(ByteBuffer.allocate(16));
+            fail();
+        }
+        catch (final InterruptedIOException ex) {
+            // interrupt status is kept
+            assertTrue(Thread.interrupted());
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    private interface Writer
+    {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static Function<BlockingTransfer, Runnable> writer(final Writer writer)
+    {
+        return new Function<BlockingTransfer, Runnable>() {
+            @Override
+            public Runnable apply(final BlockingTransfer transfer)
+            {
+                return new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            writer.write(Channels.newOutputStream(transfer.getWriterChannel()));
+                            transfer.getWriterChannel().close();
+                        }
+                        catch (final IOException ex) {
+                            transfer.transferFailed(new UncheckedIOException(ex));
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[333];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
 }
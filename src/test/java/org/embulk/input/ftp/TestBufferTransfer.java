@@ -0,0 +1,125 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Buffer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestBufferTransfer
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testTransferInOrder() throws Exception
+    {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        final BufferTransfer transfer = new BufferTransfer(runtime.getBufferAllocator(), 2, 4096);
+        executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int off = 0; off < data.length; off += 777) {
+                            transfer.getOutputStream().write(data, off, Math.min(777, data.length - off));
+                        }
+                        transfer.finish();
+                    }
+                    catch (final IOException ex) {
+                        transfer.fail(ex);
+                    }
+                }
+            });
+
+        assertArrayEquals(data, readAll(transfer));
+        assertNull(transfer.poll());
+        assertEquals(data.length, transfer.getReceivedBytes());
+    }
+
+    @Test
+    public void testFailureAfterData() throws Exception
+    {
+        final BufferTransfer transfer = new BufferTransfer(runtime.getBufferAllocator(), 2, 4096);
+        transfer.getOutputStream().write(new byte[10]);
+        transfer.fail(new IOException("connection reset"));
+
+        assertEquals(10, transfer.poll().limit());
+        try {
+            transfer.poll();
+            fail();
+        }
+        catch (final IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseStopsWriter() throws Exception
+    {
+        final BufferTransfer transfer = new BufferTransfer(runtime.getBufferAllocator(), 2, 16);
+        final AtomicReference<Exception> writerException = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        while (true) {
+                            transfer.getOutputStream().write(new byte[16]);
+                        }
+                    }
+                    catch (final Exception ex) {
+                        writerException.set(ex);
+                    }
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            });
+
+        transfer.poll().release();
+        transfer.close();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(writerException.get() instanceof IOException);
+        assertTrue(transfer.isClosed());
+    }
+
+    private static byte[] readAll(final BufferTransfer transfer) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Buffer buffer;
+        while ((buffer = transfer.poll()) != null) {
+            final byte[] bytes = new byte[buffer.limit()];
+            buffer.getBytes(0, bytes, 0, bytes.length);
+            out.write(bytes);
+            buffer.release();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,176 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+
+public class TestCompressionPolicy
+{
+    private static final Logger LOG = LoggerFactory.getLogger(TestCompressionPolicy.class);
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private InProcessFtpServer server;
+    private FTPClient client;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final byte[] random = new byte[FILE_SIZE];
+        new Random(1).nextBytes(random);
+        server = new InProcessFtpServer()
+                .setModeZSupported(true)
+                .addFile("/data/a.csv", FILE_SIZE)
+                .addFile("/data/b.csv", FILE_SIZE)
+                .addFile("/data/random.bin", random);
+        client = new FTPClient();
+        client.setConnector(new MeteredConnector());
+        client.connect("127.0.0.1", server.getPort());
+        client.login(InProcessFtpServer.USER, InProcessFtpServer.PASSWORD);
+        client.setType(FTPClient.TYPE_BINARY);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FtpFileInputPlugin.disconnectClient(client);
+        server.close();
+    }
+
+    @Test
+    public void testModes()
+    {
+        assertTrue(client.isCompressionSupported());
+        assertFalse(policy("off", null, "off.example.com").useModeZ(client, "/data/a.csv"));
+        assertTrue(policy("on", null, "on.example.com").useModeZ(client, "/data/a.csv.gz"));
+        final CompressionPolicy pattern = policy("pattern", "\\.csv$", "pattern.example.com");
+        assertTrue(pattern.useModeZ(client, "/data/a.csv"));
+        assertFalse(pattern.useModeZ(client, "/data/a.csv.gz"));
+        assertFalse(policy("adaptive", null, "adaptive.example.com").useModeZ(client, "/data/a.csv.gz"));
+    }
+
+    @Test
+    public void testModeZMetrics() throws Exception
+    {
+        final FileTransferMetrics metrics = new FileTransferMetrics("/data/a.csv", new HostTransferStats("metrics.example.com"));
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), download(policy("on", null, "metrics.example.com"), "/data/a.csv", metrics));
+        final Map<String, Object> map = metrics.toMap();
+        assertEquals("mode_z", map.get("compression"));
+        assertTrue(((Double) map.get("compression_ratio")) < 0.5);
+    }
+
+    @Test
+    public void testAdaptiveProbesBothModes() throws Exception
+    {
+        final CompressionPolicy adaptive = policy("adaptive", null, "probe.example.com");
+        // the first transfer measures the compression ratio with MODE Z
+        final FileTransferMetrics first = new FileTransferMetrics("/data/a.csv", new HostTransferStats("probe.example.com"));
+        download(adaptive, "/data/a.csv", first);
+        assertEquals("mode_z", first.toMap().get("compression"));
+        // the next one measures the throughput without MODE Z
+        final FileTransferMetrics second = new FileTransferMetrics("/data/b.csv", new HostTransferStats("probe.example.com"));
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), download(adaptive, "/data/b.csv", second));
+        assertEquals("none", second.toMap().get("compression"));
+        assertFalse(second.toMap().containsKey("compression_ratio"));
+    }
+
+    @Test
+    public void testAdaptiveIncompressible() throws Exception
+    {
+        final CompressionPolicy adaptive = policy("adaptive", null, "user@random.example.com:21");
+        download(adaptive, "/data/random.bin", new FileTransferMetrics("/data/random.bin", new HostTransferStats("user@random.example.com:21")));
+        assertFalse(adaptive.useModeZ(client, "/data/a.csv"));
+        // another server on the same host is measured separately
+        assertTrue(policy("adaptive", null, "user@random.example.com:2121").useModeZ(client, "/data/a.csv"));
+    }
+
+    @Test
+    public void testAdaptiveProbesAgainAfterTransfers()
+    {
+        final CompressionPolicy.Link link = new CompressionPolicy.Link(LOG, "transfers.example.com", 2, Long.MAX_VALUE);
+        measureBoth(link);
+        assertTrue(link.useModeZ());
+        assertTrue(link.useModeZ());
+        assertFalse(link.needsProbe(true));
+        // the third transfer measures MODE Z again
+        assertTrue(link.useModeZ());
+        assertTrue(link.needsProbe(true));
+        assertTrue(link.needsProbe(false));
+    }
+
+    @Test
+    public void testAdaptiveProbesAgainAfterTime()
+    {
+        final CompressionPolicy.Link link = new CompressionPolicy.Link(LOG, "time.example.com", Integer.MAX_VALUE, 0L);
+        measureBoth(link);
+        assertTrue(link.useModeZ());
+        assertTrue(link.needsProbe(true));
+    }
+
+    private static void measureBoth(final CompressionPolicy.Link link)
+    {
+        assertTrue(link.useModeZ());
+        link.measured(true, 2000000L, 0.3);
+        assertFalse(link.useModeZ());
+        link.measured(false, 1000000L, -1.0);
+        assertFalse(link.needsProbe(true));
+        assertFalse(link.needsProbe(false));
+    }
+
+    private static CompressionPolicy policy(final String mode, final String pattern, final String server)
+    {
+        return CompressionPolicy.of(LOG, mode, pattern, 256 * 1024, server);
+    }
+
+    // downloads as FtpFileInputPlugin.download does
+    private byte[] download(final CompressionPolicy policy, final String path, final FileTransferMetrics metrics) throws Exception
+    {
+        final boolean modeZ = policy.useModeZ(client, path);
+        client.setCompressionEnabled(modeZ);
+        final CompressionPolicy.Transfer transfer = policy.startTransfer(client, modeZ, metrics);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.download(path, out, 0, new FTPDataTransferListener() {
+                @Override
+                public void started()
+                {
+                }
+
+                @Override
+                public void transferred(final int length)
+                {
+                    transfer.transferred(length, System.nanoTime());
+                }
+
+                @Override
+                public void completed()
+                {
+                }
+
+                @Override
+                public void aborted()
+                {
+                }
+
+                @Override
+                public void failed()
+                {
+                }
+            });
+        transfer.finish(true);
+        return out.toByteArray();
+    }
+}
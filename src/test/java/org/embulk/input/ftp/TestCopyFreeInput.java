@@ -0,0 +1,149 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Reads files with {@code copy_free_input} from {@link InProcessFtpServer} behind a
+ * {@link FaultInjectingProxy}.
+ */
+public class TestCopyFreeInput
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private static final int FIRST_SIZE = 4 * 1024 * 1024;
+    // a different size, so that the bytes of the first file don't match
+    private static final int SECOND_SIZE = 3 * 1024 * 1024 + 1000;
+    private static final long RETRY_INTERVAL_MILLIS = 500;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InProcessFtpServer server;
+    private FaultInjectingProxy proxy;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new InProcessFtpServer()
+                .addFile("/data/a.bin", FIRST_SIZE)
+                .addFile("/data/b.bin", SECOND_SIZE);
+        proxy = new FaultInjectingProxy("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void testRetryOfSkippedFileDoesNotUseNextFileConnection()
+    {
+        proxy.resetDataConnectionAfter(256 * 1024);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        plugin.transaction(config(), new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    assertEquals(1, taskCount);
+                    try (final TransactionalFileInput input = plugin.open(taskSource, 0)) {
+                        assertTrue(input.nextFile());
+                        input.poll().release();
+                        // the transfer of "a.bin" fails
+                        final long deadline = System.currentTimeMillis() + 10000;
+                        while (proxy.getResetCount() == 0 && System.currentTimeMillis() < deadline) {
+                            sleep(10);
+                        }
+                        assertEquals(1, proxy.getResetCount());
+                        // its retry is waiting before the next RETR
+                        sleep(RETRY_INTERVAL_MILLIS / 5);
+
+                        // moves on without reading the rest of "a.bin"
+                        assertTrue(input.nextFile());
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        Buffer buffer;
+                        while ((buffer = input.poll()) != null) {
+                            final byte[] bytes = new byte[buffer.limit()];
+                            buffer.getBytes(0, bytes, 0, bytes.length);
+                            out.write(bytes, 0, bytes.length);
+                            buffer.release();
+                            // gives the stopped retry time to wake up in the middle of "b.bin"
+                            sleep(RETRY_INTERVAL_MILLIS * 2 / (SECOND_SIZE / 65536));
+                        }
+                        assertArrayEquals(InProcessFtpServer.content(SECOND_SIZE), out.toByteArray());
+                        assertFalse(input.nextFile());
+                        final List<TaskReport> reports = new ArrayList<>();
+                        reports.add(input.commit());
+                        return reports;
+                    }
+                }
+            });
+        // "a.bin" is not requested again after "b.bin". it may be requested more than once before
+        // that, if a data connection through the proxy fails to connect.
+        final List<String> paths = server.getRetrPaths();
+        assertEquals(Arrays.asList("/data/b.bin"), paths.subList(paths.indexOf("/data/b.bin"), paths.size()));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testDownloadConnectionsAreRejected()
+    {
+        // segments are read through streams, which this mode skips
+        new FtpFileInputPlugin().transaction(config().set("download_connections", 2), new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    throw new AssertionError();
+                }
+            });
+    }
+
+    private ConfigSource config()
+    {
+        return CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", proxy.getPort())
+                .set("user", InProcessFtpServer.USER)
+                .set("password", InProcessFtpServer.PASSWORD)
+                .set("path_prefix", "/data/")
+                .set("max_files_per_task", 2)
+                .set("copy_free_input", true)
+                .set("transfer_buffer_count", 8)
+                .set("maximum_retries", 3)
+                .set("initial_retry_interval_millis", RETRY_INTERVAL_MILLIS);
+    }
+
+    private static void sleep(final long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+}
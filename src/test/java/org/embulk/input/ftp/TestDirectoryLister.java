@@ -0,0 +1,58 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+
+public class TestDirectoryLister
+{
+    private final Logger log = LoggerFactory.getLogger(TestDirectoryLister.class);
+    private final AtomicInteger listCount = new AtomicInteger();
+    private final Map<String, List<FTPFile>> tree = FakeFTPClient.tree("/data/a/x.csv", "/data/b/y.csv");
+
+    @Test
+    public void testFallbackToListOnNotImplementedParameter() throws Exception
+    {
+        final FakeFTPClient client = new FakeFTPClient(tree, listCount).withMlsdReplyCode(504);
+        final DirectoryLister lister = DirectoryLister.create(log);
+        assertEquals("x.csv", lister.list(client, "/data/a")[0].getName());
+        assertEquals("y.csv", lister.list(client, "/data/b")[0].getName());
+        // MLSD is not tried again
+        assertEquals(1, client.getMlsdCount());
+        assertEquals(2, listCount.get());
+    }
+
+    @Test
+    public void testFallbackToListOnFileUnavailable() throws Exception
+    {
+        final FakeFTPClient client = new FakeFTPClient(tree, listCount).withMlsdReplyCode(550);
+        final DirectoryLister lister = DirectoryLister.create(log);
+        try {
+            lister.list(client, "/data/missing");
+            fail();
+        }
+        catch (final FTPException ex) {
+            assertEquals(550, ex.getCode());
+        }
+        // a missing directory doesn't tell that MLSD is unavailable
+        assertEquals("x.csv", lister.list(client, "/data/a")[0].getName());
+        assertEquals("y.csv", lister.list(client, "/data/b")[0].getName());
+        assertEquals(2, client.getMlsdCount());
+    }
+
+    @Test(expected = FTPException.class)
+    public void testOtherErrorsAreThrown() throws Exception
+    {
+        DirectoryLister.create(log).list(new FakeFTPClient(tree, listCount).withMlsdReplyCode(421), "/data/a");
+    }
+}
@@ -0,0 +1,117 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Retries failed downloads from {@link InProcessFtpServer} behind a {@link FaultInjectingProxy}.
+ */
+public class TestDownloadRetries
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int MAXIMUM_RETRIES = 3;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InProcessFtpServer server;
+    private FaultInjectingProxy proxy;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new InProcessFtpServer()
+                .addFile("/data/a.bin", FILE_SIZE);
+        proxy = new FaultInjectingProxy("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        proxy.close();
+        server.close();
+    }
+
+    @Test(timeout = 60000)
+    public void testRetriesStopAtMaximumRetries()
+    {
+        // every transfer fails before its first byte
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            readFile(Integer.MAX_VALUE, 0, out);
+            fail();
+        }
+        catch (final RuntimeException ex) {
+            // expected
+        }
+        assertEquals(0, out.size());
+        assertEquals(1 + MAXIMUM_RETRIES, server.getRetrCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testProgressResetsRetries()
+    {
+        // more failures than "maximum_retries", but each of them after some progress
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        readFile(MAXIMUM_RETRIES * 2, 64 * 1024, out);
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), out.toByteArray());
+        assertEquals(MAXIMUM_RETRIES * 2, proxy.getResetCount());
+        assertEquals(1 + MAXIMUM_RETRIES * 2, server.getRetrCount());
+    }
+
+    private void readFile(final int resets, final long resetAfterBytes, final ByteArrayOutputStream out)
+    {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", proxy.getPort())
+                .set("user", InProcessFtpServer.USER)
+                .set("password", InProcessFtpServer.PASSWORD)
+                .set("path_prefix", "/data/")
+                .set("maximum_retries", MAXIMUM_RETRIES)
+                .set("initial_retry_interval_millis", 10);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    // after listing, which uses a data connection too
+                    proxy.resetDataConnectionsAfter(resetAfterBytes, resets);
+                    final List<TaskReport> reports = new ArrayList<>();
+                    try (final TransactionalFileInput input = plugin.open(taskSource, 0)) {
+                        while (input.nextFile()) {
+                            Buffer buffer;
+                            while ((buffer = input.poll()) != null) {
+                                final byte[] bytes = new byte[buffer.limit()];
+                                buffer.getBytes(0, bytes, 0, bytes.length);
+                                out.write(bytes, 0, bytes.length);
+                                buffer.release();
+                            }
+                        }
+                        reports.add(input.commit());
+                    }
+                    return reports;
+                }
+            });
+    }
+}
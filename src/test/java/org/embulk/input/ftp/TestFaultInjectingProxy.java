@@ -0,0 +1,151 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+public class TestFaultInjectingProxy
+{
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private InProcessFtpServer server;
+    private FaultInjectingProxy proxy;
+    private FTPClient client;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new InProcessFtpServer()
+                .addFile("/data/a.csv", FILE_SIZE)
+                .addFile("/data/b.csv", 10)
+                .addFile("/data/sub/c.csv", 10);
+        proxy = new FaultInjectingProxy("127.0.0.1", server.getPort());
+        client = new FTPClient();
+        client.connect("127.0.0.1", proxy.getPort());
+        client.login(InProcessFtpServer.USER, InProcessFtpServer.PASSWORD);
+        client.setType(FTPClient.TYPE_BINARY);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FtpFileInputPlugin.disconnectClient(client);
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void testListAndDownload() throws Exception
+    {
+        assertEquals(Arrays.asList("/data/a.csv", "/data/b.csv", "/data/sub/c.csv"),
+                FtpFileInputPlugin.listFilesByPrefix(LoggerFactory.getLogger(FtpFileInputPlugin.class), client,
+                    "/data/", Optional.<String>empty(), Pattern.compile(".*")));
+
+        final long listed = proxy.getDataBytes();
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), download("/data/a.csv", 0));
+        assertEquals(FILE_SIZE, proxy.getDataBytes() - listed);
+    }
+
+    @Test
+    public void testResumeAfterReset() throws Exception
+    {
+        proxy.resetDataConnectionAfter(100000);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            client.download("/data/a.csv", out, 0, null);
+            fail();
+        }
+        catch (final Exception ex) {
+            // expected
+        }
+        assertEquals(100000, out.size());
+        assertEquals(1, proxy.getResetCount());
+        assertEquals(-1, proxy.getRecoveryNanos());
+
+        out.write(download("/data/a.csv", out.size()));
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), out.toByteArray());
+        assertTrue(proxy.getRecoveryNanos() > 0);
+        assertEquals(2, server.getRetrCount());
+    }
+
+    @Test
+    public void testAbort() throws Exception
+    {
+        proxy.setBytesPerSecond(FILE_SIZE);
+        final Thread aborter = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep(200);
+                        client.abortCurrentDataTransfer(true);
+                    }
+                    catch (final Exception ex) {
+                        // the transfer ended already
+                    }
+                }
+            };
+        aborter.start();
+        try {
+            download("/data/a.csv", 0);
+            fail();
+        }
+        catch (final Exception ex) {
+            // aborted
+        }
+        aborter.join();
+        // the control connection is still usable
+        client.noop();
+        assertArrayEquals(InProcessFtpServer.content(10), download("/data/b.csv", 0));
+    }
+
+    @Test
+    public void testLatency() throws Exception
+    {
+        proxy.setRttMillis(200);
+        final long start = System.nanoTime();
+        client.noop();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testBandwidth() throws Exception
+    {
+        proxy.setBytesPerSecond(4 * FILE_SIZE);
+        final long start = System.nanoTime();
+        download("/data/a.csv", 0);
+        // the first chunk is sent at once
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testStall() throws Exception
+    {
+        proxy.stallDataConnectionAfter(1000, 300);
+        final long start = System.nanoTime();
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), download("/data/a.csv", 0));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    private byte[] download(final String path, final long offset) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.download(path, out, offset, null);
+        return out.toByteArray();
+    }
+}
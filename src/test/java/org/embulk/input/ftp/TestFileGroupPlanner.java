@@ -0,0 +1,68 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class TestFileGroupPlanner
+{
+    @Test
+    public void testOneFilePerTaskByDefault()
+    {
+        final List<Integer> offsets = FileGroupPlanner.plan(files(10, 20, 30), 1, Optional.<Long>empty());
+        assertEquals(Arrays.asList(0, 1, 2), offsets);
+    }
+
+    @Test
+    public void testGroupByFileCount()
+    {
+        final List<Integer> offsets = FileGroupPlanner.plan(files(1, 1, 1, 1, 1), 2, Optional.<Long>empty());
+        assertEquals(Arrays.asList(0, 2, 4), offsets);
+    }
+
+    @Test
+    public void testGroupByBytes()
+    {
+        final List<Integer> offsets = FileGroupPlanner.plan(files(40, 50, 20, 200, 10, -1), 100, Optional.of(100L));
+        assertEquals(Arrays.asList(0, 2, 3, 4), offsets);
+    }
+
+    @Test
+    public void testNoFiles()
+    {
+        assertEquals(Collections.emptyList(), FileGroupPlanner.plan(files(), 10, Optional.of(100L)));
+    }
+
+    @Test
+    public void testCompact()
+    {
+        assertEquals(Collections.emptyList(), FileGroupPlanner.compact(Arrays.asList(0, 1, 2), 3));
+        assertEquals(Arrays.asList(0, 2, 4), FileGroupPlanner.compact(Arrays.asList(0, 2, 4), 5));
+        // an empty list reads as one file per task
+        assertEquals(Arrays.asList("c"), FileGroupPlanner.filesOfTask(Arrays.asList("a", "b", "c"), Collections.<Integer>emptyList(), 2));
+        assertEquals(2, FileGroupPlanner.firstFileOfTask(Collections.<Integer>emptyList(), 2));
+    }
+
+    @Test
+    public void testFilesOfTask()
+    {
+        final List<String> files = Arrays.asList("a", "b", "c", "d", "e");
+        assertEquals(Arrays.asList("a", "b"), FileGroupPlanner.filesOfTask(files, Arrays.asList(0, 2, 4), 0));
+        assertEquals(Arrays.asList("e"), FileGroupPlanner.filesOfTask(files, Arrays.asList(0, 2, 4), 2));
+        assertEquals(Arrays.asList("d"), FileGroupPlanner.filesOfTask(files, null, 3));
+    }
+
+    private static List<RemoteFile> files(final long... sizes)
+    {
+        final RemoteFile[] files = new RemoteFile[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            files[i] = new RemoteFile("/file" + i, sizes[i], -1L);
+        }
+        return Arrays.asList(files);
+    }
+}
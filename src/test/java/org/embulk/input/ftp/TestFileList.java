@@ -0,0 +1,104 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestFileList
+{
+    @Test
+    public void testSlices()
+    {
+        final List<String> paths = paths(1000);
+        final FileList list = FileList.ofBase64(FileList.toBase64(FileList.encode(paths, Collections.<Long>emptyList())));
+        assertEquals(1000, list.size());
+        // slices starting and ending at and across block boundaries
+        for (final int[] slice : new int[][] {{0, 1}, {63, 65}, {64, 128}, {100, 101}, {130, 1000}, {999, 1000}, {0, 1000}}) {
+            final List<FtpFileInputPlugin.InputFile> files = list.slice(slice[0], slice[1]);
+            assertEquals(slice[1] - slice[0], files.size());
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(paths.get(slice[0] + i), files.get(i).getPath());
+                assertNull(files.get(i).newLineRange());
+            }
+        }
+        assertEquals("/data/2024/12/file-00000999.csv", list.lastPath());
+    }
+
+    @Test
+    public void testRanges()
+    {
+        final List<String> paths = Arrays.asList("/data/b.csv", "/data/b.csv", "/data/a.csv");
+        final List<Long> ranges = Arrays.asList(0L, 1000L, 1000L, -1L, 0L, -1L);
+        final FileList list = FileList.ofBase64(FileList.toBase64(FileList.encode(paths, ranges)));
+        final List<FtpFileInputPlugin.InputFile> files = list.slice(1, 3);
+        assertEquals("/data/b.csv", files.get(0).getPath());
+        assertEquals(1000L, files.get(0).newLineRange().getStart());
+        assertEquals(-1L, files.get(0).newLineRange().getEnd());
+        assertEquals("/data/a.csv", files.get(1).getPath());
+        assertNull(files.get(1).newLineRange());
+        assertEquals("/data/b.csv", list.lastPath());
+    }
+
+    @Test
+    public void testSpilledFile() throws IOException
+    {
+        final List<String> paths = paths(200);
+        final Path directory = Files.createTempDirectory("file-list");
+        final Path file = FileList.spill(directory, FileList.encode(paths, Collections.<Long>emptyList()));
+        try {
+            final FileList list = FileList.ofFile(file.toString());
+            assertEquals(paths.subList(150, 200), pathsOf(list.slice(150, 200)));
+        }
+        finally {
+            Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        final FileList list = FileList.ofBase64(FileList.toBase64(FileList.encode(Collections.<String>emptyList(), Collections.<Long>emptyList())));
+        assertEquals(0, list.size());
+        assertNull(list.lastPath());
+    }
+
+    @Test
+    public void testCompact()
+    {
+        final List<String> paths = paths(100000);
+        long json = 0;
+        for (final String path : paths) {
+            json += path.length() + 3;  // quotes and a comma
+        }
+        assertTrue(FileList.toBase64(FileList.encode(paths, Collections.<Long>emptyList())).length() * 2 < json);
+    }
+
+    private static List<String> paths(final int count)
+    {
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            paths.add(String.format("/data/2024/%02d/file-%08d.csv", i * 12 / count + 1, i));
+        }
+        return paths;
+    }
+
+    private static List<String> pathsOf(final List<FtpFileInputPlugin.InputFile> files)
+    {
+        final List<String> paths = new ArrayList<>();
+        for (final FtpFileInputPlugin.InputFile file : files) {
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,251 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+public class TestFtpConnectionPool
+{
+    private InProcessFtpServer server;
+    private FtpConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new InProcessFtpServer().addFile("/data/a.csv", 10);
+        pool = new FtpConnectionPool();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testReuseReleased()
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L);
+        final FTPClient client = pool.borrow(key, factory());
+        pool.release(client);
+        assertSame(client, pool.borrow(key, factory()));
+        // a borrowed connection is not lent twice
+        final FTPClient other = pool.borrow(key, factory());
+        assertNotSame(client, other);
+        assertEquals(2, server.getSessionCount());
+        pool.release(client);
+        pool.release(other);
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L);
+        final FTPClient client = pool.borrow(key, factory());
+        pool.invalidate(client);
+        assertFalse(client.isConnected());
+        final FTPClient next = pool.borrow(key, factory());
+        assertNotSame(client, next);
+        pool.release(next);
+    }
+
+    @Test
+    public void testIdleExpiry() throws Exception
+    {
+        final FtpConnectionPool.Key key = key(2, 50L);
+        final FTPClient client = pool.borrow(key, factory());
+        pool.release(client);
+        Thread.sleep(100);
+        final FTPClient next = pool.borrow(key, factory());
+        assertNotSame(client, next);
+        // the expired connection is disconnected
+        assertFalse(client.isConnected());
+        pool.release(next);
+    }
+
+    @Test
+    public void testMaxIdle()
+    {
+        final FtpConnectionPool.Key key = key(1, 60000L);
+        final FTPClient first = pool.borrow(key, factory());
+        final FTPClient second = pool.borrow(key, factory());
+        pool.release(first);
+        pool.release(second);
+        // the least recently released one is disconnected
+        assertFalse(first.isConnected());
+        assertTrue(second.isConnected());
+        assertSame(second, pool.borrow(key, factory()));
+        pool.release(second);
+    }
+
+    @Test
+    public void testBrokenIdleIsReplaced() throws Exception
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L);
+        final FTPClient client = pool.borrow(key, factory());
+        pool.release(client);
+        // the server closes the idle connection
+        client.disconnect(false);
+        final FTPClient next = pool.borrow(key, factory());
+        assertNotSame(client, next);
+        assertTrue(next.isConnected());
+        pool.release(next);
+    }
+
+    @Test
+    public void testMaxTotalWaitsForRelease() throws Exception
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L, 1, 10000L);
+        final FTPClient client = pool.borrow(key, factory());
+        assertNull(pool.tryBorrow(key, factory()));
+
+        final AtomicReference<FTPClient> waiter = new AtomicReference<>();
+        final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    waiter.set(pool.borrow(key, factory()));
+                }
+            });
+        thread.start();
+        Thread.sleep(100);
+        assertNull(waiter.get());
+        pool.release(client);
+        thread.join(10000);
+        // the released connection is lent to the waiter
+        assertSame(client, waiter.get());
+        assertEquals(1, server.getSessionCount());
+        pool.release(client);
+    }
+
+    @Test
+    public void testMaxTotalCountsInvalidated()
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L, 1, 10000L);
+        final FTPClient client = pool.borrow(key, factory());
+        pool.invalidate(client);
+        final FTPClient next = pool.tryBorrow(key, factory());
+        assertNotNull(next);
+        pool.release(next);
+    }
+
+    @Test
+    public void testMaxTotalTimesOut()
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L, 1, 50L);
+        final FTPClient client = pool.borrow(key, factory());
+        try {
+            pool.borrow(key, factory());
+            fail();
+        }
+        catch (final RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("connection_pool_max_total"));
+        }
+        pool.release(client);
+    }
+
+    @Test
+    public void testBorrowUnlimitedExceedsMaxTotal()
+    {
+        // released connections are disconnected
+        final FtpConnectionPool.Key key = key(0, 60000L, 1, 50L);
+        final FTPClient client = pool.borrow(key, factory());
+        final FTPClient crawler = pool.borrowUnlimited(key, factory());
+        assertNotSame(client, crawler);
+        pool.release(crawler);
+        pool.release(client);
+        // back under the limit after both are released
+        final FTPClient next = pool.tryBorrow(key, factory());
+        assertNotNull(next);
+        assertNull(pool.tryBorrow(key, factory()));
+        pool.release(next);
+    }
+
+    @Test
+    public void testCreateTakesOverIdleSlot()
+    {
+        final FtpConnectionPool.Key key = key(2, 60000L, 1, 50L);
+        final FTPClient idle = pool.borrow(key, factory());
+        pool.release(idle);
+        // a reconnect doesn't reuse the idle one, and disconnects it to stay within the limit
+        final FTPClient fresh = pool.create(key, factory());
+        assertNotSame(idle, fresh);
+        assertFalse(idle.isConnected());
+        pool.release(fresh);
+    }
+
+    @Test
+    public void testTlsSettingsArePartOfKey()
+    {
+        final FtpConnectionPool.Key verified = tlsKey(true, "ca-a");
+        assertEquals(verified, tlsKey(true, "ca-a"));
+        assertEquals(verified.hashCode(), tlsKey(true, "ca-a").hashCode());
+        assertNotEquals(verified, tlsKey(false, "ca-a"));
+        assertNotEquals(verified, tlsKey(true, "ca-b"));
+    }
+
+    @Test
+    public void testNameHasTlsSettings()
+    {
+        assertEquals(InProcessFtpServer.USER + "@127.0.0.1:" + server.getPort(), key(2, 60000L).getName());
+        final String name = tlsKey(true, "ca-a").getName();
+        assertTrue(name.startsWith(InProcessFtpServer.USER + "@127.0.0.1:990 ftps/"));
+        assertEquals(name, tlsKey(true, "ca-a").getName());
+        assertNotEquals(name, tlsKey(false, "ca-a").getName());
+        assertNotEquals(name, tlsKey(true, "ca-b").getName());
+        assertFalse(name.contains("ca-a"));
+    }
+
+    private FtpConnectionPool.Key key(final int maxIdle, final long idleTimeoutMillis)
+    {
+        return key(maxIdle, idleTimeoutMillis, 0, 0L);
+    }
+
+    private FtpConnectionPool.Key key(final int maxIdle, final long idleTimeoutMillis, final int maxTotal, final long maxWaitMillis)
+    {
+        return new FtpConnectionPool.Key("127.0.0.1", server.getPort(), InProcessFtpServer.USER, InProcessFtpServer.PASSWORD,
+                FTPClient.SECURITY_FTP, FTPClient.TYPE_BINARY, true, null, false, null, null, maxIdle, idleTimeoutMillis,
+                maxTotal, maxWaitMillis);
+    }
+
+    private FtpConnectionPool.Key tlsKey(final boolean verify, final String caCertData)
+    {
+        return new FtpConnectionPool.Key("127.0.0.1", 990, InProcessFtpServer.USER, InProcessFtpServer.PASSWORD,
+                FTPClient.SECURITY_FTPS, FTPClient.TYPE_BINARY, true, verify, true, null, caCertData, 2, 60000L, 0, 0L);
+    }
+
+    private Supplier<FTPClient> factory()
+    {
+        return new Supplier<FTPClient>() {
+            @Override
+            public FTPClient get()
+            {
+                final FTPClient client = new FTPClient();
+                try {
+                    client.connect("127.0.0.1", server.getPort());
+                    client.login(InProcessFtpServer.USER, InProcessFtpServer.PASSWORD);
+                }
+                catch (final Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                return client;
+            }
+        };
+    }
+}
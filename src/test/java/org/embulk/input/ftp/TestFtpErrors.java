@@ -0,0 +1,63 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketException;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+public class TestFtpErrors
+{
+    @Test
+    public void testReplyCodes()
+    {
+        // 450 Requested file action not taken. File unavailable (e.g., file busy)
+        final Exception busy = new RuntimeException(new FTPException(450, "File busy"));
+        assertTrue(FtpErrors.isRetryable(busy));
+        assertTrue(FtpErrors.isControlConnectionAlive(busy));
+
+        // 550 File not found
+        final Exception notFound = new RuntimeException(new FTPException(550, "No such file"));
+        assertFalse(FtpErrors.isRetryable(notFound));
+        assertTrue(FtpErrors.isControlConnectionAlive(notFound));
+
+        // 421 closes the control connection
+        final Exception closing = new RuntimeException(new FTPException(421, "Timeout"));
+        assertTrue(FtpErrors.isRetryable(closing));
+        assertFalse(FtpErrors.isControlConnectionAlive(closing));
+    }
+
+    @Test
+    public void testBrokenConnection()
+    {
+        final Exception brokenPipe = new UncheckedIOException(new SocketException("Broken pipe"));
+        assertTrue(FtpErrors.isRetryable(brokenPipe));
+        assertFalse(FtpErrors.isControlConnectionAlive(brokenPipe));
+
+        final Exception illegalReply = new RuntimeException(new FTPIllegalReplyException());
+        assertTrue(FtpErrors.isRetryable(illegalReply));
+        assertFalse(FtpErrors.isControlConnectionAlive(illegalReply));
+
+        // the reply to the transfer is left unread on the control connection
+        final Exception dataTransfer = new RuntimeException(new FTPDataTransferException(new IOException("Connection reset")));
+        assertTrue(FtpErrors.isRetryable(dataTransfer));
+        assertFalse(FtpErrors.isControlConnectionAlive(dataTransfer));
+    }
+
+    @Test
+    public void testNotRetryable()
+    {
+        assertFalse(FtpErrors.isRetryable(new ConfigException("bad header")));
+        assertFalse(FtpErrors.isRetryable(new InterruptedIOException()));
+        assertFalse(FtpErrors.isRetryable(new RuntimeException(new InterruptedException())));
+    }
+}
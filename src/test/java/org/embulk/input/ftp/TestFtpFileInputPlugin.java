@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.regex.Pattern;
 
 import org.embulk.EmbulkTestRuntime;
@@ -104,6 +105,16 @@ public class TestFtpFileInputPlugin
         runner.transaction(config, new Control());
     }
 
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithVirtualThreadsBeforeJava21()
+    {
+        // tests run with the Java 8 classes, which have no virtual threads
+        final ConfigSource config = config().deepCopy()
+                .set("transfer_virtual_threads", true);
+
+        runner.transaction(config, new Control());
+    }
+
     @Test
     public void testResume()
     {
@@ -147,10 +158,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, defaultPathMatchPattern);
+        final List<String> fileList = listFiles(task, defaultPathMatchPattern);
         assertEquals(fileList.size(), 0);
     }
 
@@ -175,10 +183,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, defaultPathMatchPattern);
+        final List<String> fileList = listFiles(task, defaultPathMatchPattern);
 
         assertEquals(fileList.get(0), expected.get(0));
         assertEquals(fileList.get(1), expected.get(1));
@@ -207,10 +212,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, defaultPathMatchPattern);
+        final List<String> fileList = listFiles(task, defaultPathMatchPattern);
 
         assertEquals(fileList.get(0), expected.get(0));
         assertEquals(fileList.get(1), expected.get(1));
@@ -239,10 +241,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, defaultPathMatchPattern);
+        final List<String> fileList = listFiles(task, defaultPathMatchPattern);
 
         assertEquals(fileList.get(0), expected.get(0));
         assertEquals(fileList.get(1), expected.get(1));
@@ -272,10 +271,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, pathMatchPattern);
+        final List<String> fileList = listFiles(task, pathMatchPattern);
 
         assertEquals(fileList.get(0), expected.get(0));
         assertEquals(configDiff.get(String.class, "last_path"), FTP_TEST_PATH_PREFIX + "02.csv");
@@ -301,10 +297,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, pathMatchPattern);
+        final List<String> fileList = listFiles(task, pathMatchPattern);
 
         assertEquals(fileList.size(), 0);
         assertEquals(configDiff.get(String.class, "last_path"), "");
@@ -330,10 +323,7 @@ public class TestFtpFileInputPlugin
             }
         });
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, pathMatchPattern);
+        final List<String> fileList = listFiles(task, pathMatchPattern);
 
         assertEquals(fileList.size(), 0);
         assertEquals(configDiff.get(String.class, "last_path"), "");
@@ -365,10 +355,7 @@ public class TestFtpFileInputPlugin
 
         runner.transaction(configLegacy, new Control());
 
-        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-        method.setAccessible(true);
-        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-        final List<String> fileList = (List<String>) method.invoke(plugin, logger, task, defaultPathMatchPattern);
+        final List<String> fileList = listFiles(task, defaultPathMatchPattern);
         task.setFiles(fileList);
 
         assertRecords(config, output);
@@ -389,12 +376,8 @@ public void testListFilesStopWhenFileNotFound_Ftp() throws Exception
     final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
     final PluginTask task = configMapper.map(config, PluginTask.class);
 
-    final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listFiles", Logger.class, PluginTask.class, Pattern.class);
-    method.setAccessible(true);
-    final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
-
     try {
-        method.invoke(plugin, logger, task, pathMatchPattern);
+        listFiles(task, pathMatchPattern);
         fail("Expected ConfigException to be thrown");
     } catch (InvocationTargetException e) {
         Throwable cause = e.getCause();
@@ -408,6 +391,22 @@ public void testListFilesStopWhenFileNotFound_Ftp() throws Exception
 }
 
 
+    // lists the paths of files as the transaction does
+    @SuppressWarnings("unchecked")
+    private List<String> listFiles(final PluginTask task, final Pattern pathMatchPattern) throws Exception
+    {
+        final Method method = FtpFileInputPlugin.class.getDeclaredMethod("listRemoteFiles",
+                Logger.class, PluginTask.class, Pattern.class, SeenPathIndex.class, Optional.class);
+        method.setAccessible(true);
+        final Logger logger = LoggerFactory.getLogger(FtpFileInputPlugin.class);
+        final List<String> paths = new ArrayList<>();
+        for (final RemoteFile file : (List<RemoteFile>) method.invoke(plugin, logger, task, pathMatchPattern,
+                    SeenPathIndex.empty(), Optional.empty())) {
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+
     private static List<TaskReport> emptyTaskReports(final int taskCount)
     {
         final ImmutableList.Builder<TaskReport> reports = new ImmutableList.Builder<>();
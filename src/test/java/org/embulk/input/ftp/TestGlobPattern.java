@@ -0,0 +1,78 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+public class TestGlobPattern
+{
+    @Test
+    public void testWildcards()
+    {
+        assertMatches("/data/*.csv", "/data/a.csv");
+        assertNotMatches("/data/*.csv", "/data/x/a.csv");
+        assertMatches("/data/?.csv", "/data/a.csv");
+        assertNotMatches("/data/?.csv", "/data/ab.csv");
+        assertMatches("/data/**.csv", "/data/x/y/a.csv");
+    }
+
+    @Test
+    public void testDoubleStar()
+    {
+        assertMatches("**/*.csv", "/a.csv");
+        assertMatches("**/*.csv", "/data/x/a.csv");
+        assertMatches("/data/**/a.csv", "/data/a.csv");
+        assertMatches("/data/**/a.csv", "/data/x/y/a.csv");
+        assertMatches("/data/tmp/**", "/data/tmp");
+        assertMatches("/data/tmp/**", "/data/tmp/x/y");
+        assertNotMatches("/data/tmp/**", "/data/tmpx");
+    }
+
+    @Test
+    public void testClassesAndAlternatives()
+    {
+        assertMatches("/data/[0-9][0-9]/*", "/data/01/a");
+        assertNotMatches("/data/[0-9][0-9]/*", "/data/0a/a");
+        assertMatches("/data/[!a]*", "/data/b");
+        assertNotMatches("/data/[!a]*", "/data/a");
+        assertMatches("/data/{a,b{c,d}}.csv", "/data/bd.csv");
+        assertNotMatches("/data/{a,b{c,d}}.csv", "/data/b.csv");
+        assertMatches("/data/a,b.csv", "/data/a,b.csv");
+    }
+
+    @Test
+    public void testEscape()
+    {
+        assertMatches("/data/\\*.csv", "/data/*.csv");
+        assertNotMatches("/data/\\*.csv", "/data/a.csv");
+        assertMatches("/data/(a).csv", "/data/(a).csv");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnmatchedBrace()
+    {
+        GlobPattern.compile("/data/{a,b");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnmatchedBracket()
+    {
+        GlobPattern.compile("/data/[ab");
+    }
+
+    private static void assertMatches(final String glob, final String path)
+    {
+        final Pattern pattern = GlobPattern.compile(glob);
+        assertTrue(glob + " should match " + path, pattern.matcher(path).matches());
+    }
+
+    private static void assertNotMatches(final String glob, final String path)
+    {
+        final Pattern pattern = GlobPattern.compile(glob);
+        assertFalse(glob + " should not match " + path, pattern.matcher(path).matches());
+    }
+}
@@ -0,0 +1,153 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.listparsers.UnixListParser;
+
+public class TestIncrementalState
+{
+    private static final String SERVER = "user@localhost:21";
+
+    private final Logger log = LoggerFactory.getLogger(TestIncrementalState.class);
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = Files.createTempFile("incremental-state", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void deleteFile() throws IOException
+    {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(IncrementalState.pendingFile(file));
+    }
+
+    @Test
+    public void testNewAndChangedFiles()
+    {
+        final List<RemoteFile> first = Arrays.asList(
+                new RemoteFile("/data/b.csv", 10, 1000),
+                new RemoteFile("/data/a.csv", 20, 1000),
+                new RemoteFile("/data/c.csv", 30, 1000));
+        assertEquals(first, IncrementalState.prepare(log, file, SERVER, first));
+        IncrementalState.commit(log, file);
+        assertTrue(Files.exists(file));
+        assertFalse(Files.exists(IncrementalState.pendingFile(file)));
+
+        final List<RemoteFile> second = Arrays.asList(
+                new RemoteFile("/data/a.csv", 20, 1000),
+                new RemoteFile("/data/0.csv", 5, 2000),   // added before the last path
+                new RemoteFile("/data/b.csv", 11, 1000),  // appended
+                new RemoteFile("/data/c.csv", 30, 3000),  // rewritten
+                new RemoteFile("/data/d.csv", 40, 2000));
+        assertEquals(Arrays.asList(second.get(1), second.get(2), second.get(3), second.get(4)),
+                IncrementalState.prepare(log, file, SERVER, second));
+    }
+
+    @Test
+    public void testStateIsNotUpdatedUntilCommit()
+    {
+        final List<RemoteFile> files = Arrays.asList(new RemoteFile("/data/a.csv", 10, 1000));
+        IncrementalState.prepare(log, file, SERVER, files);
+        // the execution failed
+        assertEquals(files, IncrementalState.prepare(log, file, SERVER, files));
+        IncrementalState.commit(log, file);
+        assertEquals(0, IncrementalState.prepare(log, file, SERVER, files).size());
+    }
+
+    @Test
+    public void testUnknownSizeAndModifiedTime()
+    {
+        final List<RemoteFile> files = Arrays.asList(new RemoteFile("/data/a.csv", -1, 1000),
+                new RemoteFile("/data/b.csv", 10, -1));
+        IncrementalState.prepare(log, file, SERVER, files);
+        IncrementalState.commit(log, file);
+        assertEquals(0, IncrementalState.prepare(log, file, SERVER, Arrays.asList(
+                        new RemoteFile("/data/a.csv", 10, 1000),
+                        new RemoteFile("/data/b.csv", 10, 1000))).size());
+    }
+
+    @Test
+    public void testOtherServer()
+    {
+        final List<RemoteFile> files = Arrays.asList(new RemoteFile("/data/a.csv", 10, 1000));
+        IncrementalState.prepare(log, file, SERVER, files);
+        IncrementalState.commit(log, file);
+        assertEquals(files, IncrementalState.prepare(log, file, "user@otherhost:21", files));
+    }
+
+    @Test
+    public void testFrontCodedPaths() throws IOException
+    {
+        final List<RemoteFile> files = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            files.add(new RemoteFile(String.format("/data/2024/01/%02d/events-%08d.csv.gz", i % 31, i), 1000 + i, 1700000000000L + i));
+        }
+        IncrementalState.prepare(log, file, SERVER, files);
+        IncrementalState.commit(log, file);
+
+        int count = 0;
+        String previous = "";
+        try (final IncrementalState.Reader reader = new IncrementalState.Reader(file)) {
+            assertEquals(SERVER, reader.getServer());
+            while (reader.next()) {
+                assertTrue(previous.compareTo(reader.getPath()) < 0);
+                previous = reader.getPath();
+                count++;
+            }
+        }
+        assertEquals(files.size(), count);
+        assertTrue(Files.size(file) < files.size() * 10);
+        assertEquals(0, IncrementalState.prepare(log, file, SERVER, files).size());
+    }
+
+    @Test
+    public void testModifiedTimeFromList() throws Exception
+    {
+        // LIST tells the minute of a recent file, and only the day of the same file half a year later
+        final List<RemoteFile> first = listByList("-rw-r--r--   1 user  group  10 Jan  5 12:34 a.csv");
+        IncrementalState.prepare(log, file, SERVER, first);
+        IncrementalState.commit(log, file);
+        final List<RemoteFile> second = listByList("-rw-r--r--   1 user  group  10 Jan  5  2024 a.csv");
+        assertFalse(first.get(0).getModifiedTime() == second.get(0).getModifiedTime());
+        assertEquals(0, IncrementalState.prepare(log, file, SERVER, second).size());
+        IncrementalState.commit(log, file);
+
+        // a size change is still found
+        assertEquals(1, IncrementalState.prepare(log, file, SERVER,
+                    listByList("-rw-r--r--   1 user  group  11 Jan  5  2024 a.csv")).size());
+    }
+
+    private List<RemoteFile> listByList(final String line) throws Exception
+    {
+        final Map<String, List<FTPFile>> tree = FakeFTPClient.tree("/data/");
+        tree.get("/data").addAll(Arrays.asList(new UnixListParser().parse(new String[] {line})));
+        final List<RemoteFile> files = new ArrayList<>();
+        for (final FTPFile entry : DirectoryLister.create(log).list(new FakeFTPClient(tree, new AtomicInteger()), "/data")) {
+            files.add(FtpFileInputPlugin.toRemoteFile("/data/" + entry.getName(), entry));
+        }
+        return files;
+    }
+}
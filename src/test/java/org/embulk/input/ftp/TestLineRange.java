@@ -0,0 +1,103 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class TestLineRange
+{
+    private static final byte[] CONTENT = ("id,name\n1,a\n22,bb\n\n333,ccc\n4444,dddd\n55555,eeeee\n"
+            + "6,f\n7777777777,ggggggggggggggggggggg\n8,h").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testSplit()
+    {
+        assertEquals(Arrays.asList(0L, 10L, 10L, 20L, 20L, -1L), LineRange.split(25, 10));
+        assertEquals(Arrays.asList(0L, 10L, 10L, -1L), LineRange.split(20, 10));
+        assertEquals(Arrays.asList(0L, -1L), LineRange.split(0, 10));
+    }
+
+    @Test
+    public void testEachLineIsReadOnce()
+    {
+        final Random random = new Random(1);
+        for (int rangeBytes = 1; rangeBytes <= CONTENT.length + 1; rangeBytes++) {
+            final List<Long> ranges = LineRange.split(CONTENT.length, rangeBytes);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < ranges.size(); i += 2) {
+                final byte[] bytes = read(new LineRange(ranges.get(i), ranges.get(i + 1)), 0, random);
+                out.write(bytes, 0, bytes.length);
+            }
+            assertEquals("range " + rangeBytes, new String(CONTENT, StandardCharsets.UTF_8), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testRestartAfterDelivered()
+    {
+        final Random random = new Random(2);
+        final LineRange range = new LineRange(10, 30);
+        final byte[] whole = read(range, 0, random);
+        assertEquals("22,bb\n\n333,ccc\n4444,dddd\n", new String(whole, StandardCharsets.UTF_8));
+        for (int delivered = 0; delivered < whole.length; delivered++) {
+            final byte[] rest = read(range, delivered, random);
+            assertArrayEquals(Arrays.copyOfRange(whole, delivered, whole.length), rest);
+        }
+    }
+
+    @Test
+    public void testRangeWithoutLines()
+    {
+        // "7777777777,ggg...\n" is from 53 to 85
+        final LineRange range = new LineRange(60, 80);
+        assertEquals(0, read(range, 0, new Random(3)).length);
+    }
+
+    @Test
+    public void testFirstLines()
+    {
+        assertEquals("id,name\n", new String(LineRange.firstLines(CONTENT, 1), StandardCharsets.UTF_8));
+        assertEquals("id,name\n1,a\n", new String(LineRange.firstLines(CONTENT, 2), StandardCharsets.UTF_8));
+        assertEquals(0, LineRange.firstLines(CONTENT, 0).length);
+        assertNull(LineRange.firstLines("no line feed".getBytes(StandardCharsets.UTF_8), 1));
+    }
+
+    @Test
+    public void testSplitFiles()
+    {
+        final List<Long> ranges = new ArrayList<>();
+        final List<RemoteFile> files = FtpFileInputPlugin.splitFiles(LoggerFactory.getLogger(TestLineRange.class), Arrays.asList(
+                    new RemoteFile("/a.csv", 25, 0), new RemoteFile("/b.csv", 5, 0), new RemoteFile("/c.csv.gz", 25, 0)), 10, ranges);
+        assertEquals("[/a.csv, /a.csv, /a.csv, /b.csv, /c.csv.gz]", files.toString());
+        assertEquals(Arrays.asList(10L, 10L, 5L, 5L, 25L), Arrays.asList(
+                    files.get(0).getSize(), files.get(1).getSize(), files.get(2).getSize(), files.get(3).getSize(), files.get(4).getSize()));
+        assertEquals(Arrays.asList(0L, 10L, 10L, 20L, 20L, -1L, 0L, -1L, 0L, -1L), ranges);
+    }
+
+    // simulates a transfer of the range which restarts after delivered bytes
+    private static byte[] read(final LineRange range, final long delivered, final Random random)
+    {
+        final LineRange.Cursor cursor = range.newCursor(delivered);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = (int) range.restartOffset(delivered);
+        while (position < CONTENT.length && !cursor.isEnded()) {
+            final int len = Math.min(1 + random.nextInt(7), CONTENT.length - position);
+            final byte[] chunk = Arrays.copyOfRange(CONTENT, position, position + len);
+            final int skipped = cursor.skip(chunk, 0, len);
+            final int taken = cursor.take(chunk, skipped, len - skipped);
+            out.write(chunk, skipped, taken);
+            position += len;
+        }
+        return out.toByteArray();
+    }
+}
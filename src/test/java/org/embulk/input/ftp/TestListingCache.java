@@ -0,0 +1,180 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPFile;
+
+public class TestListingCache
+{
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String SERVER = "user@localhost:21";
+
+    private final Logger log = LoggerFactory.getLogger(TestListingCache.class);
+    private final AtomicInteger listCount = new AtomicInteger();
+
+    private Map<String, List<FTPFile>> tree;
+    private Path file;
+
+    @Before
+    public void createTree() throws IOException
+    {
+        tree = FakeFTPClient.tree(
+                "/data/2024/01/a.csv",
+                "/data/2024/02/b.csv",
+                "/data/2025/01/c.csv");
+        final long old = System.currentTimeMillis() - 10 * DAY;
+        for (final String path : Arrays.asList("/data", "/data/2024", "/data/2024/01", "/data/2024/02",
+                    "/data/2025", "/data/2025/01")) {
+            FakeFTPClient.setModifiedTime(tree, path, old);
+        }
+        // a new file was put in this directory just now
+        FakeFTPClient.setModifiedTime(tree, "/data/2025/01", System.currentTimeMillis());
+
+        file = Files.createTempFile("listing-cache", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void deleteFile() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testStableSubtreesAreNotListedAgain()
+    {
+        assertEquals(6, crawlWithCache(false));
+        // "/data" is the base directory and always listed. "/data/2024" and the directories below
+        // are stable, but "/data/2025/01" was modified recently.
+        assertEquals(3, crawlWithCache(false));
+    }
+
+    @Test
+    public void testChangedDirectoryIsListedAgain()
+    {
+        crawlWithCache(false);
+
+        // a new directory changes the modify time of its parent
+        final Map<String, List<FTPFile>> added = FakeFTPClient.tree("/data/2024/03/d.csv");
+        tree.get("/data/2024").addAll(added.get("/data/2024"));
+        tree.put("/data/2024/03", added.get("/data/2024/03"));
+        FakeFTPClient.setModifiedTime(tree, "/data/2024", System.currentTimeMillis());
+
+        listCount.set(0);
+        assertEquals(Arrays.asList("/data/2024/01/a.csv", "/data/2024/02/b.csv", "/data/2024/03/d.csv", "/data/2025/01/c.csv"),
+                crawl(ListingCache.load(log, file, SERVER, DAY, false)));
+        // "/data/2024/01" and "/data/2024/02" are still answered from the cache
+        assertEquals(5, listCount.get());
+    }
+
+    @Test
+    public void testPrunedDirectoriesAreKept()
+    {
+        crawlWithCache(false);
+
+        // "/data/2024" sorts before last_path and is not visited
+        listCount.set(0);
+        assertEquals(Arrays.asList("/data/2025/01/c.csv"),
+                crawl(ListingCache.load(log, file, SERVER, DAY, false), Optional.of("/data/2025/01/a.csv")));
+        assertEquals(6, ListingCache.load(log, file, SERVER, DAY, false).size());
+
+        // so it is still answered from the cache
+        assertEquals(3, crawlWithCache(false));
+    }
+
+    @Test
+    public void testRemovedDirectoriesAreDropped()
+    {
+        crawlWithCache(false);
+
+        // "/data/2025" is removed with the directory below it
+        tree.get("/data").remove(1);
+        tree.remove("/data/2025");
+        tree.remove("/data/2025/01");
+        listCount.set(0);
+        assertEquals(Arrays.asList("/data/2024/01/a.csv", "/data/2024/02/b.csv"),
+                crawl(ListingCache.load(log, file, SERVER, DAY, false)));
+        assertEquals(4, ListingCache.load(log, file, SERVER, DAY, false).size());
+    }
+
+    @Test
+    public void testRefresh()
+    {
+        crawlWithCache(false);
+        assertEquals(6, crawlWithCache(true));
+    }
+
+    @Test
+    public void testBrokenFileIsIgnored() throws IOException
+    {
+        Files.write(file, new byte[] {1, 2, 3});
+        assertEquals(6, crawlWithCache(false));
+    }
+
+    @Test
+    public void testVarLong() throws IOException
+    {
+        final long[] values = {-1L, 0L, 1L, 127L, 128L, 1L << 40, Long.MAX_VALUE - 1};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final long value : values) {
+            ListingCache.writeVarLong(out, value);
+        }
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (final long value : values) {
+            assertEquals(value, ListingCache.readVarLong(in));
+        }
+    }
+
+    // returns the number of directories listed from the server
+    private int crawlWithCache(final boolean refresh)
+    {
+        listCount.set(0);
+        assertEquals(Arrays.asList("/data/2024/01/a.csv", "/data/2024/02/b.csv", "/data/2025/01/c.csv"),
+                crawl(ListingCache.load(log, file, SERVER, DAY, refresh)));
+        return listCount.get();
+    }
+
+    private List<String> crawl(final ListingCache cache)
+    {
+        return crawl(cache, Optional.<String>empty());
+    }
+
+    private List<String> crawl(final ListingCache cache, final Optional<String> lastPath)
+    {
+        final List<RemoteFile> files = new ParallelDirectoryCrawler(log, new Supplier<FTPClient>() {
+                @Override
+                public FTPClient get()
+                {
+                    return new FakeFTPClient(tree, listCount);
+                }
+            }, 2, new PathFilter(lastPath, Pattern.compile(".*")), Optional.of(cache)).crawl("/data/");
+        cache.save();
+
+        final List<String> paths = new ArrayList<>();
+        for (final RemoteFile remoteFile : files) {
+            paths.add(remoteFile.getPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,70 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+public class TestMeteredConnector
+{
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private InProcessFtpServer server;
+    private FTPClient client;
+    private MeteredConnector connector;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new InProcessFtpServer()
+                .setModeZSupported(true)
+                .addFile("/data/a.csv", FILE_SIZE);
+        connector = new MeteredConnector();
+        client = new FTPClient();
+        client.setConnector(connector);
+        client.connect("127.0.0.1", server.getPort());
+        client.login(InProcessFtpServer.USER, InProcessFtpServer.PASSWORD);
+        client.setType(FTPClient.TYPE_BINARY);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FtpFileInputPlugin.disconnectClient(client);
+        server.close();
+    }
+
+    @Test
+    public void testGovernorCountsBytesBeforeModeZ() throws Exception
+    {
+        final AtomicLong acquired = new AtomicLong();
+        connector.setGovernor(new BandwidthGovernor(null, null) {
+                @Override
+                long acquire(final int bytes)
+                {
+                    acquired.addAndGet(bytes);
+                    return 0L;
+                }
+            });
+        client.setCompressionEnabled(true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.download("/data/a.csv", out, 0, null);
+        assertArrayEquals(InProcessFtpServer.content(FILE_SIZE), out.toByteArray());
+        assertEquals(connector.getDataBytes(), acquired.get());
+        assertTrue(acquired.get() < FILE_SIZE);
+
+        // not throttled after the governor is removed
+        connector.setGovernor(null);
+        client.download("/data/a.csv", new ByteArrayOutputStream(), 0, null);
+        assertEquals(connector.getDataBytes() / 2, acquired.get());
+    }
+}
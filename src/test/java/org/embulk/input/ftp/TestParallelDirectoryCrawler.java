@@ -0,0 +1,122 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPFile;
+
+public class TestParallelDirectoryCrawler
+{
+    private final Logger log = LoggerFactory.getLogger(TestParallelDirectoryCrawler.class);
+
+    private final Map<String, List<FTPFile>> tree = FakeFTPClient.tree(
+            "/data/2024/01/a.csv",
+            "/data/2024/01/b.csv",
+            "/data/2024/02/a.csv",
+            "/data/2024/02/c.txt",
+            "/data/2025/01/a.csv",
+            "/data/empty/",
+            "/database/x.csv",
+            "/other/y.csv");
+
+    @Test
+    public void testSameResultAsSequentialListing()
+    {
+        assertEquals(Arrays.asList("/data/2024/01/a.csv", "/data/2024/01/b.csv", "/data/2024/02/a.csv", "/data/2024/02/c.txt",
+                "/data/2025/01/a.csv", "/database/x.csv"),
+                assertSameResult("/data", Optional.<String>empty(), ".*"));
+        assertSameResult("/data/", Optional.<String>empty(), ".*");
+        assertSameResult("/data/2024/0", Optional.<String>empty(), "\\.csv$");
+        assertSameResult("/", Optional.<String>empty(), ".*");
+        assertEquals(Arrays.asList("data/2024/01/a.csv", "data/2024/01/b.csv"),
+                assertSameResult("data/2024/01/", Optional.<String>empty(), ".*"));
+    }
+
+    @Test
+    public void testSameResultWithLastPath()
+    {
+        assertSameResult("/data", Optional.of("/data/2024/01/b.csv"), ".*");
+        assertEquals(Arrays.asList("/data/2025/01/a.csv"),
+                assertSameResult("/data/", Optional.of("/data/2024/02/c.txt"), ".*"));
+    }
+
+    @Test
+    public void testOnlyBoundaryDirectoriesAreListed()
+    {
+        final AtomicInteger listCount = new AtomicInteger();
+        final List<String> files = FtpFileInputPlugin.listFilesByPrefix(log, new FakeFTPClient(tree, listCount),
+                "/data/", Optional.of("/data/2024/01/a.csv"), Pattern.compile(".*"));
+        assertEquals(Arrays.asList("/data/2024/01/b.csv", "/data/2024/02/a.csv", "/data/2024/02/c.txt",
+                "/data/2025/01/a.csv"), files);
+        // "/data", "/data/2024", "/data/2024/01", "/data/2024/02", "/data/2025", "/data/2025/01" and "/data/empty"
+        assertEquals(7, listCount.get());
+
+        listCount.set(0);
+        assertEquals(Arrays.asList("/data/empty2/x.csv"), FtpFileInputPlugin.listFilesByPrefix(log,
+                new FakeFTPClient(FakeFTPClient.tree("/data/2024/01/a.csv", "/data/2025/01/a.csv", "/data/empty2/x.csv"), listCount),
+                "/data/", Optional.of("/data/2025/01/a.csv"), Pattern.compile(".*")));
+        // "/data/2024" is not listed
+        assertEquals(4, listCount.get());
+        assertSameResult("/data/", Optional.of("/data/2024/01/a.csv"), ".*");
+    }
+
+    @Test
+    public void testPrunedByGlobsAndDepth()
+    {
+        final PathFilter filter = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"), false,
+                Arrays.asList(GlobPattern.compile("/data/*/02/*.csv"), GlobPattern.compile("/other/*")),
+                Arrays.asList(GlobPattern.compile("/data/2025/**")), Optional.of(3));
+        final AtomicInteger listCount = new AtomicInteger();
+        final List<RemoteFile> files = new ParallelDirectoryCrawler(log, new Supplier<FTPClient>() {
+                @Override
+                public FTPClient get()
+                {
+                    return new FakeFTPClient(tree, listCount);
+                }
+            }, 2, filter).crawl("/");
+        final List<String> paths = new ArrayList<>();
+        for (final RemoteFile file : files) {
+            paths.add(file.getPath());
+        }
+        assertEquals(Arrays.asList("/data/2024/02/a.csv", "/other/y.csv"), paths);
+        // "/", "/data", "/data/2024", "/data/2024/02", "/data/empty" and "/other".
+        // "/data/2024/01" can't match and "/data/2025" is excluded.
+        assertEquals(6, listCount.get());
+    }
+
+    private List<String> assertSameResult(final String prefix, final Optional<String> lastPath, final String pattern)
+    {
+        final AtomicInteger listCount = new AtomicInteger();
+        final List<String> expected = new ArrayList<>(FtpFileInputPlugin.listFilesByPrefix(
+                log, new FakeFTPClient(tree, listCount), prefix, lastPath, Pattern.compile(pattern)));
+        Collections.sort(expected);
+
+        final List<RemoteFile> files = new ParallelDirectoryCrawler(log, new Supplier<FTPClient>() {
+                @Override
+                public FTPClient get()
+                {
+                    return new FakeFTPClient(tree, listCount);
+                }
+            }, 3, new PathFilter(lastPath, Pattern.compile(pattern))).crawl(prefix);
+        final List<String> actual = new ArrayList<>();
+        for (final RemoteFile file : files) {
+            actual.add(file.getPath());
+        }
+        assertEquals(expected, actual);
+        return actual;
+    }
+}
@@ -0,0 +1,103 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class TestPathFilter
+{
+    private final PathFilter filter = new PathFilter(Optional.of("/data/2024/02/c.txt"), Pattern.compile(".*"));
+
+    @Test
+    public void testFiles()
+    {
+        assertFalse(filter.shouldVisit("/data/2024/02/b.txt"));
+        assertFalse(filter.shouldVisit("/data/2024/02/c.txt"));
+        assertTrue(filter.shouldVisit("/data/2024/02/d.txt"));
+        assertTrue(filter.shouldVisit("/data/2024/02/c.txt.gz"));
+    }
+
+    @Test
+    public void testDirectories()
+    {
+        // directories containing last_path
+        assertTrue(filter.shouldVisitDirectory("/data"));
+        assertTrue(filter.shouldVisitDirectory("/data/2024"));
+        assertTrue(filter.shouldVisitDirectory("/data/2024/02/"));
+
+        // whole range sorts before last_path
+        assertFalse(filter.shouldVisitDirectory("/data/2023"));
+        assertFalse(filter.shouldVisitDirectory("/data/2024/01"));
+        assertFalse(filter.shouldVisitDirectory("/data/2024-old"));  // "-" sorts before "/"
+
+        // whole range sorts after last_path
+        assertTrue(filter.shouldVisitDirectory("/data/2024/03"));
+        assertTrue(filter.shouldVisitDirectory("/data/2024/02/c.txt"));
+        assertTrue(filter.shouldVisitDirectory("/data/2024_new"));
+        assertTrue(filter.shouldVisitDirectory("/database"));
+    }
+
+    @Test
+    public void testIncludeGlobs()
+    {
+        final PathFilter globs = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"), false,
+                Arrays.asList(GlobPattern.compile("/data/*/01/*.csv")), Collections.<Pattern>emptyList(), Optional.<Integer>empty());
+        assertTrue(globs.shouldVisitDirectory("/data", 0));
+        assertTrue(globs.shouldVisitDirectory("/data/2024", 1));
+        assertTrue(globs.shouldVisitDirectory("/data/2024/01", 2));
+        assertFalse(globs.shouldVisitDirectory("/data/2024/02", 2));
+        assertFalse(globs.shouldVisitDirectory("/data/2024/01/x", 3));
+        assertFalse(globs.shouldVisitDirectory("/logs", 0));
+        assertTrue(globs.accepts("/data/2024/01/a.csv"));
+        assertFalse(globs.accepts("/data/2024/01/a.txt"));
+    }
+
+    @Test
+    public void testExcludeGlobs()
+    {
+        final PathFilter globs = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"), false,
+                Collections.<Pattern>emptyList(), Arrays.asList(GlobPattern.compile("**/tmp/**"), GlobPattern.compile("**/*.tmp")),
+                Optional.<Integer>empty());
+        assertTrue(globs.shouldVisitDirectory("/data", 0));
+        assertFalse(globs.shouldVisitDirectory("/data/tmp", 1));
+        assertTrue(globs.shouldVisitDirectory("/data/tmpx", 1));
+        assertFalse(globs.accepts("/data/a.tmp"));
+        assertTrue(globs.accepts("/data/a.csv"));
+    }
+
+    @Test
+    public void testAnchoredPattern()
+    {
+        final PathFilter anchored = new PathFilter(Optional.<String>empty(), Pattern.compile("/data/20[0-9]{2}/.*\\.csv"), true,
+                Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), Optional.<Integer>empty());
+        assertTrue(anchored.shouldVisitDirectory("/data", 0));
+        assertTrue(anchored.shouldVisitDirectory("/data/2024", 1));
+        assertFalse(anchored.shouldVisitDirectory("/data/1999", 1));
+        assertFalse(anchored.shouldVisitDirectory("/database", 0));
+        assertTrue(anchored.accepts("/data/2024/a.csv"));
+        assertFalse(anchored.accepts("/data/2024/a.csv.gz"));
+    }
+
+    @Test
+    public void testMaxDepth()
+    {
+        final PathFilter depth = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"), false,
+                Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), Optional.of(1));
+        assertTrue(depth.shouldVisitDirectory("/data/a", 0));
+        assertFalse(depth.shouldVisitDirectory("/data/a/b", 1));
+    }
+
+    @Test
+    public void testWithoutLastPath()
+    {
+        final PathFilter all = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"));
+        assertTrue(all.shouldVisit("/a"));
+        assertTrue(all.shouldVisitDirectory("/a"));
+    }
+}
@@ -0,0 +1,237 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads tasks of multiple files with {@code prefetch_files} from {@link InProcessFtpServer}.
+ */
+public class TestPrefetch
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    // larger than the socket buffers, so that a transfer which is not read blocks
+    private static final int LARGE_SIZE = 32 * 1024 * 1024;
+    private static final byte[] LARGE = InProcessFtpServer.content(LARGE_SIZE);
+
+    private final Logger log = LoggerFactory.getLogger(TestPrefetch.class);
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InProcessFtpServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new InProcessFtpServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testNextFileIsFetchedWhileReading()
+    {
+        server.addFile("/data/a.bin", LARGE).addFile("/data/b.bin", LARGE);
+        final ConfigSource config = config(2, 1);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    assertEquals(1, taskCount);
+                    try (final TransactionalFileInput input = plugin.open(taskSource, 0)) {
+                        assertTrue(input.nextFile());
+                        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+                        append(first, input.poll());
+
+                        // "b.bin" is requested while most of "a.bin" is not read yet
+                        awaitAtLeast(2, retrCount());
+                        assertTrue(server.getRetrPaths().containsAll(Arrays.asList("/data/a.bin", "/data/b.bin")));
+                        assertTrue(first.size() < LARGE_SIZE);
+
+                        assertArrayEquals(LARGE, readRest(input, first));
+                        assertTrue(input.nextFile());
+                        assertArrayEquals(LARGE, readRest(input, new ByteArrayOutputStream()));
+                        assertFalse(input.nextFile());
+                        final List<TaskReport> reports = new ArrayList<>();
+                        reports.add(input.commit());
+                        return reports;
+                    }
+                }
+            });
+        // no transfer was started again
+        assertEquals(2, server.getRetrCount());
+    }
+
+    @Test
+    public void testPrefetchedFileIsClosedOnAbort()
+    {
+        server.addFile("/data/a.bin", LARGE).addFile("/data/b.bin", LARGE);
+        final ConfigSource config = config(2, 1);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    try (final TransactionalFileInput input = plugin.open(taskSource, 0)) {
+                        assertTrue(input.nextFile());
+                        input.poll().release();
+                        awaitAtLeast(2, activeTransfers());
+                        input.abort();
+                    }
+                    // both the current file and the prefetched one stop sending
+                    awaitAtMost(0, activeTransfers());
+                    assertEquals(2, server.getAbortedTransferCount());
+                    final List<TaskReport> reports = new ArrayList<>();
+                    reports.add(CONFIG_MAPPER_FACTORY.newTaskReport());
+                    return reports;
+                }
+            });
+    }
+
+    @Test
+    public void testPrefetchUsesAtMostHalfOfThreads()
+    {
+        // the scheduler is shared in the JVM, and an earlier test may have made it larger
+        final int limit = TransferScheduler.getInstance(log, 4, false).getMaxThreads() / 2;
+        final int files = limit + 3;
+        for (int i = 0; i < files; i++) {
+            server.addFile(String.format(Locale.ROOT, "/data/%03d.bin", i), LARGE);
+        }
+        final ConfigSource config = config(files, files - 1);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    try (final TransactionalFileInput input = plugin.open(taskSource, 0)) {
+                        assertTrue(input.nextFile());
+                        input.poll().release();
+                        // the current file and "limit" prefetched files, which block until they're read
+                        awaitAtLeast(limit + 1, activeTransfers());
+                        sleep(500);
+                        assertEquals(limit + 1, server.getRetrCount());
+                        assertEquals(limit + 1, server.getActiveTransferCount());
+                        input.abort();
+                    }
+                    final List<TaskReport> reports = new ArrayList<>();
+                    reports.add(CONFIG_MAPPER_FACTORY.newTaskReport());
+                    return reports;
+                }
+            });
+    }
+
+    private ConfigSource config(final int maxFilesPerTask, final int prefetchFiles)
+    {
+        return CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", server.getPort())
+                .set("user", InProcessFtpServer.USER)
+                .set("password", InProcessFtpServer.PASSWORD)
+                .set("path_prefix", "/data/")
+                .set("max_files_per_task", maxFilesPerTask)
+                .set("prefetch_files", prefetchFiles)
+                // one buffer for each prefetched file
+                .set("prefetch_max_bytes", 65536L * prefetchFiles)
+                .set("transfer_max_threads", 4);
+    }
+
+    private IntSupplier retrCount()
+    {
+        return new IntSupplier() {
+            @Override
+            public int getAsInt()
+            {
+                return server.getRetrCount();
+            }
+        };
+    }
+
+    private IntSupplier activeTransfers()
+    {
+        return new IntSupplier() {
+            @Override
+            public int getAsInt()
+            {
+                return server.getActiveTransferCount();
+            }
+        };
+    }
+
+    private static void awaitAtLeast(final int expected, final IntSupplier actual)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (actual.getAsInt() < expected && System.nanoTime() < deadline) {
+            sleep(10);
+        }
+        assertTrue(actual.getAsInt() >= expected);
+    }
+
+    private static void awaitAtMost(final int expected, final IntSupplier actual)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (actual.getAsInt() > expected && System.nanoTime() < deadline) {
+            sleep(10);
+        }
+        assertTrue(actual.getAsInt() <= expected);
+    }
+
+    private static void sleep(final long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static byte[] readRest(final TransactionalFileInput input, final ByteArrayOutputStream out)
+    {
+        Buffer buffer;
+        while ((buffer = input.poll()) != null) {
+            append(out, buffer);
+        }
+        return out.toByteArray();
+    }
+
+    private static void append(final ByteArrayOutputStream out, final Buffer buffer)
+    {
+        final byte[] bytes = new byte[buffer.limit()];
+        buffer.getBytes(0, bytes, 0, bytes.length);
+        out.write(bytes, 0, bytes.length);
+        buffer.release();
+    }
+}
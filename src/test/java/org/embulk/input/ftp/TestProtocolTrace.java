@@ -0,0 +1,76 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestProtocolTrace
+{
+    private final Logger log = LoggerFactory.getLogger(TestProtocolTrace.class);
+
+    @Test
+    public void testRingBuffer()
+    {
+        final ProtocolTrace trace = new ProtocolTrace(log, ProtocolTrace.Level.ERRORS, "localhost:21", 3);
+        trace.sent("CWD /data");
+        trace.received("250 OK");
+        trace.sent("SIZE a.csv");
+        trace.received("213 100");
+        assertEquals(Arrays.asList("< 250 OK", "> SIZE a.csv", "< 213 100"), trace.recordedLines());
+
+        // dumped lines are cleared
+        trace.dump("Transfer failed");
+        assertEquals(0, trace.recordedLines().size());
+        trace.sent("RETR a.csv");
+        assertEquals(Arrays.asList("> RETR a.csv"), trace.recordedLines());
+        assertTrue(trace.summary(), trace.summary().startsWith("3 commands (0 NOOP) and 2 replies"));
+    }
+
+    @Test
+    public void testPasswordIsRedacted()
+    {
+        final ProtocolTrace trace = new ProtocolTrace(log, ProtocolTrace.Level.ALL, "localhost:21", 10);
+        trace.sent("USER embulk");
+        trace.sent("PASS secret");
+        trace.sent("pass secret");
+        trace.sent("ACCT secret");
+        assertEquals(Arrays.asList("> USER embulk", "> PASS ********", "> pass ********", "> ACCT ********"),
+                trace.recordedLines());
+    }
+
+    @Test
+    public void testKeepalivesAreNotRecordedByDefault()
+    {
+        final ProtocolTrace errors = new ProtocolTrace(log, ProtocolTrace.Level.ERRORS, "localhost:21", 10);
+        final ProtocolTrace all = new ProtocolTrace(log, ProtocolTrace.Level.ALL, "localhost:21", 10);
+        for (final ProtocolTrace trace : Arrays.asList(errors, all)) {
+            trace.sent("NOOP");
+            trace.received("200 NOOP ok");
+            trace.sent("PWD");
+            trace.received("257 \"/\"");
+        }
+        assertEquals(Arrays.asList("> PWD", "< 257 \"/\""), errors.recordedLines());
+        assertEquals(4, all.recordedLines().size());
+        assertTrue(errors.summary().startsWith("2 commands (1 NOOP) and 2 replies"));
+    }
+
+    @Test
+    public void testLevels()
+    {
+        assertSame(ProtocolTrace.Level.OFF, ProtocolTrace.Level.of("off"));
+        assertSame(ProtocolTrace.Level.ALL, ProtocolTrace.Level.of("ALL"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownLevel()
+    {
+        ProtocolTrace.Level.of("verbose");
+    }
+}
@@ -0,0 +1,124 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestSeenPathIndex
+{
+    private static final String SERVER = "user@localhost:21";
+
+    private final Logger log = LoggerFactory.getLogger(TestSeenPathIndex.class);
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = Files.createTempFile("seen-paths", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void deleteFile() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testContains()
+    {
+        // not sorted in the order they are added
+        final List<String> paths = new ArrayList<>();
+        final Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            paths.add(String.format("/drop/%08x.csv", random.nextInt()));
+        }
+        SeenPathIndex.write(file, SERVER, SeenPathIndex.empty(), paths);
+        final SeenPathIndex index = SeenPathIndex.load(log, file, SERVER);
+
+        assertEquals(new HashSet<>(paths).size(), index.size());
+        for (final String path : paths) {
+            assertTrue(path, index.contains(path));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 5000; i++) {
+            if (index.contains(String.format("/drop/%08x.tsv", random.nextInt()))) {
+                falsePositives++;
+            }
+        }
+        // about 1% of paths not in the index
+        assertTrue(String.valueOf(falsePositives), falsePositives < 150);
+        assertFalse(index.contains("/"));
+        assertFalse(index.contains("/drop/zzzzzzzz.csv"));
+    }
+
+    @Test
+    public void testMerge()
+    {
+        SeenPathIndex.write(file, SERVER, SeenPathIndex.empty(), Arrays.asList("/b", "/d", "/あ"));
+        final SeenPathIndex first = SeenPathIndex.load(log, file, SERVER);
+        SeenPathIndex.write(file, SERVER, first, Arrays.asList("/a", "/d", "/c"));
+        final SeenPathIndex merged = SeenPathIndex.load(log, file, SERVER);
+
+        assertEquals(5, merged.size());
+        for (final String path : Arrays.asList("/a", "/b", "/c", "/d", "/あ")) {
+            assertTrue(path, merged.contains(path));
+        }
+        assertFalse(merged.contains("/e"));
+    }
+
+    @Test
+    public void testMissingFileAndOtherServer()
+    {
+        assertEquals(0, SeenPathIndex.load(log, file, SERVER).size());
+        SeenPathIndex.write(file, SERVER, SeenPathIndex.empty(), Collections.singletonList("/a"));
+        assertEquals(0, SeenPathIndex.load(log, file, "user@otherhost:21").size());
+    }
+
+    @Test
+    public void testPrefixCompressed() throws IOException
+    {
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            paths.add(String.format("/vendor/drop/incoming/events-%08d.csv.gz", i));
+        }
+        long rawBytes = 0;
+        for (final String path : paths) {
+            rawBytes += path.length();
+        }
+        SeenPathIndex.write(file, SERVER, SeenPathIndex.empty(), paths);
+        // only the last digits and the extension of each path, and 10 bits of the Bloom filter
+        assertTrue(Files.size(file) * 3 < rawBytes);
+    }
+
+    @Test
+    public void testPathFilter()
+    {
+        SeenPathIndex.write(file, SERVER, SeenPathIndex.empty(), Arrays.asList("/drop/b.csv"));
+        final PathFilter filter = new PathFilter(Optional.<String>empty(), Pattern.compile(".*"), false,
+                Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), Optional.<Integer>empty(),
+                SeenPathIndex.load(log, file, SERVER));
+        assertTrue(filter.shouldVisit("/drop/a.csv"));
+        assertFalse(filter.shouldVisit("/drop/b.csv"));
+        assertTrue(filter.shouldVisit("/drop/c.csv"));
+    }
+}
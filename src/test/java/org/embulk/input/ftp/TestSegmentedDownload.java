@@ -0,0 +1,205 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Downloads files with {@code download_connections} from {@link InProcessFtpServer} behind a
+ * {@link FaultInjectingProxy}.
+ */
+public class TestSegmentedDownload
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    // not a multiple of the segment size
+    private static final int LARGE_SIZE = SEGMENT_SIZE * 4 + 1000;
+    private static final int SMALL_SIZE = 1000;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InProcessFtpServer server;
+    private FaultInjectingProxy proxy;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new InProcessFtpServer()
+                .addFile("/data/large.bin", LARGE_SIZE)
+                .addFile("/data/small.bin", SMALL_SIZE)
+                .addFile("/data/pair/a.bin", LARGE_SIZE)
+                .addFile("/data/pair/b.bin", LARGE_SIZE);
+        proxy = new FaultInjectingProxy("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void testSegmentsReassembledInOrder()
+    {
+        // a slow link makes the segments complete out of order
+        proxy.setBytesPerSecond(8L * 1024 * 1024);
+        assertArrayEquals(InProcessFtpServer.content(LARGE_SIZE), readFile("/data/large"));
+        final List<Long> offsets = server.getRetrOffsets();
+        offsets.sort(null);
+        assertEquals(Arrays.asList(0L, (long) SEGMENT_SIZE, SEGMENT_SIZE * 2L, SEGMENT_SIZE * 3L, SEGMENT_SIZE * 4L), offsets);
+    }
+
+    @Test
+    public void testSmallerThanSegment()
+    {
+        assertArrayEquals(InProcessFtpServer.content(SMALL_SIZE), readFile("/data/small"));
+        // downloaded over a single connection without REST
+        assertEquals(Arrays.asList(0L), server.getRetrOffsets());
+    }
+
+    @Test
+    public void testFailedSegmentResumesFromOffset()
+    {
+        proxy.resetDataConnectionAfter(SEGMENT_SIZE / 2);
+        assertArrayEquals(InProcessFtpServer.content(LARGE_SIZE), readFile("/data/large"));
+        assertEquals(1, proxy.getResetCount());
+
+        // one more RETR, which starts in the middle of the failed segment
+        final List<Long> resumed = new ArrayList<>();
+        for (final long offset : server.getRetrOffsets()) {
+            if (offset % SEGMENT_SIZE != 0) {
+                resumed.add(offset);
+            }
+        }
+        assertEquals(6, server.getRetrCount());
+        assertEquals(1, resumed.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testPoolLimitedToTasks() throws Exception
+    {
+        // each task holds one of the connections. segments must not wait for the other one.
+        final ConfigSource config = newConfig("/data/pair/")
+                .set("connection_pool_max_total", 2)
+                .set("connection_pool_max_wait", 30);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        final List<byte[]> contents = new ArrayList<>();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    assertEquals(2, taskCount);
+                    final ExecutorService tasks = Executors.newFixedThreadPool(taskCount);
+                    try {
+                        final List<Future<byte[]>> results = new ArrayList<>();
+                        for (int i = 0; i < taskCount; i++) {
+                            final int taskIndex = i;
+                            results.add(tasks.submit(new Callable<byte[]>() {
+                                    @Override
+                                    public byte[] call()
+                                    {
+                                        return readTask(plugin, taskSource, taskIndex, new ArrayList<TaskReport>());
+                                    }
+                                }));
+                        }
+                        for (final Future<byte[]> result : results) {
+                            contents.add(result.get());
+                        }
+                    }
+                    catch (final InterruptedException | ExecutionException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    finally {
+                        tasks.shutdownNow();
+                    }
+                    return new ArrayList<>();
+                }
+            });
+        for (final byte[] content : contents) {
+            assertArrayEquals(InProcessFtpServer.content(LARGE_SIZE), content);
+        }
+        // downloaded over the connections of the tasks
+        assertEquals(Arrays.asList(0L, 0L), server.getRetrOffsets());
+    }
+
+    private ConfigSource newConfig(final String pathPrefix)
+    {
+        return CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", proxy.getPort())
+                .set("user", InProcessFtpServer.USER)
+                .set("password", InProcessFtpServer.PASSWORD)
+                .set("path_prefix", pathPrefix)
+                .set("download_connections", 3)
+                .set("download_segment_size", SEGMENT_SIZE)
+                .set("maximum_retries", 3)
+                .set("initial_retry_interval_millis", 10);
+    }
+
+    private static byte[] readTask(final FtpFileInputPlugin plugin, final TaskSource taskSource, final int taskIndex,
+            final List<TaskReport> reports)
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final TransactionalFileInput input = plugin.open(taskSource, taskIndex)) {
+            while (input.nextFile()) {
+                Buffer buffer;
+                while ((buffer = input.poll()) != null) {
+                    final byte[] bytes = new byte[buffer.limit()];
+                    buffer.getBytes(0, bytes, 0, bytes.length);
+                    out.write(bytes, 0, bytes.length);
+                    buffer.release();
+                }
+            }
+            reports.add(input.commit());
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] readFile(final String pathPrefix)
+    {
+        final ConfigSource config = newConfig(pathPrefix);
+        final FtpFileInputPlugin plugin = new FtpFileInputPlugin();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+                @Override
+                public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+                {
+                    final List<TaskReport> reports = new ArrayList<>();
+                    for (int i = 0; i < taskCount; i++) {
+                        final byte[] bytes = readTask(plugin, taskSource, i, reports);
+                        out.write(bytes, 0, bytes.length);
+                    }
+                    return reports;
+                }
+            });
+        assertTrue(out.size() > 0);
+        return out.toByteArray();
+    }
+}
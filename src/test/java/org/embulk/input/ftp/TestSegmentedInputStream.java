@@ -0,0 +1,156 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestSegmentedInputStream
+{
+    private static final Logger log = LoggerFactory.getLogger(TestSegmentedInputStream.class);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Boolean> closedSources = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSegmentsInOrder() throws Exception
+    {
+        // segments complete out of order, and the last one is shorter
+        final byte[] content = InProcessFtpServer.content(10000);
+        final SegmentedInputStream in = new SegmentedInputStream(log, content.length, 300, 4, 8, sources(content, -1L), executor);
+        assertArrayEquals(content, readAll(in));
+        awaitSources(4);
+        assertFalse(closedSources.contains(false));
+    }
+
+    @Test
+    public void testSmallerThanSegment() throws Exception
+    {
+        final byte[] content = InProcessFtpServer.content(100);
+        final SegmentedInputStream in = new SegmentedInputStream(log, content.length, 300, 4, 8, sources(content, -1L), executor);
+        assertArrayEquals(content, readAll(in));
+        // no more workers than segments
+        awaitSources(1);
+        assertEquals(1, closedSources.size());
+    }
+
+    @Test
+    public void testFailedSegment() throws Exception
+    {
+        final byte[] content = InProcessFtpServer.content(3000);
+        final SegmentedInputStream in = new SegmentedInputStream(log, content.length, 1000, 2, 2, sources(content, 1000L), executor);
+        final byte[] buffer = new byte[content.length];
+        int read = 0;
+        try {
+            while (read < buffer.length) {
+                final int n = in.read(buffer, read, buffer.length - read);
+                assertTrue(n > 0);
+                read += n;
+            }
+            fail();
+        }
+        catch (final IOException ex) {
+            assertEquals("segment 1000 failed", ex.getMessage());
+        }
+        // the segments after the failure are not returned
+        assertTrue(read <= 1000);
+        awaitSources(2);
+        assertTrue(closedSources.contains(false));
+    }
+
+    @Test
+    public void testCloseStopsWorkers() throws Exception
+    {
+        final byte[] content = InProcessFtpServer.content(100000);
+        final SegmentedInputStream in = new SegmentedInputStream(log, content.length, 100, 2, 2, sources(content, -1L), executor);
+        assertEquals(content[0] & 0xff, in.read());
+        in.close();
+        awaitSources(2);
+        try {
+            // the rest of the current segment is still read
+            readAll(in);
+            fail();
+        }
+        catch (final IOException ex) {
+            assertEquals("Stream closed", ex.getMessage());
+        }
+    }
+
+    // returns sources which fail at the segment from failAt, and record how they're closed
+    private Callable<SegmentedInputStream.SegmentSource> sources(final byte[] content, final long failAt)
+    {
+        return new Callable<SegmentedInputStream.SegmentSource>() {
+            @Override
+            public SegmentedInputStream.SegmentSource call()
+            {
+                return new SegmentedInputStream.SegmentSource() {
+                    @Override
+                    public InputStream open(final long start, final long end) throws IOException
+                    {
+                        if (start == failAt) {
+                            throw new IOException("segment " + start + " failed");
+                        }
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextInt(5));
+                        }
+                        catch (final InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new ByteArrayInputStream(content, (int) start, (int) (end - start));
+                    }
+
+                    @Override
+                    public void close(final boolean reusable)
+                    {
+                        closedSources.add(reusable);
+                    }
+                };
+            }
+        };
+    }
+
+    private void awaitSources(final int count) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (closedSources.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, closedSources.size());
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[777];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
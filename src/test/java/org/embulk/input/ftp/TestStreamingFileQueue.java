@@ -0,0 +1,106 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestStreamingFileQueue
+{
+    @Test
+    public void testTasksTakeFilesWhileListing() throws Exception
+    {
+        final StreamingFileQueue queue = StreamingFileQueue.create(true);
+        final List<String> taken = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch first = new CountDownLatch(1);
+        final List<Thread> tasks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Thread task = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        final StreamingFileQueue.Files files = queue.files();
+                        while (files.hasNext()) {
+                            taken.add(files.next().getPath());
+                            first.countDown();
+                        }
+                    }
+                });
+            task.start();
+            tasks.add(task);
+        }
+
+        queue.accept(new RemoteFile("/data/b.csv", 10, 1000));
+        // a task reads the first file before the listing ends
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+        queue.accept(new RemoteFile("/data/c.csv", 10, 1000));
+        queue.accept(new RemoteFile("/data/a.csv", 10, 1000));
+        queue.finishListing();
+        for (final Thread task : tasks) {
+            task.join(10000);
+            assertFalse(task.isAlive());
+        }
+
+        Collections.sort(taken);
+        assertEquals(Arrays.asList("/data/a.csv", "/data/b.csv", "/data/c.csv"), taken);
+        assertEquals(3, queue.getTakenFiles());
+        assertEquals("/data/c.csv", queue.getLastPath().get());
+        assertEquals(3, queue.getTakenPaths().size());
+
+        assertSame(queue, StreamingFileQueue.get(queue.getId()));
+        queue.close();
+        assertNull(StreamingFileQueue.get(queue.getId()));
+    }
+
+    @Test
+    public void testHasReadyDoesNotWait()
+    {
+        final StreamingFileQueue queue = StreamingFileQueue.create(false);
+        final StreamingFileQueue.Files files = queue.files();
+        assertFalse(files.hasReady());
+        queue.accept(new RemoteFile("/data/a.csv", 10, 1000));
+        assertTrue(files.hasReady());
+        assertEquals("/data/a.csv", files.next().getPath());
+        queue.finishListing();
+        assertFalse(files.hasNext());
+        assertEquals("/data/a.csv", queue.getLastPath().get());
+        assertEquals(0, queue.getTakenPaths().size());
+        queue.close();
+    }
+
+    @Test
+    public void testListingFailure()
+    {
+        final StreamingFileQueue queue = StreamingFileQueue.create(false);
+        final RuntimeException failure = new RuntimeException("listing failed");
+        queue.failListing(failure);
+        try {
+            queue.files().hasNext();
+            fail();
+        }
+        catch (final RuntimeException ex) {
+            assertSame(failure, ex);
+        }
+        queue.close();
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testClosedQueueStopsCrawler()
+    {
+        final StreamingFileQueue queue = StreamingFileQueue.create(false);
+        queue.close();
+        queue.accept(new RemoteFile("/data/a.csv", 10, 1000));
+    }
+}
@@ -0,0 +1,113 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestTransferDecoder
+{
+    private static final Logger LOG = LoggerFactory.getLogger(TestTransferDecoder.class);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDetect()
+    {
+        assertEquals(TransferDecoder.Codec.GZIP, detect(0x1f, 0x8b, 0x08, 0x00));
+        assertEquals(TransferDecoder.Codec.BZIP2, detect('B', 'Z', 'h', '9'));
+        assertEquals(TransferDecoder.Codec.ZSTD, detect(0x28, 0xb5, 0x2f, 0xfd));
+        assertEquals(TransferDecoder.Codec.NONE, detect('i', 'd', ',', 'n'));
+        assertEquals(TransferDecoder.Codec.NONE, detect(0x1f));
+
+        assertTrue(TransferDecoder.isDecodable("/data/a.csv.GZ"));
+        assertTrue(TransferDecoder.isDecodable("/data/a.csv.zst"));
+        assertFalse(TransferDecoder.isDecodable("/data/a.csv"));
+    }
+
+    @Test
+    public void testGzip() throws IOException
+    {
+        final byte[] first = InProcessFtpServer.content(300000);
+        final byte[] second = InProcessFtpServer.content(1000);
+        // concatenated members, as written by "cat a.gz b.gz"
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(gzip(first));
+        compressed.write(gzip(second));
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), readAll(start(compressed.toByteArray())));
+    }
+
+    @Test
+    public void testPassThrough() throws IOException
+    {
+        final byte[] plain = InProcessFtpServer.content(100000);
+        assertArrayEquals(plain, readAll(start(plain)));
+        assertArrayEquals(new byte[0], readAll(start(new byte[0])));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testCorrupted() throws IOException
+    {
+        final byte[] compressed = gzip(InProcessFtpServer.content(100000));
+        readAll(start(Arrays.copyOf(compressed, compressed.length / 2)));
+    }
+
+    private InputStream start(final byte[] compressed)
+    {
+        return TransferDecoder.start(LOG, executor, "/data/a.csv.gz", new ByteArrayInputStream(compressed), 2, 4096, false);
+    }
+
+    private static TransferDecoder.Codec detect(final int... bytes)
+    {
+        final byte[] head = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            head[i] = (byte) bytes[i];
+        }
+        return TransferDecoder.Codec.detect(head, head.length);
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
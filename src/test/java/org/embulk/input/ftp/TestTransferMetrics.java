@@ -0,0 +1,146 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class TestTransferMetrics
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testFileMetrics()
+    {
+        final HostTransferStats host = new HostTransferStats("example.com");
+        final FileTransferMetrics metrics = new FileTransferMetrics("/data/a.csv", host, 0L);
+        metrics.transferStarted();
+        assertEquals(1, host.getActiveTransfers());
+        metrics.transferred(1000, SECOND / 2);
+        metrics.transferred(3000, SECOND * 9 / 10);  // 4000 bytes in the first second
+        metrics.transferred(1000, SECOND);          // 1000 bytes in the next 3 seconds
+        metrics.reopened();
+        metrics.addLoginNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.addRetryNanos(TimeUnit.MILLISECONDS.toNanos(1200));
+        metrics.addThrottleNanos(TimeUnit.MILLISECONDS.toNanos(700));
+        metrics.transferEnded();
+        metrics.finish(true, SECOND * 4);
+        metrics.finish(false, SECOND * 5);  // ignored
+
+        final Map<String, Object> map = metrics.toMap();
+        assertEquals("/data/a.csv", map.get("path"));
+        assertEquals(true, map.get("completed"));
+        assertEquals(5000L, map.get("bytes"));
+        assertEquals(4000L, map.get("duration_millis"));
+        assertEquals(500L, map.get("ttfb_millis"));
+        assertEquals(1250L, map.get("avg_bytes_per_sec"));
+        assertEquals(4000L, map.get("peak_bytes_per_sec"));
+        assertEquals(1, map.get("reopens"));
+        assertEquals(30L, map.get("login_millis"));
+        assertEquals(1200L, map.get("retry_millis"));
+        assertEquals(700L, map.get("throttle_millis"));
+
+        assertEquals(0, host.getActiveTransfers());
+        assertEquals(5000L, host.getTotalBytes());
+        assertEquals(1L, host.getTotalFiles());
+    }
+
+    @Test
+    public void testNoBytes()
+    {
+        final FileTransferMetrics metrics = new FileTransferMetrics("/data/empty.csv", new HostTransferStats("example.com"), 0L);
+        metrics.finish(true, SECOND);
+        final Map<String, Object> map = metrics.toMap();
+        assertFalse(map.containsKey("ttfb_millis"));
+        assertEquals(0L, map.get("avg_bytes_per_sec"));
+        assertEquals(0L, map.get("peak_bytes_per_sec"));
+    }
+
+    @Test
+    public void testAggregateTaskReports()
+    {
+        final HostTransferStats host = new HostTransferStats("example.com");
+        final TransferMetrics task1 = new TransferMetrics(LoggerFactory.getLogger(TestTransferMetrics.class));
+        final FileTransferMetrics a = new FileTransferMetrics("/a", host, 0L);
+        a.transferred(2000, SECOND / 10);
+        a.finish(true, SECOND);
+        task1.add(a);
+        final FileTransferMetrics b = new FileTransferMetrics("/b", host, 0L);
+        b.transferred(1000, SECOND * 3 / 10);
+        b.reopened();
+        b.finish(false, SECOND);
+        task1.add(b);
+
+        final Map<String, Object> report = task1.toMap();
+        assertEquals(2L, report.get("files"));
+        assertEquals(1L, report.get("completed_files"));
+        assertEquals(3000L, report.get("bytes"));
+        assertEquals(2, ((List<?>) report.get("slowest_files")).size());
+
+        // task reports are deserialized with Integer for small numbers
+        final Map<String, Object> task2 = new HashMap<>();
+        task2.put("files", 1);
+        task2.put("completed_files", 1);
+        task2.put("bytes", 7000);
+        task2.put("duration_millis", 1000);
+        task2.put("ttfb_millis_total", 500);
+        task2.put("ttfb_count", 1);
+        task2.put("max_ttfb_millis", 500);
+        task2.put("peak_bytes_per_sec", 9000);
+        task2.put("reopens", 2);
+
+        final TransferMetrics.Summary summary = new TransferMetrics.Summary();
+        summary.addTask(report);
+        summary.addTask(task2);
+        assertEquals(3L, summary.getFiles());
+        assertEquals(10000L, summary.getBytes());
+        assertEquals(3L, summary.getReopens());
+        assertEquals(10000L * 1000 / 3000, summary.getAverageBytesPerSec());
+        assertEquals((100 + 300 + 500) / 3, summary.getAverageTtfbMillis());
+        summary.log(LoggerFactory.getLogger(TestTransferMetrics.class));
+    }
+
+    @Test
+    public void testReportKeepsSlowestFiles()
+    {
+        final HostTransferStats host = new HostTransferStats("example.com");
+        final TransferMetrics task = new TransferMetrics(LoggerFactory.getLogger(TestTransferMetrics.class));
+        final int files = TransferMetrics.SLOWEST_FILES + 5;
+        for (int i = 0; i < files; i++) {
+            // a file which took (i * 7 % files) seconds, in no order
+            final FileTransferMetrics file = new FileTransferMetrics("/" + i, host, 0L);
+            task.add(file);
+            file.transferred(100, SECOND / 10);
+            file.finish(true, SECOND * (i * 7 % files));
+        }
+
+        final Map<String, Object> report = task.toMap();
+        assertEquals((long) files, report.get("files"));
+        assertEquals(100L * files, report.get("bytes"));
+        final List<?> slowest = (List<?>) report.get("slowest_files");
+        assertEquals(TransferMetrics.SLOWEST_FILES, slowest.size());
+        for (int i = 0; i < slowest.size(); i++) {
+            assertEquals((files - 1 - i) * 1000L, ((Map<?, ?>) slowest.get(i)).get("duration_millis"));
+        }
+    }
+
+    @Test
+    public void testRegisteredToJmx() throws Exception
+    {
+        final HostTransferStats stats = HostTransferStats.of(LoggerFactory.getLogger(TestTransferMetrics.class), "user@jmx.example.com:21");
+        stats.transferred(100, System.nanoTime());
+        final ObjectName name = new ObjectName("org.embulk.input.ftp:type=HostTransferStats,server=" + ObjectName.quote("user@jmx.example.com:21"));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TotalBytes"));
+    }
+}
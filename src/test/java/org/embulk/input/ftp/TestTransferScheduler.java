@@ -0,0 +1,130 @@
+package org.embulk.input.ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestTransferScheduler
+{
+    private final TransferScheduler scheduler = new TransferScheduler(2, false);
+
+    @After
+    public void shutdown()
+    {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testBoundedThreads() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = scheduler.newTaskExecutor();
+        final Future<?>[] futures = new Future<?>[4];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = executor.submit(await(release));
+        }
+        waitFor(2, 2);
+
+        release.countDown();
+        for (final Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownNowCancelsOnlyOwnTransfers() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor1 = scheduler.newTaskExecutor();
+        final ExecutorService executor2 = scheduler.newTaskExecutor();
+        final Future<?> running1 = executor1.submit(await(release));
+        final Future<?> running2 = executor2.submit(await(release));
+        final Future<?> queued1 = executor1.submit(await(release));
+        waitFor(2, 1);
+
+        executor1.shutdownNow();
+        assertTrue(executor1.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(running1.isCancelled());
+        assertTrue(queued1.isCancelled());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertFalse(running2.isDone());
+
+        release.countDown();
+        running2.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testPrefetchUsesAtMostHalfOfThreads() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService prefetch = scheduler.newPrefetchExecutor();
+        assertTrue(scheduler.tryReservePrefetch());
+        final Future<?> future = prefetch.submit(await(release));
+        assertFalse(scheduler.tryReservePrefetch());
+
+        release.countDown();
+        future.get(10, TimeUnit.SECONDS);
+        prefetch.shutdown();
+        assertTrue(prefetch.awaitTermination(10, TimeUnit.SECONDS));
+        // the thread is given back when the transfer finishes
+        assertTrue(scheduler.tryReservePrefetch());
+    }
+
+    @Test
+    public void testReservationOfRejectedPrefetchIsCancelled() throws Exception
+    {
+        final ExecutorService prefetch = scheduler.newPrefetchExecutor();
+        prefetch.shutdown();
+        assertTrue(scheduler.tryReservePrefetch());
+        try {
+            prefetch.submit(await(new CountDownLatch(0)));
+            fail();
+        }
+        catch (final RejectedExecutionException ex) {
+            // expected
+        }
+        // a rejected transfer keeps the thread until the caller cancels the reservation
+        assertFalse(scheduler.tryReservePrefetch());
+        scheduler.cancelPrefetchReservation();
+        assertTrue(scheduler.tryReservePrefetch());
+    }
+
+    private static Runnable await(final CountDownLatch latch)
+    {
+        return new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    latch.await();
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private void waitFor(final int active, final int queued) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getActiveCount() != active || scheduler.getQueueDepth() != queued) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("active " + scheduler.getActiveCount() + ", queued " + scheduler.getQueueDepth());
+            }
+            Thread.sleep(10);
+        }
+    }
+}